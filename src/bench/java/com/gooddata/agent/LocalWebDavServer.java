@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the GoodData WebDAV storage supporting what the
+ * {@link Uploader} needs: PUT, MOVE, DELETE and PROPFIND. The files are
+ * kept in memory, by default only their sizes. Each request can be
+ * delayed, the bandwidth of all uploads together capped, and a share of
+ * the requests answered with an error status or dropped without a
+ * response.
+ */
+public class LocalWebDavServer {
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final Map<String, Long> sizes = new ConcurrentHashMap<String, Long>();
+	private final Map<String, byte[]> contents = new ConcurrentHashMap<String, byte[]>();
+	/** start and end of the first and the successful PUT of each path, in ns */
+	private final Map<String, long[]> putTimes = new ConcurrentHashMap<String, long[]>();
+	private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+	private final AtomicInteger faults = new AtomicInteger();
+	private final Random random = new Random(42);
+
+	private boolean keepContent = false;
+	private long latency = 0;
+	private RateLimiter bandwidth = null;
+	private double failureRate = 0;
+	private int failureStatus = 502;
+	private double dropRate = 0;
+
+	/**
+	 * Listens on a free port of the loopback interface
+	 */
+	public LocalWebDavServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					LocalWebDavServer.this.handle(exchange);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return URL of the root directory
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	private void handle(HttpExchange exchange) throws IOException, InterruptedException {
+		final String method = exchange.getRequestMethod();
+		final String path = exchange.getRequestURI().getPath();
+		count(method);
+		final long start = System.nanoTime();
+		byte[] body = null;
+		long size;
+		if ("PUT".equals(method)) {
+			final long[] times = new long[] { start, 0 };
+			final long[] previous = putTimes.get(path);
+			// a retry keeps the start of the first attempt
+			putTimes.put(path, (previous == null) ? times : previous);
+			final ByteArrayOutputStream content = keepContent ? new ByteArrayOutputStream() : null;
+			size = read(exchange.getRequestBody(), content, true);
+			body = keepContent ? content.toByteArray() : null;
+		} else {
+			size = read(exchange.getRequestBody(), null, false);
+		}
+		if (latency > 0) {
+			Thread.sleep(latency);
+		}
+		final double dice;
+		synchronized (random) {
+			dice = random.nextDouble();
+		}
+		if (dice < dropRate) {
+			faults.incrementAndGet();
+			return; // closed without a response
+		}
+		if (dice < dropRate + failureRate) {
+			faults.incrementAndGet();
+			exchange.sendResponseHeaders(failureStatus, -1);
+			return;
+		}
+		if ("PUT".equals(method)) {
+			final boolean existed = sizes.put(path, size) != null;
+			if (body != null) {
+				contents.put(path, body);
+			}
+			putTimes.get(path)[1] = System.nanoTime();
+			exchange.sendResponseHeaders(existed ? 204 : 201, -1);
+		} else if ("MOVE".equals(method)) {
+			final String destination = destination(exchange);
+			final Long moved = sizes.remove(path);
+			if (moved == null) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			final boolean existed = sizes.put(destination, moved) != null;
+			final byte[] content = contents.remove(path);
+			if (content != null) {
+				contents.put(destination, content);
+			}
+			exchange.sendResponseHeaders(existed ? 204 : 201, -1);
+		} else if ("DELETE".equals(method)) {
+			contents.remove(path);
+			exchange.sendResponseHeaders((sizes.remove(path) == null) ? 404 : 204, -1);
+		} else if ("PROPFIND".equals(method)) {
+			propfind(exchange, path);
+		} else {
+			exchange.sendResponseHeaders(405, -1);
+		}
+	}
+
+	/**
+	 * Reads the request body, capped by the bandwidth for uploads
+	 * @return number of bytes read
+	 */
+	private long read(InputStream in, OutputStream content, boolean upload) throws IOException {
+		final byte[] buffer = new byte[64 * 1024];
+		long total = 0;
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			if (upload && bandwidth != null) {
+				bandwidth.acquire(n, false);
+			}
+			if (content != null) {
+				content.write(buffer, 0, n);
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	private static String destination(HttpExchange exchange) throws IOException {
+		final String destination = exchange.getRequestHeaders().getFirst("Destination");
+		try {
+			return new URI(destination).getPath();
+		} catch (URISyntaxException e) {
+			throw new IOException("Invalid destination " + destination, e);
+		}
+	}
+
+	/**
+	 * Lists a file or the files of a directory with their sizes
+	 */
+	private void propfind(HttpExchange exchange, String path) throws IOException {
+		final String dir = path.endsWith("/") ? path : path + "/";
+		final Map<String, Long> found = new TreeMap<String, Long>();
+		if (sizes.containsKey(path)) {
+			found.put(path, sizes.get(path));
+		} else {
+			final boolean children = !"0".equals(exchange.getRequestHeaders().getFirst("Depth"));
+			for (Map.Entry<String, Long> e : sizes.entrySet()) {
+				if (e.getKey().startsWith(dir) && children && e.getKey().indexOf('/', dir.length()) < 0) {
+					found.put(e.getKey(), e.getValue());
+				}
+			}
+			if (found.isEmpty() && !"/".equals(path) && !hasFilesUnder(dir)) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+		}
+		final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n")
+				.append("<D:multistatus xmlns:D=\"DAV:\">\n");
+		if (!sizes.containsKey(path)) {
+			xml.append("<D:response><D:href>").append(dir).append("</D:href><D:propstat><D:prop>")
+					.append("<D:resourcetype><D:collection/></D:resourcetype></D:prop>")
+					.append("<D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>\n");
+		}
+		for (Map.Entry<String, Long> e : found.entrySet()) {
+			xml.append("<D:response><D:href>").append(e.getKey()).append("</D:href><D:propstat><D:prop>")
+					.append("<D:resourcetype/><D:getcontentlength>").append(e.getValue())
+					.append("</D:getcontentlength></D:prop>")
+					.append("<D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>\n");
+		}
+		final byte[] bytes = xml.append("</D:multistatus>\n").toString().getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=utf-8");
+		exchange.sendResponseHeaders(207, bytes.length);
+		exchange.getResponseBody().write(bytes);
+	}
+
+	private boolean hasFilesUnder(String dir) {
+		for (String name : sizes.keySet()) {
+			if (name.startsWith(dir)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void count(String method) {
+		AtomicInteger count = requests.get(method);
+		if (count == null) {
+			synchronized (requests) {
+				count = requests.get(method);
+				if (count == null) {
+					count = new AtomicInteger();
+					requests.put(method, count);
+				}
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * @return sizes of the stored files by their paths
+	 */
+	public Map<String, Long> getFiles() {
+		return new TreeMap<String, Long>(sizes);
+	}
+
+	/**
+	 * @return content of a stored file, <tt>null</tt> if it does not exist or
+	 * 		the content is not kept
+	 */
+	public byte[] getContent(String path) {
+		return contents.get(path);
+	}
+
+	/**
+	 * @return milliseconds from the first PUT of each path to the end of its
+	 * 		successful PUT, i.e. including the retries
+	 */
+	public List<Long> getPutLatencies() {
+		final List<Long> result = new ArrayList<Long>();
+		for (long[] times : putTimes.values()) {
+			if (times[1] > 0) {
+				result.add((times[1] - times[0]) / 1000000);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return number of requests by the method
+	 */
+	public Map<String, Integer> getRequests() {
+		final Map<String, Integer> result = new TreeMap<String, Integer>();
+		for (Map.Entry<String, AtomicInteger> e : requests.entrySet()) {
+			result.put(e.getKey(), e.getValue().get());
+		}
+		return result;
+	}
+
+	/**
+	 * @return number of failed and dropped requests
+	 */
+	public int getFaults() {
+		return faults.get();
+	}
+
+	/**
+	 * Forgets the files and the statistics
+	 */
+	public void reset() {
+		sizes.clear();
+		contents.clear();
+		putTimes.clear();
+		requests.clear();
+		faults.set(0);
+	}
+
+	/**
+	 * @param keepContent whether the content of the files is kept, otherwise
+	 * 		only their sizes are
+	 */
+	public void setKeepContent(boolean keepContent) {
+		this.keepContent = keepContent;
+	}
+
+	/**
+	 * @param latency milliseconds each request is delayed before the response
+	 */
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * @param bytesPerSecond bandwidth of all uploads together, 0 for no limit
+	 */
+	public void setBandwidth(long bytesPerSecond) {
+		this.bandwidth = (bytesPerSecond > 0) ? new RateLimiter(bytesPerSecond) : null;
+	}
+
+	/**
+	 * @param failureRate share of the requests answered with the failure status
+	 */
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	public void setFailureStatus(int failureStatus) {
+		this.failureStatus = failureStatus;
+	}
+
+	/**
+	 * @param dropRate share of the requests closed without a response
+	 */
+	public void setDropRate(double dropRate) {
+		this.dropRate = dropRate;
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Uploads synthetic files with the {@link Uploader} to a
+ * {@link LocalWebDavServer} and reports the throughput, the per-file PUT
+ * latency and the retries. The parameters are given as <tt>name=value</tt>
+ * arguments:
+ * <ul>
+ * <li><tt>files</tt> - number of files (default 20) plus a small main file</li>
+ * <li><tt>sizes</tt> - sizes the files take in turn (default 64K,1M,16M)</li>
+ * <li><tt>runs</tt> - measured runs after one warm-up run (default 3)</li>
+ * <li><tt>parallelism</tt>, <tt>part_size</tt>, <tt>rate_limit</tt>,
+ * 		<tt>max_retries</tt> - settings of the uploader as in the agent
+ * 		configuration; <tt>retry_delay</tt> is the base retry delay in ms
+ * 		(default 100)</li>
+ * <li><tt>latency</tt> (ms), <tt>bandwidth</tt>, <tt>failure_rate</tt>,
+ * 		<tt>failure_status</tt>, <tt>drop_rate</tt> - behaviour of the server</li>
+ * </ul>
+ * E.g. <tt>mvn -Pbench test-compile exec:exec -Dbench.main=com.gooddata.agent.UploadBenchmark
+ * -Dbench.args="files=50 sizes=1M parallelism=8 latency=20 failure_rate=0.02"</tt>
+ */
+public class UploadBenchmark {
+	private static final String MAIN_FILE = "manifest.txt";
+
+	private final Map<String, String> params = new LinkedHashMap<String, String>();
+
+	private UploadBenchmark(String[] args) {
+		params.put("files", "20");
+		params.put("sizes", "64K,1M,16M");
+		params.put("runs", "3");
+		params.put("parallelism", "4");
+		params.put("part_size", "0");
+		params.put("rate_limit", "0");
+		params.put("max_retries", "5");
+		params.put("retry_delay", "100");
+		params.put("latency", "0");
+		params.put("bandwidth", "0");
+		params.put("failure_rate", "0");
+		params.put("failure_status", "502");
+		params.put("drop_rate", "0");
+		for (String arg : args) {
+			final int eq = arg.indexOf('=');
+			if (eq < 0 || !params.containsKey(arg.substring(0, eq))) {
+				throw new IllegalArgumentException("Unknown parameter " + arg + ", expected one of " + params.keySet());
+			}
+			params.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		new UploadBenchmark(args).run();
+	}
+
+	private void run() throws IOException {
+		System.out.println("Parameters: " + params);
+		final File dir = new File(System.getProperty("java.io.tmpdir"), "gdca-upload-bench-" + System.nanoTime());
+		final LocalWebDavServer server = new LocalWebDavServer();
+		server.setLatency(number("latency"));
+		server.setBandwidth(size("bandwidth"));
+		server.setFailureRate(Double.parseDouble(params.get("failure_rate")));
+		server.setFailureStatus((int)number("failure_status"));
+		server.setDropRate(Double.parseDouble(params.get("drop_rate")));
+		server.start();
+		try {
+			final Map<File, String> files = createFiles(dir);
+			long bytes = 0;
+			for (File file : files.keySet()) {
+				bytes += file.length();
+			}
+			final int runs = (int)number("runs");
+			for (int run = 0; run <= runs; run++) {
+				server.reset();
+				final Uploader uploader = createUploader(server.getUrl());
+				final long start = System.nanoTime();
+				uploader.upload(files, "", MAIN_FILE);
+				final double seconds = (System.nanoTime() - start) / 1e9;
+				final List<Long> latencies = server.getPutLatencies();
+				Collections.sort(latencies);
+				System.out.println(format("%s: %d files, %.1f MB in %.2f s, %.1f MB/s, PUT latency p50 %d ms,"
+						+ " p99 %d ms, %s, server %s %d fault(s)",
+						(run == 0) ? "warm-up" : "run " + run, files.size(), bytes / 1048576.0, seconds,
+						bytes / 1048576.0 / seconds, percentile(latencies, 50), percentile(latencies, 99),
+						uploader.getStats(), server.getRequests(), server.getFaults()));
+			}
+		} finally {
+			server.stop();
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	private Uploader createUploader(String url) {
+		final Uploader uploader = new Uploader(url, "bench", "bench");
+		uploader.setParallelism((int)number("parallelism"));
+		uploader.setMaxConnectionsPerHost((int)number("parallelism"));
+		uploader.setPartSize(size("part_size"));
+		if (size("rate_limit") > 0) {
+			uploader.setRateLimiter(new RateLimiter(size("rate_limit")));
+		}
+		uploader.getRetryPolicy().setMaxRetries((int)number("max_retries"));
+		uploader.getRetryPolicy().setBaseDelay(number("retry_delay"));
+		return uploader;
+	}
+
+	/**
+	 * Writes the files of random content and the main file listing them
+	 */
+	private Map<File, String> createFiles(File dir) throws IOException {
+		if (!dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		final String[] sizes = params.get("sizes").split(",");
+		final byte[] block = new byte[1024 * 1024];
+		new Random(42).nextBytes(block);
+		final Map<File, String> files = new LinkedHashMap<File, String>();
+		final StringBuilder manifest = new StringBuilder();
+		for (int i = 0; i < number("files"); i++) {
+			final String name = format("data%04d.bin", i);
+			final File file = new File(dir, name);
+			final OutputStream out = new FileOutputStream(file);
+			try {
+				// each file starts at another place so that they differ
+				int off = (int)((i * 7919L) % block.length);
+				for (long left = parseSize(sizes[i % sizes.length]); left > 0; off = 0) {
+					final int len = (int)Math.min(left, block.length - off);
+					out.write(block, off, len);
+					left -= len;
+				}
+			} finally {
+				out.close();
+			}
+			files.put(file, name);
+			manifest.append(name).append('\n');
+		}
+		final File main = new File(dir, MAIN_FILE);
+		FileUtils.writeStringToFile(main, manifest.toString(), "UTF-8");
+		files.put(main, MAIN_FILE);
+		return files;
+	}
+
+	private static long percentile(List<Long> sorted, int percent) {
+		if (sorted.isEmpty()) {
+			return 0;
+		}
+		final int index = (int)Math.ceil(percent / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(0, index));
+	}
+
+	private long number(String name) {
+		return Long.parseLong(params.get(name));
+	}
+
+	private long size(String name) {
+		return parseSize(params.get(name));
+	}
+
+	/**
+	 * @return number of bytes of a value with an optional K, M or G suffix
+	 */
+	private static long parseSize(String value) {
+		value = value.trim().toUpperCase();
+		final int unit = "KMG".indexOf(value.charAt(value.length() - 1));
+		if (unit < 0) {
+			return Long.parseLong(value);
+		}
+		return Long.parseLong(value.substring(0, value.length() - 1)) << (10 * (unit + 1));
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent.jdbc;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import org.h2.tools.SimpleResultSet;
+
+/**
+ * Generates the rows used by the benchmarks, either into an embedded H2
+ * table or into an in-memory result set. Both contain the same values.
+ * The <tt>columns</tt> parameter selects one of the column sets:
+ * <ul>
+ * <li><tt>mixed</tt> - numbers, text, dates and timestamps</li>
+ * <li><tt>numeric</tt> - integral, decimal and floating point numbers</li>
+ * <li><tt>text</tt> - strings, some of them to be quoted</li>
+ * </ul>
+ */
+final class BenchmarkData {
+	static final String TABLE = "BENCH";
+	private static final long EPOCH = Timestamp.valueOf("2014-01-01 00:00:00").getTime();
+	private static final long DAY = 24L * 3600 * 1000;
+
+	private final String[] names;
+	private final String[] ddlTypes;
+	private final int[] sqlTypes;
+
+	BenchmarkData(String columns) {
+		if ("mixed".equals(columns)) {
+			names = new String[] { "ID", "NAME", "AMOUNT", "RATIO", "ACTIVE", "CREATED", "UPDATED" };
+			ddlTypes = new String[] { "BIGINT", "VARCHAR(64)", "DECIMAL(12,2)", "DOUBLE", "BOOLEAN", "DATE", "TIMESTAMP" };
+			sqlTypes = new int[] { Types.BIGINT, Types.VARCHAR, Types.DECIMAL, Types.DOUBLE, Types.BOOLEAN, Types.DATE, Types.TIMESTAMP };
+		} else if ("numeric".equals(columns)) {
+			names = new String[] { "ID", "QUANTITY", "CUSTOMER_ID", "PRICE", "WEIGHT" };
+			ddlTypes = new String[] { "BIGINT", "INTEGER", "BIGINT", "DECIMAL(18,4)", "DOUBLE" };
+			sqlTypes = new int[] { Types.BIGINT, Types.INTEGER, Types.BIGINT, Types.DECIMAL, Types.DOUBLE };
+		} else if ("text".equals(columns)) {
+			names = new String[] { "ID", "NAME", "NOTE", "CODE" };
+			ddlTypes = new String[] { "BIGINT", "VARCHAR(64)", "VARCHAR(256)", "VARCHAR(32)" };
+			sqlTypes = new int[] { Types.BIGINT, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR };
+		} else {
+			throw new IllegalArgumentException("Unknown column set: " + columns);
+		}
+	}
+
+	/**
+	 * Creates and fills the benchmark table of an in-memory H2 database
+	 */
+	void createTable(String url, int rows) throws SQLException {
+		final Connection conn = DriverManager.getConnection(url, "sa", "");
+		try {
+			final StringBuilder ddl = new StringBuilder("CREATE TABLE ").append(TABLE).append(" (");
+			final StringBuilder params = new StringBuilder();
+			for (int i = 0; i < names.length; i++) {
+				ddl.append((i > 0) ? ", " : "").append(names[i]).append(' ').append(ddlTypes[i]);
+				params.append((i > 0) ? ", ?" : "?");
+			}
+			final Statement stmt = conn.createStatement();
+			try {
+				stmt.execute("DROP TABLE IF EXISTS " + TABLE);
+				stmt.execute(ddl.append(')').toString());
+			} finally {
+				stmt.close();
+			}
+			conn.setAutoCommit(false);
+			final PreparedStatement insert = conn.prepareStatement(
+					"INSERT INTO " + TABLE + " VALUES (" + params + ")");
+			try {
+				for (int row = 0; row < rows; row++) {
+					for (int i = 0; i < names.length; i++) {
+						insert.setObject(i + 1, value(i, row));
+					}
+					insert.addBatch();
+					if (row % 1000 == 999) {
+						insert.executeBatch();
+					}
+				}
+				insert.executeBatch();
+			} finally {
+				insert.close();
+			}
+			conn.commit();
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * @return the rows in a result set that can be read repeatedly after
+	 * 		calling {@link SimpleResultSet#beforeFirst()}
+	 */
+	SimpleResultSet resultSet(int rows) {
+		final SimpleResultSet rs = new SimpleResultSet();
+		rs.setAutoClose(false);
+		for (int i = 0; i < names.length; i++) {
+			rs.addColumn(names[i], sqlTypes[i], 0, (sqlTypes[i] == Types.DECIMAL) ? 4 : 0);
+		}
+		final Object[] values = new Object[names.length];
+		for (int row = 0; row < rows; row++) {
+			for (int i = 0; i < names.length; i++) {
+				values[i] = value(i, row);
+			}
+			rs.addRow(values.clone());
+		}
+		return rs;
+	}
+
+	private Object value(int column, long row) {
+		if (column == 0) {
+			return row;
+		}
+		if (row % 97 == 0) {
+			return null;
+		}
+		switch (sqlTypes[column]) {
+		case Types.INTEGER:
+			return (int)(row * 31 % 100000);
+		case Types.BIGINT:
+			return row * 7919 % 1000003;
+		case Types.DECIMAL:
+			return BigDecimal.valueOf(row * 7919 % 100000000, 2);
+		case Types.DOUBLE:
+			return row / 7.0;
+		case Types.BOOLEAN:
+			return row % 3 == 0;
+		case Types.DATE:
+			return new Date(EPOCH + (row % 3650) * DAY);
+		case Types.TIMESTAMP:
+			return new Timestamp(EPOCH + row * 1000 + row % 1000);
+		default:
+			if ("NOTE".equals(names[column]) && row % 10 == 0) {
+				return "He said \"hello, world\" on row " + row;
+			}
+			return names[column].toLowerCase() + " of row " + row;
+		}
+	}
+}
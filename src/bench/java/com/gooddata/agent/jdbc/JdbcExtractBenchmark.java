@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent.jdbc;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extracts a table of an embedded H2 database into CSV files with
+ * {@link JdbcExtractor#extract(List)}, i.e. runs the query, encodes the
+ * rows and writes them to the disk. With <tt>parallelism</tt> above 1 the
+ * table is partitioned by its key into as many ranges.
+ * <p>
+ * The queries run in the extractor's own threads, so the allocation rate
+ * reported by <tt>-prof gc</tt> for the benchmark thread does not cover
+ * them; look at <tt>gc.count</tt> and <tt>gc.time</tt> instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class JdbcExtractBenchmark {
+	@Param({ "100000" })
+	public int rows;
+
+	@Param({ "mixed", "numeric", "text" })
+	public String columns;
+
+	@Param({ "1" })
+	public int parallelism;
+
+	@Param({ "false" })
+	public boolean streaming;
+
+	private String url;
+	private JdbcExtractor extractor;
+	private List<JdbcDataset> datasets;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		url = "jdbc:h2:mem:bench_" + columns + ";DB_CLOSE_DELAY=-1";
+		new BenchmarkData(columns).createTable(url, rows);
+		final JdbcConnector connector = new JdbcConnector();
+		connector.setDriver("org.h2.Driver");
+		connector.setJdbcUrl(url);
+		connector.setUsername("sa");
+		connector.setPassword("");
+		connector.setMaxPoolSize(parallelism);
+		extractor = new JdbcExtractor(connector);
+		extractor.setParallelism(parallelism);
+		extractor.setStreaming(streaming);
+		final JdbcDataset dataset = new JdbcDataset("bench", "SELECT * FROM " + BenchmarkData.TABLE);
+		if (parallelism > 1) {
+			dataset.setPartitionColumn("ID");
+			dataset.setPartitions(parallelism);
+		}
+		datasets = Collections.singletonList(dataset);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		extractor.getConnector().close();
+		final Connection conn = DriverManager.getConnection(url, "sa", "");
+		try {
+			conn.createStatement().execute("SHUTDOWN");
+		} finally {
+			conn.close();
+		}
+	}
+
+	@Benchmark
+	public long extract(RowCounters counters) throws Exception {
+		final File dir = extractor.extract(datasets);
+		long bytes = 0;
+		for (File file : dir.listFiles()) {
+			bytes += file.length();
+			file.delete();
+		}
+		dir.delete();
+		counters.rows += rows;
+		counters.bytes += bytes;
+		return bytes;
+	}
+}
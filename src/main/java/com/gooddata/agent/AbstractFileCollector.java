@@ -26,16 +26,26 @@ package com.gooddata.agent;
 import static java.lang.String.format;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.io.filefilter.WildcardFileFilter;
+import org.apache.commons.io.FilenameUtils;
 
 public class AbstractFileCollector {
 	protected final Map <String, File> inputFilesMap = new HashMap<String, File>();
+	/** temporary files created by collecting, deleted by {@link #cleanup()} */
+	protected final List<File> tempFiles = new ArrayList<File>();
+	private long maxRowsPerFile = 0,
+	             maxBytesPerFile = 0,
+	             partSize = 0;
 	
 	/* (non-Javadoc)
 	 * @see com.gooddata.agent.Collector#add(java.lang.String, java.lang.String)
@@ -48,14 +58,101 @@ public class AbstractFileCollector {
 	 * @see com.gooddata.agent.Collector#add(java.io.File, java.lang.String)
 	 */
 	public void add(File inputDir, String wildcard) throws IOException {
-        FileFilter fileFilter = new WildcardFileFilter(wildcard);
-        File[] inputFiles = inputDir.listFiles(fileFilter);
-        if (inputFiles == null || inputFiles.length == 0) {
-        	throw new FileNotFoundException(
-    			format("No files matching '%s' found under '%s'", wildcard, inputDir));
-        }
-        for (final File file : inputFiles) {
-        	inputFilesMap.put(file.getName(), file);
-        }		
+		final DirectoryStream<Path> files;
+		try {
+			files = Files.newDirectoryStream(inputDir.toPath());
+		} catch (NoSuchFileException e) {
+			throw new FileNotFoundException(format("Input directory '%s' does not exist", inputDir));
+		}
+		int found = 0;
+		try {
+			for (final Path path : files) {
+				final File file = path.toFile();
+				if (FilenameUtils.wildcardMatch(file.getName(), wildcard) && file.isFile()) {
+					add(file.getName(), file);
+					found++;
+				}
+			}
+		} finally {
+			files.close();
+		}
+		if (found == 0) {
+			throw new FileNotFoundException(
+				format("No files matching '%s' found under '%s'", wildcard, inputDir));
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gooddata.agent.Collector#add(com.gooddata.agent.FileScanner)
+	 */
+	public void add(FileScanner scanner) throws IOException {
+		final int found = scanner.scan(new FileScanner.Visitor() {
+			public void visit(String path, File file) throws IOException {
+				add(path, file);
+			}
+		});
+		if (found == 0) {
+			throw new FileNotFoundException(
+				format("No files matching '%s' found under %s", scanner.getPattern(), scanner.getRoots()));
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gooddata.agent.Collector#add(java.lang.String, java.io.File)
+	 */
+	public void add(String name, File file) throws IOException {
+		final File previous = inputFilesMap.put(name, file);
+		if (previous != null && !previous.equals(file)) {
+			throw new IOException(format("Both '%s' and '%s' would be collected as '%s'", previous, file, name));
+		}
+	}
+
+	public void setMaxRowsPerFile(long maxRowsPerFile) {
+		this.maxRowsPerFile = maxRowsPerFile;
+	}
+
+	public void setMaxBytesPerFile(long maxBytesPerFile) {
+		this.maxBytesPerFile = maxBytesPerFile;
+	}
+
+	public void setPartSize(long partSize) {
+		this.partSize = partSize;
+	}
+
+	/**
+	 * @return a new temporary file to be deleted by {@link #cleanup()}
+	 */
+	protected File tempFile(String suffix) throws IOException {
+		final File file = File.createTempFile("gdca-", suffix);
+		tempFiles.add(file);
+		return file;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gooddata.agent.Collector#cleanup()
+	 */
+	public void cleanup() {
+		for (File file : tempFiles) {
+			file.delete();
+		}
+		tempFiles.clear();
+	}
+
+	/**
+	 * @return the name a collected file is found under once uploaded
+	 */
+	protected String uploadedName(String remoteName, File file) {
+		return Uploader.remoteName(remoteName, file, partSize);
+	}
+
+	/**
+	 * @return splitter of the collected files or <tt>null</tt> if their
+	 * 		size is not limited
+	 */
+	protected CsvSplitter splitter() {
+		if (maxRowsPerFile > 0 || maxBytesPerFile > 0) {
+			return new CsvSplitter(maxRowsPerFile, maxBytesPerFile);
+		}
+		return null;
 	}
 }
@@ -24,11 +24,20 @@
 package com.gooddata.agent;
 
 import static com.gooddata.agent.CollectorUtils.createZipArchive;
+import static com.gooddata.agent.CollectorUtils.createZipVolumes;
+import static com.gooddata.agent.CollectorUtils.writeZipArchive;
+import static java.lang.String.format;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class ArchiveCollector extends AbstractFileCollector implements Collector {
@@ -36,6 +45,14 @@ public class ArchiveCollector extends AbstractFileCollector implements Collector
 	private final Date now;
 	private final String fileNameTemplate;
 	private String mainFile = null;
+	private String checksumFile = null;
+	private final Map<String, EntrySource> streamedEntries = new LinkedHashMap<String, EntrySource>();
+	private int zipThreads = Runtime.getRuntime().availableProcessors();
+	private int zipBlocksInFlight = 2 * zipThreads;
+	private CompressionStrategy compression = new CompressionStrategy();
+	private long volumeSize = 0;
+	private boolean checksums = false;
+	private ChecksumManifest checksumManifest = null;
 
 	public String getMainFile() {
 		return mainFile;
@@ -46,17 +63,176 @@ public class ArchiveCollector extends AbstractFileCollector implements Collector
 		this.fileNameTemplate = fileNameTemplate;
 	}
 	
+	/**
+	 * The source is written directly into the archive when it is being created
+	 */
+	public void add(String name, EntrySource source) {
+		streamedEntries.put(name, source);
+	}
+
 	/* (non-Javadoc)
 	 * @see com.gooddata.agent.Collector#collect()
 	 */
 	@Override
 	public Map<File,String> collect() throws IOException {
-        final File archive = File.createTempFile("gdca-", ".zip");
-        archive.deleteOnExit();
-        createZipArchive(inputFilesMap, archive.getAbsolutePath());
-        this.mainFile = Utils.generateRemoteFileName(fileNameTemplate, now);
+		if (volumeSize > 0) {
+			return collectVolumes();
+		}
+        final File archive = tempFile(".zip");
+        checksumManifest = checksums ? new ChecksumManifest() : null;
+        createZipArchive(inputFilesMap, streamedEntries, splitter(), compression, checksumManifest,
+                zipThreads, zipBlocksInFlight, archive.getAbsolutePath());
+        final String archiveName = Utils.generateRemoteFileName(fileNameTemplate, now);
+        // a large archive is found under its list of parts once uploaded
+        this.mainFile = uploadedName(archiveName, archive);
+        this.checksumFile = archiveName + ChecksumManifest.SUFFIX;
         Map<File,String> result = new HashMap<File, String>();
-        result.put(archive, mainFile);
+        result.put(archive, archiveName);
+        addChecksumFile(result);
         return result;
 	}
+
+	/**
+	 * Creates the archive volumes and an index file listing their names,
+	 * which becomes the main file
+	 */
+	private Map<File, String> collectVolumes() throws IOException {
+		checksumManifest = checksums ? new ChecksumManifest() : null;
+		final List<File> volumes = createZipVolumes(inputFilesMap, streamedEntries, splitter(), compression,
+				checksumManifest, zipThreads, zipBlocksInFlight, volumeSize);
+		tempFiles.addAll(volumes);
+		final String archiveName = Utils.generateRemoteFileName(fileNameTemplate, now);
+		final String baseName = archiveName.replaceAll("(?i)\\.zip$", "");
+		final File index = tempFile(".txt");
+		final Map<File, String> result = new LinkedHashMap<File, String>();
+		final Writer indexWriter = new OutputStreamWriter(new FileOutputStream(index), "UTF-8");
+		try {
+			for (int i = 0; i < volumes.size(); i++) {
+				final String volumeName = format("%s.%03d.zip", baseName, i + 1);
+				indexWriter.write(uploadedName(volumeName, volumes.get(i)) + "\n");
+				result.put(volumes.get(i), volumeName);
+			}
+		} finally {
+			indexWriter.close();
+		}
+		final String indexName = baseName + ".txt";
+		this.mainFile = uploadedName(indexName, index);
+		this.checksumFile = indexName + ChecksumManifest.SUFFIX;
+		result.put(index, indexName);
+		addChecksumFile(result);
+		return result;
+	}
+
+	private void addChecksumFile(Map<File, String> result) throws IOException {
+		if (checksumManifest == null) {
+			return;
+		}
+		final File file = tempFile(ChecksumManifest.SUFFIX);
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			checksumManifest.writeTo(out);
+		} finally {
+			out.close();
+		}
+		result.put(file, getChecksumFile());
+	}
+
+	/**
+	 * Nothing to be saved, the whole archive is uploaded every time
+	 */
+	public void commit() {
+	}
+
+	/**
+	 * An alternative to {@link #collect()} that does not create a local
+	 * archive; the archive is written when the returned source is read,
+	 * e.g. directly into an upload. Sets the main file name.
+	 */
+	public EntrySource stream() {
+		this.mainFile = Utils.generateRemoteFileName(fileNameTemplate, now);
+		this.checksumFile = mainFile + ChecksumManifest.SUFFIX;
+		final CsvSplitter splitter = splitter();
+		checksumManifest = checksums ? new ChecksumManifest() : null;
+		return new EntrySource() {
+			public void writeTo(OutputStream out) throws IOException {
+				writeZipArchive(inputFilesMap, streamedEntries, splitter, compression, checksumManifest,
+						zipThreads, zipBlocksInFlight, out);
+			}
+		};
+	}
+
+	/**
+	 * @return digests of the archive entries once the archive is written,
+	 * 		<tt>null</tt> if they are not taken
+	 */
+	public ChecksumManifest getChecksums() {
+		return checksumManifest;
+	}
+
+	/**
+	 * @return remote name of the checksum file
+	 */
+	public String getChecksumFile() {
+		return checksumFile;
+	}
+
+	public boolean isChecksums() {
+		return checksums;
+	}
+
+	/**
+	 * @param checksums whether to take the SHA-256 digests of the archive
+	 * 		entries while writing them, they are uploaded in a file named
+	 * 		after the archive or the index with the <tt>.sha256</tt> suffix
+	 */
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+
+	public int getZipThreads() {
+		return zipThreads;
+	}
+
+	/**
+	 * @param zipThreads number of threads compressing the archive
+	 */
+	public void setZipThreads(int zipThreads) {
+		this.zipThreads = zipThreads;
+	}
+
+	public int getZipBlocksInFlight() {
+		return zipBlocksInFlight;
+	}
+
+	/**
+	 * @param zipBlocksInFlight maximum number of 1 MB blocks being compressed
+	 * 		or waiting to be written, this bounds the memory used
+	 */
+	public void setZipBlocksInFlight(int zipBlocksInFlight) {
+		this.zipBlocksInFlight = zipBlocksInFlight;
+	}
+
+	public long getVolumeSize() {
+		return volumeSize;
+	}
+
+	/**
+	 * @param volumeSize size from which the archive continues in a next
+	 * 		volume, 0 for a single archive; the main file is then an index
+	 * 		listing the volume names
+	 */
+	public void setVolumeSize(long volumeSize) {
+		this.volumeSize = volumeSize;
+	}
+
+	public CompressionStrategy getCompression() {
+		return compression;
+	}
+
+	/**
+	 * @param compression chooses the compression of each archive entry
+	 */
+	public void setCompression(CompressionStrategy compression) {
+		this.compression = compression;
+	}
 }
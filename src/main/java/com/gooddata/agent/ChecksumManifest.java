@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SHA-256 digests of files in the format of <tt>sha256sum</tt>, so that
+ * they can be checked with <tt>sha256sum -c</tt>. The digests are taken
+ * while the data is being written anyway, the files are not read again.
+ */
+public class ChecksumManifest implements EntrySource {
+	public static final String ALGORITHM = "SHA-256";
+	/** suffix of the checksum file name added to the name of the main file */
+	public static final String SUFFIX = ".sha256";
+
+	private final Map<String, byte[]> digests = new LinkedHashMap<String, byte[]>();
+
+	/**
+	 * @return a new digest to be passed to {@link #add(String, MessageDigest)}
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Adds the digest of a file, files may be added from several threads
+	 */
+	public synchronized void add(String name, MessageDigest digest) {
+		digests.put(name, digest.digest());
+	}
+
+	public synchronized boolean isEmpty() {
+		return digests.isEmpty();
+	}
+
+	public synchronized void writeTo(OutputStream out) throws IOException {
+		final StringBuilder lines = new StringBuilder();
+		for (Map.Entry<String, byte[]> e : digests.entrySet()) {
+			lines.append(hex(e.getValue())).append("  ").append(e.getKey()).append('\n');
+		}
+		out.write(lines.toString().getBytes("UTF-8"));
+	}
+
+	public static String hex(byte[] digest) {
+		final StringBuilder hex = new StringBuilder();
+		for (byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
@@ -34,11 +34,63 @@ public interface Collector {
 
 	public abstract void add(File inputDir, String wildcard) throws IOException;
 
+	/**
+	 * Adds the files found by a scanner, named by their paths relative
+	 * to the scanned directories
+	 */
+	public abstract void add(FileScanner scanner) throws IOException;
+
+	/**
+	 * Adds a single file
+	 * @param name the file name, may include a relative path
+	 * @throws IOException if another file of that name was added already
+	 */
+	public abstract void add(String name, File file) throws IOException;
+
+	/**
+	 * Adds a file whose content is produced while collecting
+	 * @param name the file name
+	 * @param source writes the file content
+	 * @throws UnsupportedOperationException if the collector needs local files
+	 */
+	public abstract void add(String name, EntrySource source);
+
+	/**
+	 * @param maxRowsPerFile maximum number of data rows in a collected CSV
+	 * 		file, larger files are split into parts; 0 for no limit
+	 */
+	public abstract void setMaxRowsPerFile(long maxRowsPerFile);
+
+	/**
+	 * @param maxBytesPerFile maximum size of a collected CSV file, larger
+	 * 		files are split into parts; 0 for no limit
+	 */
+	public abstract void setMaxBytesPerFile(long maxBytesPerFile);
+
+	/**
+	 * @param partSize part size of the {@link Uploader}; files larger than
+	 * 		this are uploaded as lists of parts, so the lists of collected
+	 * 		files name them <tt>NAME.parts</tt>
+	 */
+	public abstract void setPartSize(long partSize);
+
 	/**
 	 * @return map of local files to remote file names
 	 * @throws IOException
 	 */
 	public abstract Map<File, String> collect() throws IOException;
+
+	/**
+	 * Saves the state kept between runs, to be called once the collected
+	 * files have been uploaded
+	 */
+	public abstract void commit() throws IOException;
+
+	/**
+	 * Deletes the temporary files created by {@link #collect()}, to be
+	 * called once they have been uploaded or the upload has failed
+	 */
+	public abstract void cleanup();
 	
 	public String getMainFile();
 
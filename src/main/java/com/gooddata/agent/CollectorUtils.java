@@ -32,13 +32,24 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.Deflater;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 
 public class CollectorUtils {
+    /**
+     * Time of all entries (zip times start in 1980, earlier times become
+     * 1980-01-01); extracts are written anew on every run, so with their
+     * file times the same data would never give the same archive and an
+     * interrupted upload of it could not continue
+     */
+    private static final long ENTRY_TIME = 0;
 
     /**
      * Creates new zipFile which will contain all files listed in attribute _csvFiles_ and dataSetManifest.
@@ -48,36 +59,179 @@ public class CollectorUtils {
      * @param csvFiles map of files to be included in ZIP file. Key=file-name in ZIP file, value=path to that file on filesystem.
      * @param zipArchivePathName full-path & name of the new zip file
      */
-    protected static void createZipArchive(final Map<String, File> csvFiles, final String zipArchivePathName) {
-        ZipOutputStream out = null;
+    protected static void createZipArchive(final Map<String, File> csvFiles, final String zipArchivePathName)
+            throws IOException {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        createZipArchive(csvFiles, Collections.<String, EntrySource>emptyMap(), null, new CompressionStrategy(), null,
+                threads, 2 * threads, zipArchivePathName);
+    }
 
+    /**
+     * Creates new zipFile which will contain all files listed in attribute _csvFiles_
+     * followed by the content written by the _streamedEntries_.
+     *
+     * @param csvFiles map of files to be included in ZIP file. Key=file-name in ZIP file, value=path to that file on filesystem.
+     * @param streamedEntries map of entries written directly into the ZIP file. Key=file-name in ZIP file, value=content writer.
+     * @param splitter splits large files into several entries, may be <tt>null</tt>
+     * @param compression chooses the compression of each entry
+     * @param checksums receives the digests of the entries, may be <tt>null</tt>
+     * @param threads number of threads compressing the data
+     * @param maxBlocksInFlight maximum number of 1 MB blocks being compressed at the same time
+     * @param zipArchivePathName full-path & name of the new zip file
+     */
+    protected static void createZipArchive(final Map<String, File> csvFiles, final Map<String, EntrySource> streamedEntries,
+            final CsvSplitter splitter, final CompressionStrategy compression, final ChecksumManifest checksums,
+            int threads, int maxBlocksInFlight, final String zipArchivePathName) throws IOException {
+        final ParallelZipOutputStream out;
         try {
-            out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipArchivePathName)));
+            out = new ParallelZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipArchivePathName)),
+                    threads, maxBlocksInFlight);
+        } catch (FileNotFoundException e) {
+            throw new IOException(format("The zip archive file %s cannot be created", zipArchivePathName), e);
+        }
+        boolean done = false;
+        try {
+            out.setChecksums(checksums);
+            writeZipEntries(csvFiles, streamedEntries, splitter, compression, single(out));
+            done = true;
+        } finally {
+            close(out, done);
+        }
+    }
 
-            for (Map.Entry<String, File> entry : csvFiles.entrySet()) {
-                out.putNextEntry(new ZipEntry(entry.getKey()));
-                copyFileToZip(entry.getValue(), out);
+    /**
+     * Writes a zip archive with the same content as
+     * {@link #createZipArchive(Map, Map, CsvSplitter, CompressionStrategy, ChecksumManifest, int, int, String)}
+     * into a stream, e.g. directly into an upload.
+     *
+     * @param out the stream receiving the archive; it is not closed
+     */
+    protected static void writeZipArchive(final Map<String, File> csvFiles, final Map<String, EntrySource> streamedEntries,
+            final CsvSplitter splitter, final CompressionStrategy compression, final ChecksumManifest checksums,
+            int threads, int maxBlocksInFlight, final OutputStream out) throws IOException {
+        final ParallelZipOutputStream zip = new ParallelZipOutputStream(new CloseShieldOutputStream(out),
+                threads, maxBlocksInFlight);
+        zip.setChecksums(checksums);
+        boolean done = false;
+        try {
+            writeZipEntries(csvFiles, streamedEntries, splitter, compression, single(zip));
+            done = true;
+        } finally {
+            close(zip, done);
+        }
+    }
+
+    /**
+     * Creates zip archives (volumes) of about the given size with the same content as
+     * {@link #createZipArchive(Map, Map, CsvSplitter, CompressionStrategy, ChecksumManifest, int, int, String)}.
+     * Each volume is a complete archive. A new volume is started by the first entry that
+     * finds the current one full, entries are never split across volumes.
+     *
+     * @param volumeSize size from which no more entries are added to a volume
+     * @return the volume files in order, to be deleted by the caller; none are left if writing fails
+     */
+    protected static List<File> createZipVolumes(final Map<String, File> csvFiles, final Map<String, EntrySource> streamedEntries,
+            final CsvSplitter splitter, final CompressionStrategy compression, final ChecksumManifest checksums,
+            final int threads, final int maxBlocksInFlight, final long volumeSize) throws IOException {
+        final List<File> volumes = new ArrayList<File>();
+        final ParallelZipOutputStream[] current = new ParallelZipOutputStream[1];
+        boolean done = false;
+        try {
+            writeZipEntries(csvFiles, streamedEntries, splitter, compression, new ZipStreams() {
+                public ParallelZipOutputStream next() throws IOException {
+                    if (current[0] != null) {
+                        // the size is known once the compressed blocks are written out
+                        current[0].closeEntry();
+                        current[0].flush();
+                        if (current[0].getBytesWritten() < volumeSize) {
+                            return current[0];
+                        }
+                        current[0].close();
+                    }
+                    final File volume = File.createTempFile("gdca-", ".zip");
+                    volumes.add(volume);
+                    current[0] = new ParallelZipOutputStream(new BufferedOutputStream(new FileOutputStream(volume)),
+                            threads, maxBlocksInFlight);
+                    current[0].setChecksums(checksums);
+                    return current[0];
+                }
+            });
+            done = true;
+        } finally {
+            if (current[0] != null) {
+                close(current[0], done);
             }
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(format("The zip archive file %s cannot be created!", zipArchivePathName), e);
+            if (!done) {
+                for (File volume : volumes) {
+                    volume.delete();
+                }
+            }
+        }
+        return volumes;
+    }
+
+    /**
+     * Closes an archive; if writing it failed, an error while closing must
+     * not replace the error that broke it
+     */
+    private static void close(ParallelZipOutputStream out, boolean done) throws IOException {
+        if (done) {
+            out.close();
+            return;
+        }
+        try {
+            out.close();
         } catch (IOException e) {
-            throw new RuntimeException("IO problem occured during zipping the archive!", e);
-        } finally {
-        	if (out != null) {
-        		try {
-        			out.close();
-        		} catch (IOException e) {
-        			throw new RuntimeException(format("Error closing the zip archive file %s", zipArchivePathName), e);
-        		}
-        	}
-            // IOUtils.closeQuietly(out);
+            // the archive is broken anyway, the original error is reported
+        }
+    }
+
+    /**
+     * Supplies the archive the next entry is written into
+     */
+    private interface ZipStreams {
+        ParallelZipOutputStream next() throws IOException;
+    }
+
+    private static ZipStreams single(final ParallelZipOutputStream out) {
+        return new ZipStreams() {
+            public ParallelZipOutputStream next() {
+                return out;
+            }
+        };
+    }
+
+    private static void writeZipEntries(final Map<String, File> csvFiles, final Map<String, EntrySource> streamedEntries,
+            final CsvSplitter splitter, final CompressionStrategy compression, ZipStreams streams)
+            throws IOException {
+        for (Map.Entry<String, File> entry : csvFiles.entrySet()) {
+            final int level = compression.level(entry.getKey(), entry.getValue());
+            if (splitter != null && splitter.isSplit(entry.getKey(), entry.getValue())) {
+                // the checksums of the parts are not known up front
+                splitFileToZip(entry.getKey(), entry.getValue(), splitter,
+                        level == CompressionStrategy.STORED ? Deflater.BEST_SPEED : level, streams);
+            } else if (level == CompressionStrategy.STORED) {
+                final ParallelZipOutputStream out = streams.next();
+                // the checksum is taken while copying and written after the data
+                out.putNextStoredEntry(entry.getKey(), ENTRY_TIME, entry.getValue().length());
+                copyFileToZip(entry.getValue(), out);
+            } else {
+                final ParallelZipOutputStream out = streams.next();
+                out.putNextEntry(entry.getKey(), ENTRY_TIME, level, entry.getValue().length());
+                copyFileToZip(entry.getValue(), out);
+            }
+        }
+        for (Map.Entry<String, EntrySource> entry : streamedEntries.entrySet()) {
+            final ParallelZipOutputStream out = streams.next();
+            out.putNextEntry(entry.getKey(), ENTRY_TIME, compression.level(entry.getKey()), -1);
+            entry.getValue().writeTo(out);
         }
     }
 
     /**
      * Stolen from {@link com.gooddata.restapi.upload.impl.AbstractUploader}
      */
-    private static void copyFileToZip(File csvFile, ZipOutputStream out) throws IOException {
+    private static void copyFileToZip(File csvFile, OutputStream out) throws IOException {
         InputStream is = null;
         try {
             is = new FileInputStream(csvFile);
@@ -86,4 +240,26 @@ public class CollectorUtils {
             IOUtils.closeQuietly(is);
         }
     }
+
+    /**
+     * Writes the parts of a split file as separate entries
+     */
+    private static void splitFileToZip(final String name, File csvFile, CsvSplitter splitter, final int level,
+            final ZipStreams streams) throws IOException {
+        // no part is larger than the whole file
+        final long maxPartSize = csvFile.length();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(csvFile);
+            splitter.split(is, new CsvSplitter.Parts() {
+                public OutputStream next(int part) throws IOException {
+                    final ParallelZipOutputStream out = streams.next();
+                    out.putNextEntry(CsvSplitter.partName(name, part), ENTRY_TIME, level, maxPartSize);
+                    return out;
+                }
+            });
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Chooses how each archive entry is compressed. Files matching an
+ * override get the configured level, files that are compressed already
+ * (by their extension or because a sample of their beginning does not
+ * compress) are stored, large files are deflated at a faster level.
+ */
+public class CompressionStrategy {
+	/** the level of entries stored without compression */
+	public static final int STORED = Deflater.NO_COMPRESSION;
+
+	public static final String[] DEFAULT_STORED_PATTERNS = { "*.gz", "*.tgz", "*.bz2", "*.xz", "*.zst",
+		"*.lz4", "*.snappy", "*.zip", "*.7z", "*.jar", "*.parquet", "*.orc", "*.jpg", "*.jpeg", "*.png",
+		"*.gif", "*.webp", "*.mp3", "*.mp4" };
+
+	/** samples that shrink less than this are considered compressed already */
+	private static final double STORED_RATIO = 0.9;
+
+	private int defaultLevel = Deflater.DEFAULT_COMPRESSION;
+	private long largeFileSize = 256L * 1024 * 1024;
+	private int largeFileLevel = Deflater.BEST_SPEED;
+	private int sampleSize = 64 * 1024;
+	private final Map<PathMatcher, Integer> overrides = new LinkedHashMap<PathMatcher, Integer>();
+	private final List<PathMatcher> storedPatterns = new ArrayList<PathMatcher>();
+
+	public CompressionStrategy() {
+		setStoredPatterns(DEFAULT_STORED_PATTERNS);
+	}
+
+	/**
+	 * @param name the entry name
+	 * @param file the file to be written into the entry
+	 * @return the compression level of the entry, {@link #STORED} if the
+	 * 		entry should not be compressed
+	 */
+	public int level(String name, File file) throws IOException {
+		final Integer override = override(name);
+		if (override != null) {
+			return override;
+		}
+		if (matches(storedPatterns, name) || !isCompressible(file)) {
+			return STORED;
+		}
+		if (largeFileSize > 0 && file.length() >= largeFileSize) {
+			return largeFileLevel;
+		}
+		return defaultLevel;
+	}
+
+	/**
+	 * @param name the entry name
+	 * @return the compression level of an entry whose content is not known
+	 * 		beforehand, such entries are never stored; the default deflate
+	 * 		level is used where the configuration says to store
+	 */
+	public int level(String name) {
+		final Integer override = override(name);
+		if (override != null && override != STORED) {
+			return override;
+		}
+		return (defaultLevel != STORED) ? defaultLevel : Deflater.DEFAULT_COMPRESSION;
+	}
+
+	private Integer override(String name) {
+		for (Map.Entry<PathMatcher, Integer> e : overrides.entrySet()) {
+			if (e.getKey().matches(Paths.get(name).getFileName())) {
+				return e.getValue();
+			}
+		}
+		return null;
+	}
+
+	private static boolean matches(List<PathMatcher> patterns, String name) {
+		for (PathMatcher pattern : patterns) {
+			if (pattern.matches(Paths.get(name).getFileName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Deflates the beginning of the file at the fastest level
+	 */
+	private boolean isCompressible(File file) throws IOException {
+		if (sampleSize <= 0) {
+			return true;
+		}
+		final byte[] sample = new byte[(int)Math.min(sampleSize, file.length())];
+		if (sample.length == 0) {
+			return true;
+		}
+		final DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(sample);
+		} finally {
+			in.close();
+		}
+		final int length = sample.length;
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		try {
+			deflater.setInput(sample, 0, length);
+			deflater.finish();
+			final byte[] buf = new byte[length + 64];
+			int compressed = 0;
+			while (!deflater.finished()) {
+				compressed += deflater.deflate(buf);
+			}
+			return compressed < length * STORED_RATIO;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static PathMatcher matcher(String pattern) {
+		return FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+	}
+
+	public int getDefaultLevel() {
+		return defaultLevel;
+	}
+
+	/**
+	 * @param defaultLevel the deflate level of the entries not covered
+	 * 		by the other rules
+	 */
+	public void setDefaultLevel(int defaultLevel) {
+		this.defaultLevel = defaultLevel;
+	}
+
+	public long getLargeFileSize() {
+		return largeFileSize;
+	}
+
+	/**
+	 * @param largeFileSize size from which files are deflated at the large
+	 * 		file level, 0 to treat all files alike
+	 */
+	public void setLargeFileSize(long largeFileSize) {
+		this.largeFileSize = largeFileSize;
+	}
+
+	public int getLargeFileLevel() {
+		return largeFileLevel;
+	}
+
+	public void setLargeFileLevel(int largeFileLevel) {
+		this.largeFileLevel = largeFileLevel;
+	}
+
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	/**
+	 * @param sampleSize number of bytes at the beginning of a file checked
+	 * 		for compressibility, 0 not to check
+	 */
+	public void setSampleSize(int sampleSize) {
+		this.sampleSize = sampleSize;
+	}
+
+	/**
+	 * @param patterns glob patterns of the names of files that are stored
+	 * 		without compression, replacing the {@link #DEFAULT_STORED_PATTERNS}
+	 */
+	public void setStoredPatterns(String... patterns) {
+		storedPatterns.clear();
+		for (String pattern : patterns) {
+			storedPatterns.add(matcher(pattern));
+		}
+	}
+
+	/**
+	 * Sets the level of the files matching a pattern; the first matching
+	 * override applies
+	 * @param pattern glob pattern of file names
+	 * @param level the deflate level or {@link #STORED}
+	 */
+	public void addOverride(String pattern, int level) {
+		overrides.put(matcher(pattern), level);
+	}
+}
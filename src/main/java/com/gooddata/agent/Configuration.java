@@ -25,8 +25,10 @@ package com.gooddata.agent;
 
 import static java.lang.String.format;
 
+import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -34,9 +36,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang.StringUtils;
 
+import com.gooddata.agent.jdbc.JdbcDataset;
+
 public class Configuration {
 	public static final String JDBC_PASSWORD = "jdbc.password";
 
@@ -55,6 +61,14 @@ public class Configuration {
 
    public static final String JDBC_USERNAME = "jdbc.username";
 
+   public static final String JDBC_RESET_WATERMARKS = "jdbc.reset_watermarks";
+
+   /**
+    * The default directory where the agent keeps its state between runs,
+    * such as watermarks of incrementally extracted data sets.
+    */
+   public static final String DEFAULT_STATE_DIR = System.getProperty("user.home") + File.separator + ".gdc-agent";
+
    /**
 	 * The default name of a parameter used to pass the zip file
 	 * with data to be processed.
@@ -184,9 +198,73 @@ public class Configuration {
 		if ("true".equalsIgnoreCase(inputConf.getProperty("gdc.etl.send_credentials"))) {
 		   conf.setSendCredentials(true);
 		}
+		if ("true".equalsIgnoreCase(inputConf.getProperty("gdc.upload.skip_unchanged"))) {
+		   conf.setUploadSkipUnchanged(true);
+		   if (inputConf.getProperty("gdc.upload_manifest") == null) {
+		      conf.errors.put("gdc.upload.skip_unchanged", new IllegalArgumentException(
+		            "gdc.upload.skip_unchanged requires gdc.upload_manifest to be set"));
+		   }
+		}
+		if ("true".equalsIgnoreCase(inputConf.getProperty("gdc.upload.checksums"))) {
+		   conf.setUploadChecksums(true);
+		}
+		if ("true".equalsIgnoreCase(inputConf.getProperty("gdc.upload.streaming"))) {
+		   conf.setUploadStreaming(true);
+		   if (inputConf.getProperty("gdc.upload_archive") == null) {
+		      conf.errors.put("gdc.upload.streaming", new IllegalArgumentException(
+		            "gdc.upload.streaming requires gdc.upload_archive to be set"));
+		   }
+		}
 		// Source files
 		conf.setFsInputDir(inputConf.getProperty("filesystem.input_dir"));
 		conf.setFsWildcard(inputConf.getProperty("filesystem.wildcard"));
+		conf.setFsMaxDepth(positiveInt(inputConf, "filesystem.max_depth", 1, conf.errors));
+		conf.setFsMinSize(sizeValue(inputConf, "filesystem.min_size", conf.errors));
+		conf.setFsMaxSize(sizeValue(inputConf, "filesystem.max_size", conf.errors));
+		conf.setFsMinAge(1000L * nonNegativeInt(inputConf, "filesystem.min_age", 0, conf.errors));
+		conf.setFsMaxAge(1000L * nonNegativeInt(inputConf, "filesystem.max_age", 0, conf.errors));
+		if ("true".equalsIgnoreCase(inputConf.getProperty("filesystem.watch"))) {
+		   conf.setFsWatch(true);
+		   if (inputConf.getProperty("filesystem.input_dir") == null) {
+		      conf.errors.put("filesystem.watch", new IllegalArgumentException(
+		            "filesystem.watch requires filesystem.input_dir to be set"));
+		   } else if (inputConf.getProperty(JDBC_URL) != null) {
+		      conf.errors.put("filesystem.watch", new IllegalArgumentException(
+		            "filesystem.watch cannot be combined with a JDBC data source"));
+		   }
+		}
+		conf.setFsWatchQuietPeriod(1000L * positiveInt(inputConf, "filesystem.watch.quiet_period", 5, conf.errors));
+		conf.setFsWatchBatchWindow(1000L * positiveInt(inputConf, "filesystem.watch.batch_window", 30, conf.errors));
+		conf.setFsWatchBatchFiles(nonNegativeInt(inputConf, "filesystem.watch.batch_files", 0, conf.errors));
+		conf.setFsWatchBatchBytes(sizeValue(inputConf, "filesystem.watch.batch_size", conf.errors));
+		conf.setUploadMaxRowsPerFile(sizeValue(inputConf, "gdc.upload.max_rows_per_file", conf.errors));
+		conf.setUploadMaxBytesPerFile(sizeValue(inputConf, "gdc.upload.max_bytes_per_file", conf.errors));
+		conf.setZipThreads(positiveInt(inputConf, "gdc.upload.zip_threads",
+		      Runtime.getRuntime().availableProcessors(), conf.errors));
+		conf.setZipBlocksInFlight(positiveInt(inputConf, "gdc.upload.zip_blocks_in_flight",
+		      2 * conf.getZipThreads(), conf.errors));
+		conf.setCompression(compressionStrategy(inputConf, conf.errors));
+		conf.setArchiveVolumeSize(sizeValue(inputConf, "gdc.upload.archive_volume_size", conf.errors));
+		if (conf.getArchiveVolumeSize() > 0 && conf.isUploadStreaming()) {
+		   conf.errors.put("gdc.upload.archive_volume_size", new IllegalArgumentException(
+		         "gdc.upload.archive_volume_size cannot be combined with gdc.upload.streaming"));
+		}
+		conf.setUploadParallelism(positiveInt(inputConf, "gdc.upload.parallelism", 1, conf.errors));
+		conf.setUploadMaxConnectionsPerHost(positiveInt(inputConf, "gdc.upload.max_connections_per_host",
+		      conf.getUploadParallelism(), conf.errors));
+		conf.setUploadConnectionTimeout(nonNegativeInt(inputConf, "gdc.upload.connection_timeout", 0, conf.errors));
+		conf.setUploadSocketTimeout(nonNegativeInt(inputConf, "gdc.upload.socket_timeout", 0, conf.errors));
+		conf.setUploadSocketBufferSize((int)Math.min(Integer.MAX_VALUE,
+		      sizeValue(inputConf, "gdc.upload.socket_buffer_size", conf.errors)));
+		conf.setUploadIdleTimeout(positiveInt(inputConf, "gdc.upload.idle_timeout", 30, conf.errors));
+		conf.setUploadPartSize(sizeValue(inputConf, "gdc.upload.part_size", conf.errors));
+		conf.setRetryPolicy(retryPolicy(inputConf, conf.errors));
+		conf.setUploadProgressInterval(nonNegativeInt(inputConf, "gdc.upload.progress_interval", 0, conf.errors));
+		conf.setUploadStallTimeout(nonNegativeInt(inputConf, "gdc.upload.stall_timeout", 0, conf.errors));
+		conf.setRateLimiter(rateLimiter(inputConf, conf.errors));
+		if (inputConf.getProperty("gdc.upload.small_file_size") != null) {
+		   conf.setUploadSmallFileSize(sizeValue(inputConf, "gdc.upload.small_file_size", conf.errors));
+		}
 
 		// JDBC Data Source
 		conf.setJdbcDriver(inputConf.getProperty(JDBC_DRIVER));
@@ -197,9 +275,39 @@ public class Configuration {
 		conf.setJdbcUsername(inputConf.getProperty(JDBC_USERNAME));
 		conf.setJdbcPassword(inputConf.getProperty(JDBC_PASSWORD));
 		conf.setJdbcUrl(inputConf.getProperty(JDBC_URL));
+		conf.setJdbcParallelism(positiveInt(inputConf, "jdbc.parallelism", 1, conf.errors));
+		conf.setJdbcPoolMaxSize(positiveInt(inputConf, "jdbc.pool.max_size", conf.getJdbcParallelism(), conf.errors));
+		conf.setJdbcPoolIdleTimeout(positiveInt(inputConf, "jdbc.pool.idle_timeout", 300, conf.errors));
+		if ("true".equalsIgnoreCase(inputConf.getProperty("jdbc.streaming"))) {
+		   conf.setJdbcStreaming(true);
+		}
+		conf.setJdbcFetchSize(nonNegativeInt(inputConf, "jdbc.fetch_size", 0, conf.errors));
+		conf.setJdbcDateFormat(inputConf.getProperty("jdbc.date_format"));
+		conf.setJdbcTimestampFormat(inputConf.getProperty("jdbc.timestamp_format"));
+		if ("true".equalsIgnoreCase(inputConf.getProperty("jdbc.direct_archive"))) {
+		   conf.setJdbcDirectArchive(true);
+		   if (inputConf.getProperty("gdc.upload_archive") == null) {
+		      conf.errors.put("jdbc.direct_archive", new IllegalArgumentException(
+		            "jdbc.direct_archive requires gdc.upload_archive to be set"));
+		   }
+		}
+		if ("true".equalsIgnoreCase(inputConf.getProperty(JDBC_RESET_WATERMARKS))) {
+		   conf.setJdbcResetWatermarks(true);
+		}
+
+		// Local state kept between runs
+		conf.setStateDir(inputConf.getProperty("agent.state_dir"));
 
 		// JDBC data sets
-		conf.jdbcExtractMappings = buildJdbcExtractMappings(inputConf, "data.", ".sql");
+		conf.jdbcDatasets = buildJdbcDatasets(inputConf, conf.errors);
+		if (conf.isJdbcDirectArchive()) {
+		   for (JdbcDataset dataset : conf.jdbcDatasets) {
+		      if (dataset.isSizeBounded()) {
+		         conf.errors.put("data." + dataset.getName() + ".max_rows_per_file", new IllegalArgumentException(
+		               "size bounded data sets cannot be combined with jdbc.direct_archive"));
+		      }
+		   }
+		}
 		conf.validate(inputConf);
 		return conf;
 	}
@@ -244,6 +352,213 @@ public class Configuration {
 		return value;
 	}
 
+	private static CompressionStrategy compressionStrategy(InputConfiguration props, Map<String, Exception> errors) {
+		final CompressionStrategy compression = new CompressionStrategy();
+		compression.setDefaultLevel(compressionLevel(props, "gdc.upload.compression.level",
+		      compression.getDefaultLevel(), errors));
+		compression.setLargeFileLevel(compressionLevel(props, "gdc.upload.compression.large_file_level",
+		      compression.getLargeFileLevel(), errors));
+		if (props.getProperty("gdc.upload.compression.large_file_size") != null) {
+			compression.setLargeFileSize(sizeValue(props, "gdc.upload.compression.large_file_size", errors));
+		}
+		if (props.getProperty("gdc.upload.compression.sample_size") != null) {
+			compression.setSampleSize((int)Math.min(Integer.MAX_VALUE,
+			      sizeValue(props, "gdc.upload.compression.sample_size", errors)));
+		}
+		final String stored = props.getProperty("gdc.upload.compression.stored");
+		if (stored != null) {
+			compression.setStoredPatterns(StringUtils.split(stored, ", "));
+		}
+		final String overrides = props.getProperty("gdc.upload.compression.overrides");
+		if (overrides != null) {
+			for (String override : StringUtils.split(overrides, ", ")) {
+				final int colon = override.lastIndexOf(':');
+				final Integer level = (colon < 0) ? null : compressionLevel(override.substring(colon + 1));
+				if (level == null) {
+					errors.put("gdc.upload.compression.overrides", new IllegalArgumentException(
+					      "gdc.upload.compression.overrides must list pattern:level pairs, found '" + override + "'"));
+				} else {
+					compression.addOverride(override.substring(0, colon), level);
+				}
+			}
+		}
+		return compression;
+	}
+
+	private static RetryPolicy retryPolicy(InputConfiguration props, Map<String, Exception> errors) {
+		final RetryPolicy retry = new RetryPolicy();
+		// failed uploads are not retried unless asked for
+		retry.setMaxRetries(nonNegativeInt(props, "gdc.upload.retry.max_retries", 0, errors));
+		retry.setBaseDelay(1000L * positiveInt(props, "gdc.upload.retry.base_delay", 1, errors));
+		retry.setMaxDelay(1000L * positiveInt(props, "gdc.upload.retry.max_delay", 60, errors));
+		final String statuses = props.getProperty("gdc.upload.retry.statuses");
+		if (statuses != null) {
+			final List<Integer> codes = new ArrayList<Integer>();
+			for (String status : StringUtils.split(statuses, ", ")) {
+				try {
+					codes.add(Integer.valueOf(status));
+				} catch (NumberFormatException e) {
+					errors.put("gdc.upload.retry.statuses", new IllegalArgumentException(
+					      "gdc.upload.retry.statuses must list HTTP status codes, found '" + status + "'"));
+				}
+			}
+			retry.setRetryableStatuses(codes.toArray(new Integer[codes.size()]));
+		}
+		return retry;
+	}
+
+	/**
+	 * @return <tt>null</tt> if the bandwidth is not limited
+	 */
+	private static RateLimiter rateLimiter(InputConfiguration props, Map<String, Exception> errors) {
+		final long rate = sizeValue(props, "gdc.upload.rate_limit", errors);
+		final String schedule = props.getProperty("gdc.upload.rate_limit.schedule");
+		if (rate == 0 && schedule == null) {
+			return null;
+		}
+		final RateLimiter limiter = new RateLimiter(rate);
+		if (schedule != null) {
+			final Pattern window = Pattern.compile("(\\d{1,2}):(\\d{2})-(\\d{1,2}):(\\d{2})=(.+)");
+			for (String w : StringUtils.split(schedule, ", ")) {
+				final Matcher m = window.matcher(w);
+				final Long windowRate = m.matches() ? sizeValue(m.group(5)) : null;
+				final int start = m.matches() ? minuteOfDay(m.group(1), m.group(2)) : -1;
+				final int end = m.matches() ? minuteOfDay(m.group(3), m.group(4)) : -1;
+				if (windowRate == null || start < 0 || end < 0) {
+					errors.put("gdc.upload.rate_limit.schedule", new IllegalArgumentException(
+					      "gdc.upload.rate_limit.schedule must list HH:MM-HH:MM=rate windows, found '" + w + "'"));
+				} else {
+					limiter.addWindow(start, end, windowRate);
+				}
+			}
+		}
+		return limiter;
+	}
+
+	/**
+	 * @return minute of the day or -1 if the time is not valid
+	 */
+	private static int minuteOfDay(String hours, String minutes) {
+		final int h = Integer.parseInt(hours), m = Integer.parseInt(minutes);
+		// 24:00 ends a window at midnight
+		return (h < 24 && m < 60) || (h == 24 && m == 0) ? (h * 60 + m) % (24 * 60) : -1;
+	}
+
+	private static int compressionLevel(InputConfiguration props, String key, int defaultValue, Map<String, Exception> errors) {
+		String value = props.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		final Integer level = compressionLevel(value);
+		if (level == null) {
+			errors.put(key, new IllegalArgumentException(key + " must be a number from 0 to 9 or 'store'"));
+			return defaultValue;
+		}
+		return level;
+	}
+
+	/**
+	 * @return the deflate level, {@link CompressionStrategy#STORED} for <tt>store</tt>
+	 * 		or <tt>null</tt> if the value is not valid
+	 */
+	private static Integer compressionLevel(String value) {
+		value = value.trim();
+		if ("store".equalsIgnoreCase(value)) {
+			return CompressionStrategy.STORED;
+		}
+		try {
+			int result = Integer.parseInt(value);
+			if (result >= 0 && result <= 9) {
+				return result;
+			}
+		} catch (NumberFormatException e) {
+			// not valid
+		}
+		return null;
+	}
+
+	private static int positiveInt(InputConfiguration props, String key, int defaultValue, Map<String, Exception> errors) {
+		String value = props.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			int result = Integer.parseInt(value.trim());
+			if (result > 0) {
+				return result;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		errors.put(key, new IllegalArgumentException(key + " must be a positive number"));
+		return defaultValue;
+	}
+
+	/**
+	 * Parses a number for which 0 has a meaning of its own, e.g. no limit
+	 */
+	private static int nonNegativeInt(InputConfiguration props, String key, int defaultValue, Map<String, Exception> errors) {
+		String value = props.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			int result = Integer.parseInt(value.trim());
+			if (result >= 0) {
+				return result;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		errors.put(key, new IllegalArgumentException(key + " must be a non-negative number"));
+		return defaultValue;
+	}
+
+	/**
+	 * Parses a non-negative number optionally followed by a K, M or G suffix
+	 * (powers of 1024)
+	 * @return the value or 0 if the property is not set
+	 */
+	private static long sizeValue(InputConfiguration props, String key, Map<String, Exception> errors) {
+		String value = props.getProperty(key);
+		if (value == null) {
+			return 0;
+		}
+		final Long result = sizeValue(value);
+		if (result == null) {
+			errors.put(key, new IllegalArgumentException(key + " must be a non-negative number"));
+			return 0;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the size or <tt>null</tt> if the value is not valid
+	 */
+	private static Long sizeValue(String value) {
+		value = value.trim().toUpperCase();
+		long unit = 1;
+		if (value.endsWith("K")) {
+			unit = 1024L;
+		} else if (value.endsWith("M")) {
+			unit = 1024L * 1024;
+		} else if (value.endsWith("G")) {
+			unit = 1024L * 1024 * 1024;
+		}
+		if (unit > 1) {
+			value = value.substring(0, value.length() - 1).trim();
+		}
+		try {
+			long result = Long.parseLong(value);
+			if (result >= 0) {
+				return result * unit;
+			}
+		} catch (NumberFormatException e) {
+			// not valid
+		}
+		return null;
+	}
+
 	// GoodData properties
 	private String gdcUsername = null,
 				   gdcPassword = null,
@@ -273,8 +588,18 @@ public class Configuration {
 				   jdbcDriver = null,
 				   jdbcUsername = null,
 				   jdbcPassword = null,
-				   jdbcUrl;
+				   jdbcUrl,
+				   jdbcDateFormat = null,
+				   jdbcTimestampFormat = null;
 	private boolean sendCredentials = false;
+	private int jdbcParallelism = 1;
+	private int jdbcPoolMaxSize = 1;
+	private int jdbcPoolIdleTimeout = 300;
+	private boolean jdbcStreaming = false;
+	private boolean jdbcResetWatermarks = false;
+	private boolean jdbcDirectArchive = false;
+	private File stateDir = null;
+	private int jdbcFetchSize = 0;
 
 	public String getGdcUploadManifest() {
 		return gdcUploadManifest;
@@ -285,8 +610,9 @@ public class Configuration {
 	}
 
 	private Map<String,String> gdcEtlParams = null,
-	                         gdcEtlHiddenParams = null,
-			                   jdbcExtractMappings = null;
+	                         gdcEtlHiddenParams = null;
+
+	private List<JdbcDataset> jdbcDatasets = null;
 
 	public Map<String, String> getGdcEtlHiddenParams() {
       return gdcEtlHiddenParams;
@@ -299,6 +625,37 @@ public class Configuration {
    // Source files
 	private String fsInputDir = null,
 				   fsWildcard = null;
+	private int fsMaxDepth = 1;
+	private long fsMinSize = 0,
+	             fsMaxSize = 0,
+	             fsMinAge = 0,
+	             fsMaxAge = 0;
+	private boolean fsWatch = false;
+	private long fsWatchQuietPeriod = 5000,
+	             fsWatchBatchWindow = 30000,
+	             fsWatchBatchBytes = 0;
+	private int fsWatchBatchFiles = 0;
+	private long uploadMaxRowsPerFile = 0,
+	             uploadMaxBytesPerFile = 0;
+	private int zipThreads = 1,
+	            zipBlocksInFlight = 2;
+	private CompressionStrategy compression = new CompressionStrategy();
+	private RetryPolicy retryPolicy = new RetryPolicy();
+	private RateLimiter rateLimiter = null;
+	private int uploadProgressInterval = 0;
+	private int uploadStallTimeout = 0;
+	private long uploadSmallFileSize = 1024 * 1024;
+	private long archiveVolumeSize = 0;
+	private int uploadParallelism = 1;
+	private int uploadMaxConnectionsPerHost = 1,
+	            uploadConnectionTimeout = 0,
+	            uploadSocketTimeout = 0,
+	            uploadSocketBufferSize = 0,
+	            uploadIdleTimeout = 30;
+	private long uploadPartSize = 0;
+	private boolean uploadStreaming = false;
+	private boolean uploadSkipUnchanged = false;
+	private boolean uploadChecksums = false;
 
 	public String getFsWildcard() {
 		return fsWildcard;
@@ -308,6 +665,263 @@ public class Configuration {
 		this.fsWildcard = fsWildcard;
 	}
 
+	public int getFsMaxDepth() {
+		return fsMaxDepth;
+	}
+
+	public void setFsMaxDepth(int fsMaxDepth) {
+		this.fsMaxDepth = fsMaxDepth;
+	}
+
+	public long getFsMinSize() {
+		return fsMinSize;
+	}
+
+	public void setFsMinSize(long fsMinSize) {
+		this.fsMinSize = fsMinSize;
+	}
+
+	public long getFsMaxSize() {
+		return fsMaxSize;
+	}
+
+	public void setFsMaxSize(long fsMaxSize) {
+		this.fsMaxSize = fsMaxSize;
+	}
+
+	public long getFsMinAge() {
+		return fsMinAge;
+	}
+
+	public void setFsMinAge(long fsMinAge) {
+		this.fsMinAge = fsMinAge;
+	}
+
+	public long getFsMaxAge() {
+		return fsMaxAge;
+	}
+
+	public void setFsMaxAge(long fsMaxAge) {
+		this.fsMaxAge = fsMaxAge;
+	}
+
+	public boolean isFsWatch() {
+		return fsWatch;
+	}
+
+	public void setFsWatch(boolean fsWatch) {
+		this.fsWatch = fsWatch;
+	}
+
+	public long getFsWatchQuietPeriod() {
+		return fsWatchQuietPeriod;
+	}
+
+	public void setFsWatchQuietPeriod(long fsWatchQuietPeriod) {
+		this.fsWatchQuietPeriod = fsWatchQuietPeriod;
+	}
+
+	public long getFsWatchBatchWindow() {
+		return fsWatchBatchWindow;
+	}
+
+	public void setFsWatchBatchWindow(long fsWatchBatchWindow) {
+		this.fsWatchBatchWindow = fsWatchBatchWindow;
+	}
+
+	public int getFsWatchBatchFiles() {
+		return fsWatchBatchFiles;
+	}
+
+	public void setFsWatchBatchFiles(int fsWatchBatchFiles) {
+		this.fsWatchBatchFiles = fsWatchBatchFiles;
+	}
+
+	public long getFsWatchBatchBytes() {
+		return fsWatchBatchBytes;
+	}
+
+	public void setFsWatchBatchBytes(long fsWatchBatchBytes) {
+		this.fsWatchBatchBytes = fsWatchBatchBytes;
+	}
+
+	public long getUploadMaxRowsPerFile() {
+		return uploadMaxRowsPerFile;
+	}
+
+	public void setUploadMaxRowsPerFile(long uploadMaxRowsPerFile) {
+		this.uploadMaxRowsPerFile = uploadMaxRowsPerFile;
+	}
+
+	public long getUploadMaxBytesPerFile() {
+		return uploadMaxBytesPerFile;
+	}
+
+	public void setUploadMaxBytesPerFile(long uploadMaxBytesPerFile) {
+		this.uploadMaxBytesPerFile = uploadMaxBytesPerFile;
+	}
+
+	public int getZipThreads() {
+		return zipThreads;
+	}
+
+	public void setZipThreads(int zipThreads) {
+		this.zipThreads = zipThreads;
+	}
+
+	public int getZipBlocksInFlight() {
+		return zipBlocksInFlight;
+	}
+
+	public void setZipBlocksInFlight(int zipBlocksInFlight) {
+		this.zipBlocksInFlight = zipBlocksInFlight;
+	}
+
+	public int getUploadProgressInterval() {
+		return uploadProgressInterval;
+	}
+
+	public void setUploadProgressInterval(int uploadProgressInterval) {
+		this.uploadProgressInterval = uploadProgressInterval;
+	}
+
+	public int getUploadStallTimeout() {
+		return uploadStallTimeout;
+	}
+
+	public void setUploadStallTimeout(int uploadStallTimeout) {
+		this.uploadStallTimeout = uploadStallTimeout;
+	}
+
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	public long getUploadSmallFileSize() {
+		return uploadSmallFileSize;
+	}
+
+	public void setUploadSmallFileSize(long uploadSmallFileSize) {
+		this.uploadSmallFileSize = uploadSmallFileSize;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	public CompressionStrategy getCompression() {
+		return compression;
+	}
+
+	public void setCompression(CompressionStrategy compression) {
+		this.compression = compression;
+	}
+
+	public long getArchiveVolumeSize() {
+		return archiveVolumeSize;
+	}
+
+	public void setArchiveVolumeSize(long archiveVolumeSize) {
+		this.archiveVolumeSize = archiveVolumeSize;
+	}
+
+	public int getUploadParallelism() {
+		return uploadParallelism;
+	}
+
+	public void setUploadParallelism(int uploadParallelism) {
+		this.uploadParallelism = uploadParallelism;
+	}
+
+	public int getUploadMaxConnectionsPerHost() {
+		return uploadMaxConnectionsPerHost;
+	}
+
+	public void setUploadMaxConnectionsPerHost(int uploadMaxConnectionsPerHost) {
+		this.uploadMaxConnectionsPerHost = uploadMaxConnectionsPerHost;
+	}
+
+	/**
+	 * @return seconds, 0 for no timeout
+	 */
+	public int getUploadConnectionTimeout() {
+		return uploadConnectionTimeout;
+	}
+
+	public void setUploadConnectionTimeout(int uploadConnectionTimeout) {
+		this.uploadConnectionTimeout = uploadConnectionTimeout;
+	}
+
+	/**
+	 * @return seconds, 0 for no timeout
+	 */
+	public int getUploadSocketTimeout() {
+		return uploadSocketTimeout;
+	}
+
+	public void setUploadSocketTimeout(int uploadSocketTimeout) {
+		this.uploadSocketTimeout = uploadSocketTimeout;
+	}
+
+	public int getUploadSocketBufferSize() {
+		return uploadSocketBufferSize;
+	}
+
+	public void setUploadSocketBufferSize(int uploadSocketBufferSize) {
+		this.uploadSocketBufferSize = uploadSocketBufferSize;
+	}
+
+	/**
+	 * @return seconds
+	 */
+	public int getUploadIdleTimeout() {
+		return uploadIdleTimeout;
+	}
+
+	public void setUploadIdleTimeout(int uploadIdleTimeout) {
+		this.uploadIdleTimeout = uploadIdleTimeout;
+	}
+
+	public long getUploadPartSize() {
+		return uploadPartSize;
+	}
+
+	public void setUploadPartSize(long uploadPartSize) {
+		this.uploadPartSize = uploadPartSize;
+	}
+
+	public boolean isUploadChecksums() {
+		return uploadChecksums;
+	}
+
+	public void setUploadChecksums(boolean uploadChecksums) {
+		this.uploadChecksums = uploadChecksums;
+	}
+
+	public boolean isUploadStreaming() {
+		return uploadStreaming;
+	}
+
+	public void setUploadStreaming(boolean uploadStreaming) {
+		this.uploadStreaming = uploadStreaming;
+	}
+
+	public boolean isUploadSkipUnchanged() {
+		return uploadSkipUnchanged;
+	}
+
+	public void setUploadSkipUnchanged(boolean uploadSkipUnchanged) {
+		this.uploadSkipUnchanged = uploadSkipUnchanged;
+	}
+
 	// ==== Getters and Setters =====
 
 	public String getGdcUsername() {
@@ -478,8 +1092,136 @@ public class Configuration {
 		this.jdbcUrl = jdbcUrl;
 	}
 
-	public Map<String, String> getJdbcExtractMappings() {
-		return jdbcExtractMappings;
+	public int getJdbcParallelism() {
+		return jdbcParallelism;
+	}
+
+	public void setJdbcParallelism(int jdbcParallelism) {
+		this.jdbcParallelism = jdbcParallelism;
+	}
+
+	public int getJdbcPoolMaxSize() {
+		return jdbcPoolMaxSize;
+	}
+
+	public void setJdbcPoolMaxSize(int jdbcPoolMaxSize) {
+		this.jdbcPoolMaxSize = jdbcPoolMaxSize;
+	}
+
+	/**
+	 * @return seconds after which an idle pooled connection is closed
+	 */
+	public int getJdbcPoolIdleTimeout() {
+		return jdbcPoolIdleTimeout;
+	}
+
+	public void setJdbcPoolIdleTimeout(int jdbcPoolIdleTimeout) {
+		this.jdbcPoolIdleTimeout = jdbcPoolIdleTimeout;
+	}
+
+	public String getJdbcDateFormat() {
+		return jdbcDateFormat;
+	}
+
+	public void setJdbcDateFormat(String jdbcDateFormat) {
+		this.jdbcDateFormat = jdbcDateFormat;
+	}
+
+	public String getJdbcTimestampFormat() {
+		return jdbcTimestampFormat;
+	}
+
+	public void setJdbcTimestampFormat(String jdbcTimestampFormat) {
+		this.jdbcTimestampFormat = jdbcTimestampFormat;
+	}
+
+	public boolean isJdbcDirectArchive() {
+		return jdbcDirectArchive;
+	}
+
+	public void setJdbcDirectArchive(boolean jdbcDirectArchive) {
+		this.jdbcDirectArchive = jdbcDirectArchive;
+	}
+
+	public boolean isJdbcResetWatermarks() {
+		return jdbcResetWatermarks;
+	}
+
+	public void setJdbcResetWatermarks(boolean jdbcResetWatermarks) {
+		this.jdbcResetWatermarks = jdbcResetWatermarks;
+	}
+
+	public File getStateDir() {
+		return stateDir;
+	}
+
+	public void setStateDir(String stateDir) {
+		this.stateDir = new File((stateDir == null) ? DEFAULT_STATE_DIR : stateDir);
+	}
+
+	public boolean isJdbcStreaming() {
+		return jdbcStreaming;
+	}
+
+	public void setJdbcStreaming(boolean jdbcStreaming) {
+		this.jdbcStreaming = jdbcStreaming;
+	}
+
+	public int getJdbcFetchSize() {
+		return jdbcFetchSize;
+	}
+
+	public void setJdbcFetchSize(int jdbcFetchSize) {
+		this.jdbcFetchSize = jdbcFetchSize;
+	}
+
+	public List<JdbcDataset> getJdbcDatasets() {
+		return jdbcDatasets;
+	}
+
+	private static List<JdbcDataset> buildJdbcDatasets(InputConfiguration props, Map<String, Exception> errors) {
+		List<JdbcDataset> result = new ArrayList<JdbcDataset>();
+		// data.<name>.sql.init is an alternative to data.<name>.sql for incremental data sets
+		Map<String,String> queries = buildJdbcExtractMappings(props, "data.", ".sql.init");
+		queries.putAll(buildJdbcExtractMappings(props, "data.", ".sql"));
+		Map<String,String> increments = buildJdbcExtractMappings(props, "data.", ".sql.increment");
+		for (String name : increments.keySet()) {
+			if (!queries.containsKey(name)) {
+				errors.put("data." + name + ".sql.increment", new IllegalArgumentException(
+						format("data.%1$s.sql.increment requires data.%1$s.sql.init", name)));
+			}
+		}
+		for (Map.Entry<String, String> e : queries.entrySet()) {
+			final String prefix = "data." + e.getKey() + ".";
+			JdbcDataset dataset = new JdbcDataset(e.getKey(), e.getValue());
+			dataset.setIncrementSql(increments.get(e.getKey()));
+			dataset.setWatermarkColumn(props.getProperty(prefix + "watermark_column"));
+			if (dataset.getIncrementSql() != null && dataset.getWatermarkColumn() == null) {
+				errors.put(prefix + "watermark_column", new IllegalArgumentException(
+						prefix + "watermark_column is mandatory for incremental data sets"));
+			}
+			dataset.setChangeKey(props.getProperty(prefix + "change_key"));
+			if ("true".equalsIgnoreCase(props.getProperty(prefix + "change_deletes"))) {
+				dataset.setChangeDeletes(true);
+			}
+			if (dataset.isChangeDetected() && dataset.getIncrementSql() != null) {
+				errors.put(prefix + "change_key", new IllegalArgumentException(
+						prefix + "change_key cannot be combined with an increment query"));
+			}
+			dataset.setPartitionColumn(props.getProperty(prefix + "partition_column"));
+			dataset.setPartitions(positiveInt(props, prefix + "partitions", 1, errors));
+			final String output = props.getProperty(prefix + "partition_output");
+			if ("parts".equalsIgnoreCase(output)) {
+				dataset.setMergePartitions(false);
+			} else if (output != null && !"merged".equalsIgnoreCase(output)) {
+				errors.put(prefix + "partition_output", new IllegalArgumentException(
+						prefix + "partition_output must be either 'merged' or 'parts'"));
+			}
+			dataset.setMaxRowsPerFile(sizeValue(props, prefix + "max_rows_per_file", errors));
+			dataset.setMaxBytesPerFile(sizeValue(props, prefix + "max_bytes_per_file", errors));
+			result.add(dataset);
+		}
+		return result;
 	}
 
 	private static Map<String, String> buildJdbcExtractMappings(InputConfiguration props, String prefix, String suffix) {
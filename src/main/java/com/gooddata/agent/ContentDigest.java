@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import java.security.MessageDigest;
+
+/**
+ * MurmurHash3 (x64 variant, 128 bits) as a {@link MessageDigest}, so that it
+ * can be fed by a {@link java.security.DigestInputStream}. It is several times
+ * faster than SHA-256 and serves to recognize content seen before, not to
+ * protect it against tampering.
+ */
+class ContentDigest extends MessageDigest {
+	private static final long C1 = 0x87c37b91114253d5L, C2 = 0x4cf5ad432745937fL;
+
+	private final byte[] tail = new byte[16];
+	private int tailLength = 0;
+	private long h1 = 0, h2 = 0, length = 0;
+
+	ContentDigest() {
+		super("MurmurHash3-128");
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		engineUpdate(new byte[] { input }, 0, 1);
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		length += len;
+		if (tailLength > 0) {
+			// complete the block started by the previous update
+			final int n = Math.min(16 - tailLength, len);
+			System.arraycopy(input, offset, tail, tailLength, n);
+			tailLength += n;
+			offset += n;
+			len -= n;
+			if (tailLength < 16) {
+				return;
+			}
+			block(tail, 0);
+			tailLength = 0;
+		}
+		for (; len >= 16; offset += 16, len -= 16) {
+			block(input, offset);
+		}
+		System.arraycopy(input, offset, tail, 0, len);
+		tailLength = len;
+	}
+
+	private void block(byte[] b, int offset) {
+		long k1 = getLong(b, offset), k2 = getLong(b, offset + 8);
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		k1 *= C2;
+		h1 ^= k1;
+		h1 = Long.rotateLeft(h1, 27);
+		h1 += h2;
+		h1 = h1 * 5 + 0x52dce729;
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		k2 *= C1;
+		h2 ^= k2;
+		h2 = Long.rotateLeft(h2, 31);
+		h2 += h1;
+		h2 = h2 * 5 + 0x38495ab5;
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		long k1 = 0, k2 = 0;
+		for (int i = tailLength - 1; i >= 8; i--) {
+			k2 ^= (tail[i] & 0xffL) << ((i - 8) * 8);
+		}
+		if (tailLength > 8) {
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+		}
+		for (int i = Math.min(tailLength, 8) - 1; i >= 0; i--) {
+			k1 ^= (tail[i] & 0xffL) << (i * 8);
+		}
+		if (tailLength > 0) {
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+		}
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = mix(h1);
+		h2 = mix(h2);
+		h1 += h2;
+		h2 += h1;
+		final byte[] result = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			result[i] = (byte)(h1 >>> (i * 8));
+			result[i + 8] = (byte)(h2 >>> (i * 8));
+		}
+		engineReset();
+		return result;
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return 16;
+	}
+
+	@Override
+	protected void engineReset() {
+		tailLength = 0;
+		h1 = 0;
+		h2 = 0;
+		length = 0;
+	}
+
+	private static long mix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	private static long getLong(byte[] b, int offset) {
+		return (b[offset] & 0xffL) | (b[offset + 1] & 0xffL) << 8 | (b[offset + 2] & 0xffL) << 16
+				| (b[offset + 3] & 0xffL) << 24 | (b[offset + 4] & 0xffL) << 32 | (b[offset + 5] & 0xffL) << 40
+				| (b[offset + 6] & 0xffL) << 48 | (b[offset + 7] & 0xffL) << 56;
+	}
+}
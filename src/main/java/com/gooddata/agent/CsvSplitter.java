@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import static java.lang.String.format;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Splits a CSV file into parts with a bounded number of rows or bytes.
+ * Files are split only at line breaks outside of quoted values and the
+ * header line is repeated at the beginning of each part.
+ */
+public class CsvSplitter {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final long maxRows, maxBytes;
+
+	/**
+	 * Receives the parts of a split file
+	 */
+	public interface Parts {
+		/**
+		 * @param part number of the part starting with 1
+		 * @return stream the part is written into; it is not closed by the splitter
+		 */
+		OutputStream next(int part) throws IOException;
+	}
+
+	/**
+	 * @param maxRows maximum number of data rows in a part, 0 for no limit
+	 * @param maxBytes size of a part after which the next one is started,
+	 * 		0 for no limit; a part may exceed it by the last row
+	 */
+	public CsvSplitter(long maxRows, long maxBytes) {
+		this.maxRows = maxRows;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param name name of the collected file; only <tt>.csv</tt> files are
+	 * 		split, any other file (e.g. a compressed one) is passed as it is
+	 * @return <tt>true</tt> if the file is to be collected as parts; rows
+	 * 		are not counted in advance, so a CSV file is split if the number
+	 * 		of rows is limited unless it is too small to have that many lines
+	 */
+	public boolean isSplit(String name, File file) {
+		if (!name.toLowerCase().endsWith(".csv")) {
+			return false;
+		}
+		return (maxRows > 0 && file.length() > maxRows) || (maxBytes > 0 && file.length() > maxBytes);
+	}
+
+	/**
+	 * Copies the CSV data into the parts
+	 * @return number of parts written
+	 */
+	public int split(InputStream in, Parts parts) throws IOException {
+		final byte[] buf = new byte[BUFFER_SIZE];
+		final ByteArrayOutputStream header = new ByteArrayOutputStream();
+		boolean inHeader = true, quoted = false, recordEnd = false;
+		long rows = 0, bytes = 0;
+		int part = 1;
+		OutputStream out = parts.next(part);
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			int from = 0;
+			for (int i = 0; i < n; i++) {
+				if (recordEnd) {
+					recordEnd = false;
+					// a new record starts, continue in the next part if this one is full
+					if ((maxRows > 0 && rows >= maxRows) || (maxBytes > 0 && bytes >= maxBytes)) {
+						out.write(buf, from, i - from);
+						from = i;
+						out = parts.next(++part);
+						header.writeTo(out);
+						rows = 0;
+						bytes = header.size();
+					}
+				}
+				final byte b = buf[i];
+				bytes++;
+				if (b == '"') {
+					quoted = !quoted;
+				} else if (b == '\n' && !quoted) {
+					recordEnd = true;
+					if (inHeader) {
+						header.write(buf, from, i + 1 - from);
+						inHeader = false;
+					} else {
+						rows++;
+					}
+				}
+			}
+			if (inHeader) {
+				header.write(buf, from, n - from);
+			}
+			out.write(buf, from, n - from);
+		}
+		return part;
+	}
+
+	/**
+	 * @return name of the <tt>part</tt>-th part of a file, e.g.
+	 * 		<tt>orders.part0002.csv</tt> for <tt>orders.csv</tt>
+	 */
+	public static String partName(String fileName, int part) {
+		final String base = fileName.toLowerCase().endsWith(".csv")
+				? fileName.substring(0, fileName.length() - 4) : fileName;
+		return partFileName(base, part);
+	}
+
+	/**
+	 * @return name of the <tt>part</tt>-th (starting with 1) part file of
+	 * 		a data set or a file without the <tt>.csv</tt> extension
+	 */
+	public static String partFileName(String baseName, int part) {
+		return format("%s.part%04d.csv", baseName, part);
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Remembers the content digests of uploaded files and the remote names
+ * they were uploaded under, so that unchanged files need not be uploaded
+ * again. The digests of the last run are kept aside until {@link #commit()}
+ * is called, i.e. until the files are safely uploaded. The digests are
+ * 128-bit MurmurHash3 values, fast enough to take on every run.
+ */
+public class DigestStore {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final char SEPARATOR = '/'; // cannot occur in file names
+
+	private final StateFile state;
+	private final Properties props;
+	private final Map<String, String> pending = new HashMap<String, String>();
+
+	public DigestStore(File file) throws IOException {
+		this.state = new StateFile(file, "GoodData agent uploaded file digests");
+		this.props = state.load();
+	}
+
+	/**
+	 * @return remote names of the file uploaded with the given content
+	 * 		digest by a previous run or <tt>null</tt> if the content differs
+	 */
+	public synchronized List<String> getRemoteNames(String name, String digest) {
+		final String value = props.getProperty(name);
+		if (value == null) {
+			return null;
+		}
+		final String[] parts = StringUtils.split(value, SEPARATOR);
+		if (parts.length < 2 || !parts[0].equals(digest)) {
+			return null;
+		}
+		return Arrays.asList(parts).subList(1, parts.length);
+	}
+
+	/**
+	 * Remembers the digest and remote names of an uploaded file to be saved
+	 * by {@link #commit()}
+	 */
+	public synchronized void update(String name, String digest, List<String> remoteNames) {
+		pending.put(name, digest + SEPARATOR + StringUtils.join(remoteNames.iterator(), SEPARATOR));
+	}
+
+	public synchronized void update(String name, String digest, String remoteName) {
+		update(name, digest, Collections.singletonList(remoteName));
+	}
+
+	/**
+	 * Saves the digests of the files uploaded by the last run
+	 */
+	public synchronized void commit() throws IOException {
+		if (pending.isEmpty()) {
+			return;
+		}
+		props.putAll(pending);
+		state.save(props);
+		pending.clear();
+	}
+
+	/**
+	 * @return hex encoded digest of the file content
+	 */
+	public static String digest(File file) throws IOException {
+		final MessageDigest md = newDigest();
+		final byte[] buf = new byte[BUFFER_SIZE];
+		final InputStream in = new FileInputStream(file);
+		try {
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				md.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return ChecksumManifest.hex(md.digest());
+	}
+
+	/**
+	 * @return digest of the kind stored here to be fed with content read
+	 * 		elsewhere, e.g. while splitting a file
+	 */
+	public static MessageDigest newDigest() {
+		return new ContentDigest();
+	}
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Watches the directories of a {@link FileScanner} and hands the new
+ * or modified files over in batches. A file is picked up once it has
+ * not changed for the quiet period; a batch is closed when it reaches
+ * the file count or size limit or when its oldest file has waited for
+ * the batch window. The versions of the processed files can be kept in
+ * a state file, so that a restart does not process them again.
+ */
+public class DirectoryWatcher {
+	private static Logger l = Logger.getLogger(DirectoryWatcher.class);
+
+	private final FileScanner scanner;
+	private long quietPeriod = 5000;
+	private long batchWindow = 30000;
+	private int batchFiles = 0;
+	private long batchBytes = 0;
+	private volatile boolean stopped = false;
+	private StateFile state = null;
+
+	private WatchService watchService;
+	private PathMatcher matcher;
+	/** watched directories with the roots they belong to */
+	private final Map<WatchKey, Path[]> watched = new HashMap<WatchKey, Path[]>();
+	/** files seen changing but not quiet yet */
+	private final Map<Path, Candidate> candidates = new LinkedHashMap<Path, Candidate>();
+	/** quiet files waiting for their batch */
+	private final Map<Path, Candidate> ready = new LinkedHashMap<Path, Candidate>();
+	/** versions of the files already handed over */
+	private final Map<Path, String> processed = new HashMap<Path, String>();
+	private long readySince = 0;
+	private long retryAt = 0;
+
+	/**
+	 * Processes a batch of files
+	 */
+	public interface Handler {
+		/**
+		 * @param files map of paths relative to the watched directories to the files
+		 * @throws IOException if the batch failed, its files are offered again
+		 * 		after the batch window
+		 */
+		void process(Map<String, File> files) throws IOException;
+	}
+
+	private static class Candidate {
+		final Path root;
+		final String name;
+		long size = -1, modified = -1, changed;
+
+		Candidate(Path root, String name, long changed) {
+			this.root = root;
+			this.name = name;
+			this.changed = changed;
+		}
+
+		String version() {
+			return size + "/" + modified;
+		}
+	}
+
+	public DirectoryWatcher(FileScanner scanner) {
+		this.scanner = scanner;
+	}
+
+	/**
+	 * Processes the files present in the watched directories and then the
+	 * files arriving there until {@link #stop()} is called
+	 */
+	public void run(Handler handler) throws IOException, InterruptedException {
+		watchService = FileSystems.getDefault().newWatchService();
+		matcher = scanner.matcher();
+		loadProcessed();
+		try {
+			for (File root : scanner.getRoots()) {
+				final Path rootPath = root.toPath();
+				if (!Files.isDirectory(rootPath)) {
+					throw new NoSuchFileException(root.getPath(), null, "Input directory does not exist");
+				}
+				register(rootPath, rootPath);
+			}
+			while (!stopped) {
+				final WatchKey key = watchService.poll(Math.min(quietPeriod, 1000), TimeUnit.MILLISECONDS);
+				if (key != null) {
+					events(key);
+				}
+				final long now = System.currentTimeMillis();
+				settle(now);
+				if (!ready.isEmpty() && now >= retryAt && (isFull() || now - readySince >= batchWindow)) {
+					batch(handler, now);
+				}
+			}
+		} finally {
+			watchService.close();
+		}
+	}
+
+	private void loadProcessed() throws IOException {
+		if (state == null) {
+			return;
+		}
+		final Properties props = state.load();
+		for (String name : props.stringPropertyNames()) {
+			final Path path = Paths.get(name);
+			// files removed while not watching are forgotten
+			if (Files.exists(path)) {
+				processed.put(path, props.getProperty(name));
+			}
+		}
+	}
+
+	private void saveProcessed() throws IOException {
+		if (state == null) {
+			return;
+		}
+		final Properties props = new Properties();
+		for (Map.Entry<Path, String> e : processed.entrySet()) {
+			props.setProperty(e.getKey().toString(), e.getValue());
+		}
+		state.save(props);
+	}
+
+	/**
+	 * Makes {@link #run(Handler)} return after the current batch
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Watches a directory and the subdirectories the scanner descends to,
+	 * the files already there become candidates
+	 */
+	private void register(Path root, Path dir) throws IOException {
+		final int depth = dir.equals(root) ? 0 : root.relativize(dir).getNameCount();
+		watched.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), new Path[] { root, dir });
+		final DirectoryStream<Path> entries = Files.newDirectoryStream(dir);
+		try {
+			for (Path entry : entries) {
+				if (Files.isDirectory(entry)) {
+					if (depth + 1 < scanner.getMaxDepth()) {
+						register(root, entry);
+					}
+				} else {
+					changed(root, entry, System.currentTimeMillis());
+				}
+			}
+		} finally {
+			entries.close();
+		}
+	}
+
+	private void events(WatchKey key) throws IOException {
+		final long now = System.currentTimeMillis();
+		do {
+			final Path[] dir = watched.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW) {
+					// events were lost, look at all files again
+					l.warn("Too many file system events, rescanning " + dir[1]);
+					rescan(dir[0], dir[1], now);
+					continue;
+				}
+				final Path path = dir[1].resolve((Path)event.context());
+				if (event.kind() == ENTRY_DELETE) {
+					candidates.remove(path);
+					ready.remove(path);
+					processed.remove(path);
+				} else if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+					if (dir[0].relativize(path).getNameCount() < scanner.getMaxDepth()) {
+						register(dir[0], path);
+					}
+				} else {
+					changed(dir[0], path, now);
+				}
+			}
+			if (!key.reset()) {
+				watched.remove(key);
+			}
+		} while ((key = watchService.poll()) != null);
+	}
+
+	private void rescan(Path root, Path dir, long now) throws IOException {
+		final DirectoryStream<Path> entries = Files.newDirectoryStream(dir);
+		try {
+			for (Path entry : entries) {
+				if (!Files.isDirectory(entry)) {
+					changed(root, entry, now);
+				}
+			}
+		} finally {
+			entries.close();
+		}
+	}
+
+	private void changed(Path root, Path file, long now) {
+		final String name = scanner.match(matcher, root, file);
+		if (name == null) {
+			return;
+		}
+		ready.remove(file);
+		final Candidate c = candidates.get(file);
+		if (c == null) {
+			candidates.put(file, new Candidate(root, name, now));
+		} else {
+			c.changed = now;
+		}
+	}
+
+	/**
+	 * Moves the candidates that have not changed for the quiet period
+	 * to the next batch
+	 */
+	private void settle(long now) {
+		// a file must also be as old as the scanner requires
+		final long quiet = Math.max(quietPeriod, scanner.getMinAge());
+		for (Iterator<Map.Entry<Path, Candidate>> i = candidates.entrySet().iterator(); i.hasNext();) {
+			final Map.Entry<Path, Candidate> e = i.next();
+			final Candidate c = e.getValue();
+			if (now - c.changed < quiet) {
+				continue;
+			}
+			final BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(e.getKey(), BasicFileAttributes.class);
+			} catch (IOException ex) {
+				// removed in the meantime
+				i.remove();
+				continue;
+			}
+			final long size = attrs.size(),
+			           modified = attrs.lastModifiedTime().toMillis();
+			if (size != c.size || modified != c.modified) {
+				// not settled yet, check again after the quiet period
+				c.size = size;
+				c.modified = modified;
+				c.changed = Math.max(now, modified);
+				if (now - modified < quiet) {
+					continue;
+				}
+			}
+			i.remove();
+			if (attrs.isRegularFile() && scanner.accept(attrs, now)
+					&& !c.version().equals(processed.get(e.getKey()))) {
+				if (ready.isEmpty()) {
+					readySince = now;
+				}
+				ready.put(e.getKey(), c);
+			}
+		}
+	}
+
+	private boolean isFull() {
+		if (batchFiles > 0 && ready.size() >= batchFiles) {
+			return true;
+		}
+		if (batchBytes > 0) {
+			long bytes = 0;
+			for (Candidate c : ready.values()) {
+				bytes += c.size;
+			}
+			return bytes >= batchBytes;
+		}
+		return false;
+	}
+
+	/**
+	 * Hands the ready files over, up to the batch limits
+	 */
+	private void batch(Handler handler, long now) throws IOException {
+		final Map<String, File> files = new LinkedHashMap<String, File>();
+		final Map<Path, Candidate> batch = new LinkedHashMap<Path, Candidate>();
+		long bytes = 0;
+		for (Map.Entry<Path, Candidate> e : ready.entrySet()) {
+			final Candidate c = e.getValue();
+			if (!batch.isEmpty() && ((batchFiles > 0 && batch.size() >= batchFiles)
+					|| (batchBytes > 0 && bytes + c.size > batchBytes))) {
+				break;
+			}
+			files.put(c.name, e.getKey().toFile());
+			batch.put(e.getKey(), c);
+			bytes += c.size;
+		}
+		l.info("Processing a batch of " + files.size() + " file(s), " + bytes + " bytes");
+		try {
+			handler.process(files);
+		} catch (IOException e) {
+			l.error("Error processing a batch of files, retrying in " + batchWindow / 1000 + " s: " + e.getMessage());
+			retryAt = now + batchWindow;
+			return;
+		}
+		for (Map.Entry<Path, Candidate> e : batch.entrySet()) {
+			ready.remove(e.getKey());
+			processed.put(e.getKey(), e.getValue().version());
+		}
+		saveProcessed();
+	}
+
+	/**
+	 * @param file file keeping the versions of the processed files between
+	 * 		runs, <tt>null</tt> to keep them in memory only
+	 */
+	public void setStateFile(File file) {
+		this.state = (file == null) ? null : new StateFile(file, "GoodData agent processed files");
+	}
+
+	public long getQuietPeriod() {
+		return quietPeriod;
+	}
+
+	/**
+	 * @param quietPeriod milliseconds a file must not change for to be
+	 * 		picked up
+	 */
+	public void setQuietPeriod(long quietPeriod) {
+		this.quietPeriod = quietPeriod;
+	}
+
+	public long getBatchWindow() {
+		return batchWindow;
+	}
+
+	/**
+	 * @param batchWindow milliseconds the first file of a batch waits for
+	 * 		other files at most
+	 */
+	public void setBatchWindow(long batchWindow) {
+		this.batchWindow = batchWindow;
+	}
+
+	public int getBatchFiles() {
+		return batchFiles;
+	}
+
+	/**
+	 * @param batchFiles maximum number of files in a batch, 0 for no limit
+	 */
+	public void setBatchFiles(int batchFiles) {
+		this.batchFiles = batchFiles;
+	}
+
+	public long getBatchBytes() {
+		return batchBytes;
+	}
+
+	/**
+	 * @param batchBytes maximum total size of the files in a batch, 0 for
+	 * 		no limit
+	 */
+	public void setBatchBytes(long batchBytes) {
+		this.batchBytes = batchBytes;
+	}
+}
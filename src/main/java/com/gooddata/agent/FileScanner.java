@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Walks one or more input directories and reports the files matching
+ * a glob pattern and the size and modification time limits. Directories
+ * are read entry by entry, so that large directories are never loaded
+ * into memory as a whole.
+ */
+public class FileScanner {
+	private static Logger l = Logger.getLogger(FileScanner.class);
+
+	private final List<File> roots = new ArrayList<File>();
+	private String pattern = "*";
+	private int maxDepth = 1;
+	private long minSize = 0, maxSize = 0;
+	private long minAge = 0, maxAge = 0;
+
+	/**
+	 * Receives the files found
+	 */
+	public interface Visitor {
+		/**
+		 * @param path path of the file relative to its input directory,
+		 * 		with <tt>/</tt> separating the directory names
+		 * @param file the file
+		 */
+		void visit(String path, File file) throws IOException;
+	}
+
+	public FileScanner(File... roots) {
+		for (File root : roots) {
+			this.roots.add(root);
+		}
+	}
+
+	/**
+	 * @return number of files found
+	 * @throws FileNotFoundException if any of the input directories does not exist
+	 */
+	public int scan(final Visitor visitor) throws IOException {
+		final PathMatcher matcher = matcher();
+		final long now = System.currentTimeMillis();
+		final int[] found = { 0 };
+		for (File root : roots) {
+			final Path rootPath = root.toPath();
+			if (!Files.isDirectory(rootPath)) {
+				throw new FileNotFoundException("Input directory " + root + " does not exist");
+			}
+			Files.walkFileTree(rootPath, EnumSet.noneOf(FileVisitOption.class), maxDepth, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					if (attrs.isRegularFile() && accept(attrs, now)) {
+						final String path = match(matcher, rootPath, file);
+						if (path != null) {
+							visitor.visit(path, file.toFile());
+							found[0]++;
+						}
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					// e.g. a file removed or a directory not readable while scanning
+					l.warn("Skipping " + file + ": " + e.getMessage());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		return found[0];
+	}
+
+	PathMatcher matcher() {
+		return FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+	}
+
+	/**
+	 * @return path of the file relative to the root if it matches the
+	 * 		pattern and is not nested too deep, <tt>null</tt> otherwise
+	 */
+	String match(PathMatcher matcher, Path root, Path file) {
+		final Path relative = root.relativize(file);
+		if (relative.getNameCount() > maxDepth) {
+			return null;
+		}
+		// patterns without a slash are matched against the file name only
+		final boolean matchPath = pattern.indexOf('/') >= 0;
+		if (!matcher.matches(matchPath ? relative : relative.getFileName())) {
+			return null;
+		}
+		return relative.toString().replace(File.separatorChar, '/');
+	}
+
+	boolean accept(BasicFileAttributes attrs, long now) {
+		final long size = attrs.size(),
+		           age = now - attrs.lastModifiedTime().toMillis();
+		return size >= minSize && (maxSize <= 0 || size <= maxSize)
+				&& age >= minAge && (maxAge <= 0 || age <= maxAge);
+	}
+
+	public List<File> getRoots() {
+		return roots;
+	}
+
+	public String getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * @param pattern glob pattern, e.g. <tt>*.csv</tt> matching file names
+	 * 		or <tt>2014-*&#47;**.csv</tt> matching paths relative to the input
+	 * 		directories if it contains a slash
+	 */
+	public void setPattern(String pattern) {
+		this.pattern = pattern;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * @param maxDepth number of directory levels to descend, 1 scans the
+	 * 		input directories only
+	 */
+	public void setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+	}
+
+	public long getMinSize() {
+		return minSize;
+	}
+
+	public void setMinSize(long minSize) {
+		this.minSize = minSize;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param maxSize size of the largest file accepted, 0 for no limit
+	 */
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public long getMinAge() {
+		return minAge;
+	}
+
+	/**
+	 * @param minAge milliseconds since the last modification of a file
+	 * 		for it to be accepted, e.g. to skip files still being written
+	 */
+	public void setMinAge(long minAge) {
+		this.minAge = minAge;
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * @param maxAge milliseconds since the last modification after which
+	 * 		a file is not accepted any more, 0 for no limit
+	 */
+	public void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+}
@@ -28,6 +28,7 @@ import static com.gooddata.agent.Configuration.GDC_USERNAME;
 import static com.gooddata.agent.Configuration.JDBC_DRIVER;
 import static com.gooddata.agent.Configuration.JDBC_DRIVER_PATH;
 import static com.gooddata.agent.Configuration.JDBC_PASSWORD;
+import static com.gooddata.agent.Configuration.JDBC_RESET_WATERMARKS;
 import static com.gooddata.agent.Configuration.JDBC_URL;
 import static com.gooddata.agent.Configuration.JDBC_USERNAME;
 import static java.lang.String.format;
@@ -36,6 +37,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.sql.SQLException;
@@ -48,14 +50,19 @@ import java.util.Properties;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 
+import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
 import com.gooddata.agent.api.GdcRESTApiWrapper;
+import com.gooddata.agent.api.GdcRestApiException;
 import com.gooddata.agent.api.GdcRESTApiWrapper.GdcUser;
 import com.gooddata.agent.api.GdcRESTApiWrapper.GraphExecutionResult;
 import com.gooddata.agent.api.NamePasswordConfiguration;
 import com.gooddata.agent.jdbc.JdbcConnector;
+import com.gooddata.agent.jdbc.JdbcDataset;
+import com.gooddata.agent.jdbc.JdbcExtractException;
 import com.gooddata.agent.jdbc.JdbcExtractor;
+import com.gooddata.agent.jdbc.WatermarkStore;
 
 /**
  * Hello world!
@@ -64,12 +71,15 @@ import com.gooddata.agent.jdbc.JdbcExtractor;
 public class Main {
    public static final String LOG4J_FILENAME = "log4j.properties";
    private static final String CONFIG_FILE = ".CONFIG.FILE";
+   private static Logger l = Logger.getLogger(Main.class);
    private Configuration conf;
+   /** number of data sets that failed to extract, the others are still delivered */
+   private int failedDatasets = 0;
 
    private Main(String[] args) {
       OptionParser parser = new OptionParser();
       String [] paramNames = { JDBC_DRIVER, JDBC_DRIVER_PATH,
-            JDBC_PASSWORD, JDBC_URL, JDBC_USERNAME,
+            JDBC_PASSWORD, JDBC_URL, JDBC_USERNAME, JDBC_RESET_WATERMARKS,
             GDC_PASSWORD, GDC_USERNAME };
       Properties props = loadCommandLineParameters(parser, paramNames, args);
 
@@ -123,40 +133,215 @@ public class Main {
       if (conf.getGdcUploadUrl() == null) {
          ok("Upload URL is not set up, skipping");
       } else {
-         Uploader u = new Uploader(conf.getGdcUploadUrl(),
-               conf.getGdcUsername(), conf.getGdcPassword());
-         collector = (conf.getGdcUploadArchive() != null) ? new ArchiveCollector(
-               conf.getGdcUploadArchive(), now) : new ManifestCollector(
-               conf.getGdcUploadManifest(), now);
-         jdbcExtract(collector);
-         fsExtract(collector);
-
-         Map<File, String> toUpload = null;
+         Uploader u = createUploader();
          try {
-            toUpload = collector.collect();
+            collector = createCollector(now);
          } catch (IOException e) {
-            error("Error collection files: " + e.getMessage());
+            error(e.getMessage());
          }
-         try {
-            u.upload(toUpload, conf.getGdcUploadPath());
-            ok(format("File(s) uploaded under %s", conf.getGdcUploadUrl()));
-         } catch (IOException e) {
-            error("Error uploading to WebDAV: " + e.getMessage());
+         prepareChecksums(u, collector);
+         JdbcExtractor extractor = jdbcExtract(collector);
+         fsExtract(collector);
+
+         if (conf.isUploadStreaming()) {
+            // the archive is compressed while it is being uploaded
+            ArchiveCollector archive = (ArchiveCollector)collector;
+            try {
+               uploadStreamed(u, archive);
+               ok(format("File(s) uploaded under %s (%s)", conf.getGdcUploadUrl(), u.getStats()));
+            } catch (IOException e) {
+               error("Error uploading to WebDAV: " + e.getMessage());
+            }
+         } else {
+            Map<File, String> toUpload = null;
+            try {
+               toUpload = collector.collect();
+            } catch (IOException e) {
+               collector.cleanup();
+               error("Error collection files: " + e.getMessage());
+            }
+            try {
+               u.upload(toUpload, conf.getGdcUploadPath(), collector.getMainFile());
+               ok(format("File(s) uploaded under %s (%s)", conf.getGdcUploadUrl(), u.getStats()));
+            } catch (IOException e) {
+               collector.cleanup();
+               error("Error uploading to WebDAV: " + e.getMessage());
+            }
+            collector.cleanup();
+            try {
+               collector.commit();
+            } catch (IOException e) {
+               error("Error saving file digests to %s: %s", conf.getStateDir().getAbsolutePath(), e.getMessage());
+            }
+         }
+         if (extractor != null) {
+            extractor.getConnector().close();
+            try {
+               extractor.commit();
+            } catch (IOException e) {
+               error("Error saving watermarks to %s: %s", conf.getStateDir().getAbsolutePath(), e.getMessage());
+            }
          }
       }
       if (conf.getGdcEtlProcessUrl() != null) {
          GdcRESTApiWrapper client = new GdcRESTApiWrapper(
                buildNamePasswordConfiguration(conf));
-         EtlParams etlParams = createEtlParameters(conf, collector);
          client.login();
-         GraphExecutionResult ger = client.executeGraph(
-               conf.getGdcEtlProcessUrl(), conf.getGdcEtlGraph(), etlParams.params, etlParams.hiddenParams);
-         ok(format("Graph %s under %s executed, log file at %s",
-               conf.getGdcEtlProcessPath(), conf.getGdcEtlGraph(),
-               ger.getLogUrl()));
+         executeEtl(client, collector);
       } else {
          ok("ETL not set up, skipping");
       }
+      if (failedDatasets > 0) {
+         error("%s data set(s) failed to extract and will be extracted again by the next run",
+               String.valueOf(failedDatasets));
+      }
+   }
+
+   /**
+    * Sends the files arriving to the input directories in batches, each
+    * batch is uploaded and processed by the ETL like a single run
+    */
+   private void watch() {
+      final Uploader u = (conf.getGdcUploadUrl() == null) ? null : createUploader();
+      final GdcRESTApiWrapper client;
+      if (conf.getGdcEtlProcessUrl() != null) {
+         // logged in once, the session is renewed when it expires
+         client = new GdcRESTApiWrapper(buildNamePasswordConfiguration(conf));
+         client.login();
+      } else {
+         client = null;
+      }
+      final DirectoryWatcher watcher = new DirectoryWatcher(fsScanner());
+      watcher.setQuietPeriod(conf.getFsWatchQuietPeriod());
+      watcher.setBatchWindow(conf.getFsWatchBatchWindow());
+      watcher.setBatchFiles(conf.getFsWatchBatchFiles());
+      watcher.setBatchBytes(conf.getFsWatchBatchBytes());
+      watcher.setStateFile(new File(conf.getStateDir(), "watched.properties"));
+      ok(format("Watching %s for new files", conf.getFsInputDir()));
+      try {
+         watcher.run(new DirectoryWatcher.Handler() {
+            public void process(Map<String, File> files) throws IOException {
+               final Collector collector = createCollector(new Date());
+               try {
+                  process(collector, files);
+               } catch (GdcRestApiException e) {
+                  throw new IOException("ETL failed: " + e.getMessage(), e);
+               } catch (RuntimeException e) {
+                  // a failed batch is retried, it must not stop the watching
+                  throw new IOException(e.toString(), e);
+               } finally {
+                  collector.cleanup();
+               }
+            }
+
+            private void process(Collector collector, Map<String, File> files) throws IOException {
+               if (u != null) {
+                  prepareChecksums(u, collector);
+               }
+               for (Map.Entry<String, File> file : files.entrySet()) {
+                  collector.add(file.getKey(), file.getValue());
+               }
+               if (u != null) {
+                  if (conf.isUploadStreaming()) {
+                     uploadStreamed(u, (ArchiveCollector)collector);
+                  } else {
+                     u.upload(collector.collect(), conf.getGdcUploadPath(), collector.getMainFile());
+                     collector.commit();
+                  }
+                  ok(format("%d file(s) uploaded under %s (%s so far)", files.size(), conf.getGdcUploadUrl(),
+                        u.getStats()));
+               }
+               if (client != null) {
+                  executeEtl(client, collector);
+               }
+            }
+         });
+      } catch (IOException e) {
+         error("Error watching %s: %s", conf.getFsInputDir(), e.getMessage());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private Uploader createUploader() {
+      final Uploader u = new Uploader(conf.getGdcUploadUrl(), conf.getGdcUsername(), conf.getGdcPassword());
+      u.setParallelism(conf.getUploadParallelism());
+      u.setMaxConnectionsPerHost(conf.getUploadMaxConnectionsPerHost());
+      u.setConnectionTimeout(conf.getUploadConnectionTimeout() * 1000);
+      u.setSocketTimeout(conf.getUploadSocketTimeout() * 1000);
+      u.setSocketBufferSize(conf.getUploadSocketBufferSize());
+      u.setIdleTimeout(conf.getUploadIdleTimeout() * 1000L);
+      u.setRetryPolicy(conf.getRetryPolicy());
+      u.setRateLimiter(conf.getRateLimiter());
+      u.setSmallFileSize(conf.getUploadSmallFileSize());
+      u.getProgress().setStallTimeout(conf.getUploadStallTimeout());
+      if (conf.getUploadProgressInterval() > 0) {
+         u.getProgress().register();
+      }
+      u.getProgress().start(conf.getUploadProgressInterval());
+      if (conf.getUploadPartSize() > 0) {
+         u.setPartSize(conf.getUploadPartSize());
+         try {
+            u.setPartStore(new PartStore(new File(conf.getStateDir(), "parts.properties")));
+         } catch (IOException e) {
+            error("Error reading uploaded parts from %s: %s", conf.getStateDir().getAbsolutePath(), e.getMessage());
+         }
+      }
+      return u;
+   }
+
+   /**
+    * The checksums of an archive are taken while it is written, the
+    * checksums of other files while they are uploaded
+    */
+   private void prepareChecksums(Uploader u, Collector collector) {
+      if (conf.isUploadChecksums() && !(collector instanceof ArchiveCollector)) {
+         u.setChecksums(new ChecksumManifest());
+      }
+   }
+
+   private void uploadStreamed(Uploader u, ArchiveCollector archive) throws IOException {
+      final EntrySource source = archive.stream();
+      // the checksums are known only once the whole archive has been sent
+      u.upload(source, conf.getGdcUploadPath(), archive.getMainFile(),
+            archive.getChecksums(), archive.getChecksumFile());
+   }
+
+   private Collector createCollector(Date now) throws IOException {
+      final Collector collector;
+      if (conf.getGdcUploadArchive() != null) {
+         ArchiveCollector archive = new ArchiveCollector(conf.getGdcUploadArchive(), now);
+         archive.setZipThreads(conf.getZipThreads());
+         archive.setZipBlocksInFlight(conf.getZipBlocksInFlight());
+         archive.setCompression(conf.getCompression());
+         archive.setVolumeSize(conf.getArchiveVolumeSize());
+         archive.setChecksums(conf.isUploadChecksums());
+         collector = archive;
+      } else {
+         ManifestCollector manifest = new ManifestCollector(conf.getGdcUploadManifest(), now);
+         if (conf.isUploadSkipUnchanged()) {
+            try {
+               manifest.setDigests(new DigestStore(new File(conf.getStateDir(), "digests.properties")));
+            } catch (IOException e) {
+               throw new IOException(format("Error reading file digests from %s: %s",
+                     conf.getStateDir().getAbsolutePath(), e.getMessage()), e);
+            }
+         }
+         collector = manifest;
+      }
+      collector.setMaxRowsPerFile(conf.getUploadMaxRowsPerFile());
+      collector.setMaxBytesPerFile(conf.getUploadMaxBytesPerFile());
+      collector.setPartSize(conf.getUploadPartSize());
+      return collector;
+   }
+
+   private void executeEtl(GdcRESTApiWrapper client, Collector collector) {
+      EtlParams etlParams = createEtlParameters(conf, collector);
+      GraphExecutionResult ger = client.executeGraph(
+            conf.getGdcEtlProcessUrl(), conf.getGdcEtlGraph(), etlParams.params, etlParams.hiddenParams);
+      ok(format("Graph %s under %s executed, log file at %s",
+            conf.getGdcEtlProcessPath(), conf.getGdcEtlGraph(),
+            ger.getLogUrl()));
    }
 
    private static EtlParams createEtlParameters(Configuration conf, Collector collector) {
@@ -203,7 +388,11 @@ public class Main {
       return format("%s/%s", conf.getGdcUploadUrl().replaceAll("/$", ""), collector.getMainFile());
    }
 
-   private void jdbcExtract(Collector collector) {
+   /**
+    * @return the extractor to be committed once the extracts are uploaded
+    *       or <tt>null</tt> if there is no JDBC data source
+    */
+   private JdbcExtractor jdbcExtract(Collector collector) {
       if (conf.getJdbcUrl() != null) {
          JdbcConnector connector = new JdbcConnector();
          connector.setDriver(conf.getJdbcDriver());
@@ -214,44 +403,104 @@ public class Main {
          connector.setJdbcUrl(conf.getJdbcUrl());
          connector.setUsername(conf.getJdbcUsername());
          connector.setPassword(conf.getJdbcPassword());
+         connector.setMaxPoolSize(Math.max(conf.getJdbcPoolMaxSize(), conf.getJdbcParallelism()));
+         connector.setIdleTimeout(conf.getJdbcPoolIdleTimeout() * 1000L);
          JdbcExtractor extractor = new JdbcExtractor(connector);
+         extractor.setParallelism(conf.getJdbcParallelism());
+         extractor.setStreaming(conf.isJdbcStreaming());
+         extractor.setFetchSize(conf.getJdbcFetchSize());
+         extractor.setDatePattern(conf.getJdbcDateFormat());
+         extractor.setTimestampPattern(conf.getJdbcTimestampFormat());
+         try {
+            extractor.setWatermarks(new WatermarkStore(new File(conf.getStateDir(), "watermarks.properties")));
+         } catch (IOException e) {
+            error("Error reading watermarks from %s: %s", conf.getStateDir().getAbsolutePath(), e.getMessage());
+         }
+         extractor.setResetWatermarks(conf.isJdbcResetWatermarks());
+         extractor.setHashIndexDir(new File(conf.getStateDir(), "hashes"));
+         if (conf.isJdbcDirectArchive()) {
+            // the queries run while the archive is being created
+            for (final JdbcDataset dataset : conf.getJdbcDatasets()) {
+               collector.add(dataset.getName() + ".csv", new JdbcEntrySource(extractor, dataset, false));
+               if (dataset.isChangeDetected() && dataset.isChangeDeletes()) {
+                  // entries are written in order, so the deletes are known by then
+                  collector.add(JdbcExtractor.deletesFileName(dataset.getName()),
+                        new JdbcEntrySource(extractor, dataset, true));
+               }
+            }
+            return extractor;
+         }
          try {
             File jdbcExtractsDir = extractor.extract(conf
-                  .getJdbcExtractMappings());
+                  .getJdbcDatasets());
             if (jdbcExtractsDir != null) { // there are some database extracts
-               try {
-                  collector.add(jdbcExtractsDir, "*");
-               } catch (IOException e) {
-                  error("Cannot read database extracts from temporary directory %s",
-                        jdbcExtractsDir.getAbsolutePath());
-               }
+               addExtracts(collector, jdbcExtractsDir);
             }
-         } catch (IOException e) {
-            error("Error extracting data from database: %s", e.getMessage());
-         } catch (SQLException e) {
-            error("Error extracting data from database: %s", e.getMessage());
+         } catch (JdbcExtractException e) {
+            for (Map.Entry<String, Exception> failed : e.getErrors().entrySet()) {
+               l.error(format("Error extracting data set %s: %s", failed.getKey(), failed.getValue().getMessage()),
+                     failed.getValue());
+            }
+            // the failed data sets keep their watermarks, so the next run extracts them again
+            failedDatasets = e.getErrors().size();
+            addExtracts(collector, e.getExtractsDir());
          }
+         return extractor;
       } else {
          ok("JDBC data source not configured, skipping");
+         return null;
+      }
+   }
+
+   private void addExtracts(Collector collector, File extractsDir) {
+      final String[] files = extractsDir.list();
+      if (files == null || files.length == 0) {
+         return; // no data set finished
+      }
+      try {
+         collector.add(extractsDir, "*");
+      } catch (IOException e) {
+         error("Cannot read database extracts from temporary directory %s",
+               extractsDir.getAbsolutePath());
       }
    }
 
    public void fsExtract(Collector collector) {
       if (conf.getFsInputDir() != null) {
          try {
-            collector.add(conf.getFsInputDir(), conf.getFsWildcard());
+            collector.add(fsScanner());
          } catch (IOException e) {
-            error("Error reading from %s", conf.getFsInputDir());
+            error("Error reading from %s: %s", conf.getFsInputDir(), e.getMessage());
          }
       }
    }
 
+   private FileScanner fsScanner() {
+      final FileScanner scanner = new FileScanner();
+      for (String dir : conf.getFsInputDir().split(",")) {
+         scanner.getRoots().add(new File(dir.trim()));
+      }
+      if (conf.getFsWildcard() != null) {
+         scanner.setPattern(conf.getFsWildcard());
+      }
+      scanner.setMaxDepth(conf.getFsMaxDepth());
+      scanner.setMinSize(conf.getFsMinSize());
+      scanner.setMaxSize(conf.getFsMaxSize());
+      scanner.setMinAge(conf.getFsMinAge());
+      scanner.setMaxAge(conf.getFsMaxAge());
+      return scanner;
+   }
+
    public static void main(String[] args) {
       if (new File(LOG4J_FILENAME).exists()) {
          PropertyConfigurator.configure(LOG4J_FILENAME);
       }
       Main m = new Main(args);
-      m.run();
+      if (m.conf.isFsWatch()) {
+         m.watch();
+      } else {
+         m.run();
+      }
    }
 
    private static NamePasswordConfiguration buildNamePasswordConfiguration(
@@ -277,6 +526,33 @@ public class Main {
       System.exit(1);
    }
 
+   private static class JdbcEntrySource implements EntrySource {
+      private final JdbcExtractor extractor;
+      private final JdbcDataset dataset;
+      private final boolean deletes;
+
+      JdbcEntrySource(JdbcExtractor extractor, JdbcDataset dataset, boolean deletes) {
+         this.extractor = extractor;
+         this.dataset = dataset;
+         this.deletes = deletes;
+      }
+
+      public void writeTo(OutputStream out) throws IOException {
+         try {
+            if (deletes) {
+               extractor.writeDeletes(dataset, out);
+            } else {
+               extractor.extract(dataset, out);
+            }
+         } catch (SQLException e) {
+            throw new IOException(format("Error extracting data set %s: %s", dataset.getName(), e.getMessage()), e);
+         } catch (RuntimeException e) {
+            // e.g. the driver cannot be loaded, reported the same way as extracts to files
+            throw new IOException(format("Error extracting data set %s: %s", dataset.getName(), e.getMessage()), e);
+         }
+      }
+   }
+
    private static class EtlParams {
       final Map<String,String> params;
       final Map<String,String> hiddenParams;
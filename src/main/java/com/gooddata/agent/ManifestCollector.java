@@ -23,18 +23,32 @@
 
 package com.gooddata.agent;
 
+import static java.lang.String.format;
+
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class ManifestCollector extends AbstractFileCollector implements Collector {
 	private final Date now;
 	private final String fileNameTemplate;
 	private String mainFile = null;
+	private DigestStore digests = null;
 
 	public String getMainFile() {
 		return mainFile;
@@ -45,20 +59,132 @@ public class ManifestCollector extends AbstractFileCollector implements Collecto
 		this.fileNameTemplate = fileNameTemplate;
 	}
 
+	/**
+	 * Not supported, all files listed in a manifest are uploaded separately
+	 */
+	public void add(String name, EntrySource source) {
+		throw new UnsupportedOperationException("Streamed files can be collected into an archive only");
+	}
+
 	@Override
 	public Map<File, String> collect() throws IOException {
-		File manifest = File.createTempFile("gdca-", ".txt");
-        manifest.deleteOnExit();
+		File manifest = tempFile(".txt");
         BufferedWriter mnfWrtr = new BufferedWriter(new FileWriter(manifest));
         Map<File,String> result = new HashMap<File, String>();
+        final CsvSplitter splitter = splitter();
+        // remote names to the collected files, nested paths may flatten to the same name
+        final Map<String, String> remoteNames = new HashMap<String, String>();
         for (Map.Entry<String, File> e : inputFilesMap.entrySet()) {
-        	final String filename = e.getKey() + "." + now.getTime() + ".csv";
-        	result.put(e.getValue(), filename);
-        	mnfWrtr.write(filename + "\n");
+        	final boolean split = splitter != null && splitter.isSplit(e.getKey(), e.getValue());
+        	final Map<String, File> files;
+        	final String digest;
+        	if (split) {
+        		// hashed while being split rather than read once more
+        		final MessageDigest md = (digests == null) ? null : DigestStore.newDigest();
+        		files = split(e.getKey(), e.getValue(), splitter, md);
+        		digest = (md == null) ? null : ChecksumManifest.hex(md.digest());
+        	} else {
+        		files = Collections.singletonMap(e.getKey(), e.getValue());
+        		digest = (digests == null) ? null : DigestStore.digest(e.getValue());
+        	}
+        	final List<String> uploaded = (digest == null) ? null : digests.getRemoteNames(e.getKey(), digest);
+        	if (uploaded != null) {
+        		// unchanged since the last run, refer to the files uploaded then
+        		if (split) {
+        			for (File part : files.values()) {
+        				part.delete();
+        			}
+        		}
+        		for (String filename : uploaded) {
+        			checkRemoteName(remoteNames, filename, e.getKey());
+        			mnfWrtr.write(filename + "\n");
+        		}
+        		continue;
+        	}
+        	final List<String> filenames = new ArrayList<String>();
+        	for (Map.Entry<String, File> f : files.entrySet()) {
+        		// files are uploaded into a single remote directory
+        		final String filename = f.getKey().replace('/', '_') + "." + now.getTime() + ".csv";
+        		// large files are listed as their lists of parts
+        		final String listed = uploadedName(filename, f.getValue());
+        		checkRemoteName(remoteNames, listed, e.getKey());
+        		result.put(f.getValue(), filename);
+        		mnfWrtr.write(listed + "\n");
+        		filenames.add(listed);
+        	}
+        	if (digest != null) {
+        		digests.update(e.getKey(), digest, filenames);
+        	}
         }
 		mnfWrtr.close();
-		this.mainFile = Utils.generateRemoteFileName(fileNameTemplate, now);
-		result.put(manifest, mainFile);
+		final String name = Utils.generateRemoteFileName(fileNameTemplate, now);
+		this.mainFile = uploadedName(name, manifest);
+		result.put(manifest, name);
 		return result;
 	}
+
+	/**
+	 * Saves the digests of the uploaded files
+	 */
+	public void commit() throws IOException {
+		if (digests != null) {
+			digests.commit();
+		}
+	}
+
+	public DigestStore getDigests() {
+		return digests;
+	}
+
+	/**
+	 * @param digests store of content digests of the files uploaded by
+	 * 		previous runs; files whose content has not changed since are
+	 * 		not uploaded again, the manifest lists their remote names
+	 */
+	public void setDigests(DigestStore digests) {
+		this.digests = digests;
+	}
+
+	/**
+	 * @throws IOException if another collected file has been given the same remote name
+	 */
+	private static void checkRemoteName(Map<String, String> remoteNames, String remoteName, String name)
+			throws IOException {
+		final String previous = remoteNames.put(remoteName, name);
+		if (previous != null && !previous.equals(name)) {
+			throw new IOException(format("Both '%s' and '%s' would be uploaded as '%s'", previous, name, remoteName));
+		}
+	}
+
+	/**
+	 * Splits a file into temporary part files
+	 * @param digest receives the content of the file, may be <tt>null</tt>
+	 * @return map of part names to the part files
+	 */
+	private Map<String, File> split(final String name, File file, CsvSplitter splitter, MessageDigest digest)
+			throws IOException {
+		final Map<String, File> parts = new LinkedHashMap<String, File>();
+		final OutputStream[] out = new OutputStream[1];
+		final InputStream in = (digest == null) ? new FileInputStream(file)
+				: new DigestInputStream(new FileInputStream(file), digest);
+		try {
+			splitter.split(in, new CsvSplitter.Parts() {
+				public OutputStream next(int part) throws IOException {
+					if (out[0] != null) {
+						out[0].close();
+					}
+					final File partFile = tempFile(".csv");
+					parts.put(CsvSplitter.partName(name, part), partFile);
+					out[0] = new BufferedOutputStream(new FileOutputStream(partFile));
+					return out[0];
+				}
+			});
+		} finally {
+			in.close();
+			if (out[0] != null) {
+				out[0].close();
+			}
+		}
+		return parts;
+	}
 }
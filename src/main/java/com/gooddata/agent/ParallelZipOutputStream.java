@@ -0,0 +1,635 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip archive compressing the entries on several threads. Entries
+ * are cut into blocks that are deflated independently, each of them primed
+ * with the last 32 KB of the preceding block (the way <tt>pigz</tt> does it),
+ * and assembled in order into ordinary deflated entries. Any zip reader can
+ * read the result.
+ * <p>
+ * Sizes and checksums follow the data of each deflated entry in a data
+ * descriptor. Entries may also be stored without compression, their size
+ * must be known up front; their checksum either too, or it is taken while
+ * the data is written and follows it in a data descriptor as well (such
+ * entries are read from the central directory, not by
+ * {@link java.util.zip.ZipInputStream}). ZIP64 records are used for entries
+ * and archives over 4 GB; as the local header of a deflated entry is
+ * written before its size is known, entries that may grow that large (by
+ * their expected size, or because it is not known) get a ZIP64 local
+ * header and a ZIP64 data descriptor. The number of
+ * blocks being compressed or waiting to be written is limited, so memory use
+ * is bounded by about twice that number of blocks.
+ */
+public class ParallelZipOutputStream extends OutputStream {
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	private static final int FLAGS = 0x0808; // data descriptor, UTF-8 names
+	private static final int STORED_FLAGS = 0x0800; // UTF-8 names
+
+	private final OutputStream out;
+	private final ExecutorService executor;
+	private final int maxBlocksInFlight;
+	private final int blockSize;
+	private final int level;
+	private final LinkedList<Pending> pending = new LinkedList<Pending>();
+	private int blocksInFlight = 0;
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final CRC32 crc = new CRC32();
+	private ChecksumManifest checksums = null;
+	private MessageDigest digest = null;
+	private final byte[] scratch = new byte[8];
+	private Entry entry = null;
+	private byte[] block = null;
+	private byte[] previousBlock = null;
+	private int blockLength = 0;
+	private long written = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param out the stream the archive is written into
+	 * @param threads number of compressing threads
+	 * @param maxBlocksInFlight maximum number of blocks being compressed
+	 * 		or waiting to be written
+	 */
+	public ParallelZipOutputStream(OutputStream out, int threads, int maxBlocksInFlight) {
+		this(out, threads, maxBlocksInFlight, Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param level the deflate compression level
+	 * @param blockSize size of the independently compressed blocks, at least 32 KB
+	 */
+	public ParallelZipOutputStream(OutputStream out, int threads, int maxBlocksInFlight, int level, int blockSize) {
+		if (threads < 1 || maxBlocksInFlight < 1) {
+			throw new IllegalArgumentException("threads and maxBlocksInFlight must be positive numbers");
+		}
+		if (blockSize < DICTIONARY_SIZE) {
+			throw new IllegalArgumentException("blockSize must be at least " + DICTIONARY_SIZE);
+		}
+		this.out = out;
+		this.maxBlocksInFlight = maxBlocksInFlight;
+		this.blockSize = blockSize;
+		this.level = level;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "gdca-zip");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Closes the current entry (if any) and starts a new deflated one
+	 * @param name entry name
+	 * @param time modification time of the entry
+	 * @param level the deflate compression level of the entry
+	 * @param expectedSize the size of the entry data if known up front
+	 * 		(e.g. the length of a file), -1 otherwise; entries of unknown
+	 * 		size get a ZIP64 local header and data descriptor
+	 */
+	public void putNextEntry(String name, long time, int level, long expectedSize) throws IOException {
+		if (level == Deflater.NO_COMPRESSION) {
+			throw new IllegalArgumentException("Use putNextStoredEntry() for entries without compression");
+		}
+		startEntry(new Entry(name, time, level));
+		final Entry header = entry;
+		// deflate may expand incompressible data a little
+		header.zip64Header = expectedSize < 0 || expectedSize + (expectedSize >> 10) + 1024 >= ZIP64_MAGIC;
+		enqueue(new Pending() {
+			void write() throws IOException {
+				header.offset = written;
+				writeInt(0x04034b50);
+				writeShort(header.zip64Header ? 45 : 20);
+				writeShort(FLAGS);
+				writeShort(Deflater.DEFLATED);
+				writeInt(header.dosTime);
+				writeInt(0); // crc and sizes are in the data descriptor
+				writeInt(header.zip64Header ? ZIP64_MAGIC : 0);
+				writeInt(header.zip64Header ? ZIP64_MAGIC : 0);
+				writeShort(header.name.length);
+				writeShort(header.zip64Header ? 20 : 0);
+				writeBytes(header.name, 0, header.name.length);
+				if (header.zip64Header) {
+					// tells readers that the data descriptor holds 8 byte sizes
+					writeShort(0x0001);
+					writeShort(16);
+					writeLong(0);
+					writeLong(0);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts a deflated entry that is not going to exceed 4 GB, closing
+	 * a larger one fails
+	 */
+	public void putNextEntry(String name, long time, int level) throws IOException {
+		putNextEntry(name, time, level, 0);
+	}
+
+	public void putNextEntry(String name, long time) throws IOException {
+		putNextEntry(name, time, level);
+	}
+
+	public void putNextEntry(String name) throws IOException {
+		putNextEntry(name, System.currentTimeMillis());
+	}
+
+	/**
+	 * Closes the current entry (if any) and starts a new one stored without
+	 * compression, e.g. for data that is compressed already. The data written
+	 * must match the given size and checksum.
+	 * @param size the size of the entry data
+	 * @param checksum the CRC-32 of the entry data
+	 */
+	public void putNextStoredEntry(String name, long time, long size, long checksum) throws IOException {
+		startStoredEntry(name, time, size, checksum, false);
+	}
+
+	/**
+	 * Closes the current entry (if any) and starts a new one stored without
+	 * compression whose checksum is taken while its data is written, so
+	 * that the data is read once only. The data written must match the
+	 * given size.
+	 * @param size the size of the entry data
+	 */
+	public void putNextStoredEntry(String name, long time, long size) throws IOException {
+		startStoredEntry(name, time, size, 0, true);
+	}
+
+	private void startStoredEntry(String name, long time, final long size, final long checksum,
+			boolean descriptor) throws IOException {
+		startEntry(new Entry(name, time, Deflater.NO_COMPRESSION));
+		final Entry header = entry;
+		header.descriptor = descriptor;
+		header.zip64Header = size >= ZIP64_MAGIC;
+		enqueue(new Pending() {
+			void write() throws IOException {
+				final boolean zip64 = header.zip64Header;
+				header.offset = written;
+				writeInt(0x04034b50);
+				writeShort(zip64 ? 45 : (header.descriptor ? 20 : 10));
+				writeShort(header.descriptor ? FLAGS : STORED_FLAGS);
+				writeShort(Deflater.NO_COMPRESSION);
+				writeInt(header.dosTime);
+				writeInt(checksum); // 0 if it is in the data descriptor
+				writeInt(Math.min(size, ZIP64_MAGIC));
+				writeInt(Math.min(size, ZIP64_MAGIC));
+				writeShort(header.name.length);
+				writeShort(zip64 ? 20 : 0);
+				writeBytes(header.name, 0, header.name.length);
+				if (zip64) {
+					writeShort(0x0001);
+					writeShort(16);
+					writeLong(size);
+					writeLong(size);
+				}
+			}
+		});
+		header.expectedSize = size;
+		header.crc = checksum;
+	}
+
+	private void startEntry(Entry next) throws IOException {
+		ensureOpen();
+		if (entry != null) {
+			closeEntry();
+		}
+		entry = next;
+		entries.add(entry);
+		crc.reset();
+		if (checksums != null) {
+			digest = ChecksumManifest.newDigest();
+		}
+		block = new byte[blockSize];
+		blockLength = 0;
+		previousBlock = null;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte)b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (entry == null) {
+			throw new IOException("No current zip entry");
+		}
+		crc.update(b, off, len);
+		if (digest != null) {
+			digest.update(b, off, len);
+		}
+		entry.size += len;
+		while (len > 0) {
+			final int n = Math.min(len, blockSize - blockLength);
+			System.arraycopy(b, off, block, blockLength, n);
+			blockLength += n;
+			off += n;
+			len -= n;
+			if (blockLength == blockSize) {
+				submitBlock(false);
+				previousBlock = block;
+				block = new byte[blockSize];
+				blockLength = 0;
+			}
+		}
+	}
+
+	/**
+	 * Finishes the current entry; its blocks may still be compressed
+	 * in the background
+	 */
+	public void closeEntry() throws IOException {
+		ensureOpen();
+		if (entry == null) {
+			return;
+		}
+		submitBlock(true);
+		if (digest != null) {
+			checksums.add(entry.toString(), digest);
+			digest = null;
+		}
+		if (entry.isStored()) {
+			if (entry.size != entry.expectedSize || (!entry.descriptor && crc.getValue() != entry.crc)) {
+				throw new IOException("The data of " + entry + " does not match its size or checksum");
+			}
+			entry.csize = entry.size;
+			if (!entry.descriptor) {
+				entry = null;
+				block = null;
+				return;
+			}
+		}
+		entry.crc = crc.getValue();
+		final Entry trailer = entry;
+		enqueue(new Pending() {
+			void write() throws IOException {
+				if (trailer.isZip64() && !trailer.zip64Header) {
+					throw new IOException(trailer + " grew over 4 GB, more than its expected size");
+				}
+				writeInt(0x08074b50);
+				writeInt(trailer.crc);
+				if (trailer.zip64Header) {
+					writeLong(trailer.csize);
+					writeLong(trailer.size);
+				} else {
+					writeInt(trailer.csize);
+					writeInt(trailer.size);
+				}
+			}
+		});
+		entry = null;
+		block = null;
+		previousBlock = null;
+	}
+
+	/**
+	 * @param checksums receives the digests of the data of the entries
+	 * 		started from now on, may be <tt>null</tt>
+	 */
+	public void setChecksums(ChecksumManifest checksums) {
+		this.checksums = checksums;
+	}
+
+	/**
+	 * Waits for the blocks being compressed and writes them out
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		while (!pending.isEmpty()) {
+			writePending();
+		}
+		out.flush();
+	}
+
+	/**
+	 * @return number of bytes of the archive written out so far, see {@link #flush()}
+	 */
+	public long getBytesWritten() {
+		return written;
+	}
+
+	/**
+	 * Writes the remaining entries and the central directory
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			closeEntry();
+			while (!pending.isEmpty()) {
+				writePending();
+			}
+			writeCentralDirectory();
+			out.flush();
+		} finally {
+			closed = true;
+			executor.shutdownNow();
+			out.close();
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	private void submitBlock(final boolean last) throws IOException {
+		if (entry.isStored()) {
+			storeBlock();
+			return;
+		}
+		final byte[] data = block, dictionary = previousBlock;
+		final int length = blockLength, dictionaryOffset = blockSize - DICTIONARY_SIZE;
+		final Entry owner = entry;
+		final Future<byte[]> compressed = executor.submit(new Callable<byte[]>() {
+			public byte[] call() {
+				return deflate(data, length, dictionary, dictionaryOffset, owner.level, last);
+			}
+		});
+		blocksInFlight++;
+		enqueue(new Pending() {
+			boolean isReady() {
+				return compressed.isDone();
+			}
+
+			void write() throws IOException {
+				final byte[] bytes;
+				try {
+					bytes = compressed.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while compressing " + owner);
+				} catch (ExecutionException e) {
+					throw new IOException("Error compressing " + owner + ": " + e.getCause(), e.getCause());
+				}
+				blocksInFlight--;
+				owner.csize += bytes.length;
+				writeBytes(bytes, 0, bytes.length);
+			}
+		});
+		while (blocksInFlight >= maxBlocksInFlight) {
+			writePending();
+		}
+	}
+
+	/**
+	 * Queues a block of a stored entry as it is
+	 */
+	private void storeBlock() throws IOException {
+		final byte[] data = block;
+		final int length = blockLength;
+		blocksInFlight++;
+		enqueue(new Pending() {
+			void write() throws IOException {
+				blocksInFlight--;
+				writeBytes(data, 0, length);
+			}
+		});
+		while (blocksInFlight >= maxBlocksInFlight) {
+			writePending();
+		}
+	}
+
+	/**
+	 * Deflates a block into raw deflate data ending at a byte boundary.
+	 * Only the last block of an entry is marked as final.
+	 */
+	private byte[] deflate(byte[] data, int length, byte[] dictionary, int dictionaryOffset, int level, boolean last) {
+		final Deflater deflater = new Deflater(level, true);
+		try {
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary, dictionaryOffset, DICTIONARY_SIZE);
+			}
+			deflater.setInput(data, 0, length);
+			if (last) {
+				deflater.finish();
+			}
+			byte[] buf = new byte[length + (length >> 3) + 64];
+			int pos = 0;
+			while (true) {
+				if (pos == buf.length) {
+					buf = Arrays.copyOf(buf, buf.length * 2);
+				}
+				final int space = buf.length - pos;
+				final int n = deflater.deflate(buf, pos, space, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+				pos += n;
+				if (last ? deflater.finished() : (n < space && deflater.needsInput())) {
+					break;
+				}
+			}
+			return Arrays.copyOf(buf, pos);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private void enqueue(Pending p) throws IOException {
+		pending.add(p);
+		// write out whatever does not need to wait for the compression
+		while (!pending.isEmpty() && pending.getFirst().isReady()) {
+			writePending();
+		}
+	}
+
+	private void writePending() throws IOException {
+		pending.removeFirst().write();
+	}
+
+	private void writeCentralDirectory() throws IOException {
+		final long start = written;
+		for (Entry e : entries) {
+			final boolean zip64 = e.isZip64() || e.offset >= ZIP64_MAGIC;
+			final int extraLength = zip64 ? 4 + 8 * ((e.size >= ZIP64_MAGIC ? 1 : 0)
+					+ (e.csize >= ZIP64_MAGIC ? 1 : 0) + (e.offset >= ZIP64_MAGIC ? 1 : 0)) : 0;
+			writeInt(0x02014b50);
+			writeShort(zip64 ? 45 : 20);
+			writeShort(zip64 ? 45 : (e.isStored() && !e.descriptor ? 10 : 20));
+			writeShort(e.descriptor ? FLAGS : STORED_FLAGS);
+			writeShort(e.isStored() ? Deflater.NO_COMPRESSION : Deflater.DEFLATED);
+			writeInt(e.dosTime);
+			writeInt(e.crc);
+			writeInt(Math.min(e.csize, ZIP64_MAGIC));
+			writeInt(Math.min(e.size, ZIP64_MAGIC));
+			writeShort(e.name.length);
+			writeShort(extraLength);
+			writeShort(0); // comment
+			writeShort(0); // disk number
+			writeShort(0); // internal attributes
+			writeInt(0); // external attributes
+			writeInt(Math.min(e.offset, ZIP64_MAGIC));
+			writeBytes(e.name, 0, e.name.length);
+			if (zip64) {
+				writeShort(0x0001);
+				writeShort(extraLength - 4);
+				if (e.size >= ZIP64_MAGIC) {
+					writeLong(e.size);
+				}
+				if (e.csize >= ZIP64_MAGIC) {
+					writeLong(e.csize);
+				}
+				if (e.offset >= ZIP64_MAGIC) {
+					writeLong(e.offset);
+				}
+			}
+		}
+		final long end = written, size = end - start;
+		if (entries.size() >= 0xFFFF || start >= ZIP64_MAGIC || size >= ZIP64_MAGIC) {
+			writeInt(0x06064b50);
+			writeLong(44);
+			writeShort(45);
+			writeShort(45);
+			writeInt(0);
+			writeInt(0);
+			writeLong(entries.size());
+			writeLong(entries.size());
+			writeLong(size);
+			writeLong(start);
+			writeInt(0x07064b50);
+			writeInt(0);
+			writeLong(end);
+			writeInt(1);
+		}
+		writeInt(0x06054b50);
+		writeShort(0);
+		writeShort(0);
+		writeShort(Math.min(entries.size(), 0xFFFF));
+		writeShort(Math.min(entries.size(), 0xFFFF));
+		writeInt(Math.min(size, ZIP64_MAGIC));
+		writeInt(Math.min(start, ZIP64_MAGIC));
+		writeShort(0);
+	}
+
+	// ==== Little endian output =====
+
+	private void writeShort(int v) throws IOException {
+		scratch[0] = (byte)v;
+		scratch[1] = (byte)(v >>> 8);
+		writeBytes(scratch, 0, 2);
+	}
+
+	private void writeInt(long v) throws IOException {
+		for (int i = 0; i < 4; i++) {
+			scratch[i] = (byte)(v >>> (8 * i));
+		}
+		writeBytes(scratch, 0, 4);
+	}
+
+	private void writeLong(long v) throws IOException {
+		for (int i = 0; i < 8; i++) {
+			scratch[i] = (byte)(v >>> (8 * i));
+		}
+		writeBytes(scratch, 0, 8);
+	}
+
+	private void writeBytes(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		written += len;
+	}
+
+	/**
+	 * A part of the archive waiting for the preceding blocks to be compressed
+	 */
+	private abstract class Pending {
+		boolean isReady() {
+			return true;
+		}
+
+		abstract void write() throws IOException;
+	}
+
+	private static class Entry {
+		final byte[] name;
+		final long dosTime;
+		final int level;
+		long crc = 0, size = 0, csize = 0, offset = 0;
+		long expectedSize = -1;
+		/** whether the local header has the ZIP64 extra field, so does the data descriptor then */
+		boolean zip64Header = false;
+		/** whether the crc and sizes follow the data */
+		boolean descriptor = true;
+
+		Entry(String name, long time, int level) throws IOException {
+			this.name = name.getBytes("UTF-8");
+			this.dosTime = dosTime(time);
+			this.level = level;
+		}
+
+		boolean isStored() {
+			return level == Deflater.NO_COMPRESSION;
+		}
+
+		boolean isZip64() {
+			return size >= ZIP64_MAGIC || csize >= ZIP64_MAGIC;
+		}
+
+		@Override
+		public String toString() {
+			try {
+				return new String(name, "UTF-8");
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private static long dosTime(long time) {
+			final Calendar c = Calendar.getInstance();
+			c.setTimeInMillis(time);
+			final int year = c.get(Calendar.YEAR);
+			if (year < 1980) {
+				return (1 << 21) | (1 << 16);
+			}
+			return ((long)(year - 1980) << 25) | ((c.get(Calendar.MONTH) + 1) << 21) | (c.get(Calendar.DAY_OF_MONTH) << 16)
+					| (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+		}
+	}
+}
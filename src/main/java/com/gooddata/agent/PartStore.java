@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Remembers which parts of large files have been uploaded, so that an
+ * upload interrupted by a failure continues with the missing parts. The
+ * record is saved after every part. A file is identified by its length and
+ * the beginning of its content, so an archive built again from the same data
+ * in another temporary file still continues; its parts keep the remote name
+ * of the interrupted upload. The recorded digests of the parts tell whether
+ * they still match the file. Records not continued for {@link #MAX_AGE} are
+ * dropped.
+ */
+public class PartStore {
+	/** milliseconds after which an unfinished upload is forgotten */
+	public static final long MAX_AGE = 7L * 24 * 3600 * 1000;
+
+	private static final String PREFIX = ".prefix", PART_SIZE = ".part_size", STARTED = ".started";
+	/** bytes at the beginning of a file its identifier is taken from */
+	private static final int HEAD_SIZE = 1024 * 1024;
+
+	private final StateFile state;
+	private final Properties props;
+	/** the files being uploaded now */
+	private final Set<String> active = new HashSet<String>();
+
+	public PartStore(File file) throws IOException {
+		this.state = new StateFile(file, "GoodData agent uploaded parts");
+		this.props = state.load();
+		prune();
+	}
+
+	/**
+	 * Forgets the uploads that were not continued for too long, e.g. of
+	 * archives whose data has changed since
+	 */
+	private void prune() throws IOException {
+		final long now = System.currentTimeMillis();
+		boolean changed = false;
+		for (Object key : props.keySet().toArray()) {
+			final String name = (String)key;
+			final String id = (name.indexOf('.') < 0) ? name : name.substring(0, name.indexOf('.'));
+			final String started = props.getProperty(id + STARTED);
+			if (started == null || !started.matches("[0-9]+") || now - Long.parseLong(started) > MAX_AGE) {
+				props.remove(key);
+				changed = true;
+			}
+		}
+		if (changed) {
+			save();
+		}
+	}
+
+	/**
+	 * @return the identifier the parts of a file are recorded under, made of
+	 * 		its length and the digest of its first megabyte; files with the
+	 * 		same identifier may still differ in the rest
+	 */
+	public static String id(File local) throws IOException {
+		final MessageDigest md = DigestStore.newDigest();
+		final byte[] buf = new byte[64 * 1024];
+		final InputStream is = new FileInputStream(local);
+		try {
+			int n, remaining = HEAD_SIZE;
+			while (remaining > 0 && (n = is.read(buf, 0, Math.min(buf.length, remaining))) != -1) {
+				md.update(buf, 0, n);
+				remaining -= n;
+			}
+		} finally {
+			is.close();
+		}
+		return local.length() + "-" + ChecksumManifest.hex(md.digest());
+	}
+
+	/**
+	 * Starts or continues the upload of a file
+	 * @param id identifier of the file, see {@link #id(File)}
+	 * @param remoteName the remote name of the file if it is uploaded for the first time
+	 * @return the remote name the parts are named after, the name used by the
+	 * 		interrupted upload if there was one; <tt>null</tt> if a file with
+	 * 		the same identifier is being uploaded already, the file is not
+	 * 		recorded then
+	 */
+	public synchronized String start(String id, String remoteName, long partSize) throws IOException {
+		if (!active.add(id)) {
+			return null;
+		}
+		final String prefix = props.getProperty(id + PREFIX);
+		final boolean resumed = prefix != null && String.valueOf(partSize).equals(props.getProperty(id + PART_SIZE));
+		if (!resumed) {
+			forget(id);
+			props.setProperty(id + PREFIX, remoteName);
+			props.setProperty(id + PART_SIZE, String.valueOf(partSize));
+		}
+		props.setProperty(id + STARTED, String.valueOf(System.currentTimeMillis()));
+		save();
+		return resumed ? prefix : remoteName;
+	}
+
+	/**
+	 * @return hex encoded digest of the uploaded part or <tt>null</tt> if the
+	 * 		part has not been uploaded yet
+	 */
+	public synchronized String getPart(String id, int part) {
+		return props.getProperty(id + "." + part);
+	}
+
+	/**
+	 * Records an uploaded part
+	 */
+	public synchronized void putPart(String id, int part, String digest) throws IOException {
+		props.setProperty(id + "." + part, digest);
+		save();
+	}
+
+	/**
+	 * Forgets an uploaded part, e.g. once it has been moved from the name
+	 * it was uploaded to
+	 */
+	public synchronized void removePart(String id, int part) throws IOException {
+		if (props.remove(id + "." + part) != null) {
+			save();
+		}
+	}
+
+	/**
+	 * Ends an upload that failed, its record is kept for the next attempt
+	 */
+	public synchronized void release(String id) {
+		active.remove(id);
+	}
+
+	/**
+	 * Forgets a file once all of its parts have been uploaded
+	 */
+	public synchronized void finish(String id) throws IOException {
+		active.remove(id);
+		forget(id);
+	}
+
+	private void forget(String id) throws IOException {
+		boolean changed = false;
+		for (Object key : props.keySet().toArray()) {
+			if (((String)key).startsWith(id + ".")) {
+				props.remove(key);
+				changed = true;
+			}
+		}
+		if (changed) {
+			save();
+		}
+	}
+
+	private void save() throws IOException {
+		state.save(props);
+	}
+}
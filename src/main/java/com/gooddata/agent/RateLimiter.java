@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Token bucket limiting the bandwidth of all uploads together. The bucket
+ * holds up to one second worth of bytes; a transfer may take more tokens
+ * than there are, the following ones wait until the debt is paid. The rate
+ * may depend on the time of day. Urgent transfers, e.g. small files the ETL
+ * needs first, get the tokens before the bulk ones.
+ */
+public class RateLimiter {
+	/** how often the rate of the current time of day is looked up */
+	private static final long SCHEDULE_CHECK_INTERVAL = 1000;
+
+	private static class Window {
+		final int start, end;
+		final long rate;
+
+		Window(int start, int end, long rate) {
+			this.start = start;
+			this.end = end;
+			this.rate = rate;
+		}
+
+		boolean contains(int minute) {
+			// a window may span midnight, e.g. 22:00-06:00
+			return (start <= end) ? (minute >= start && minute < end) : (minute >= start || minute < end);
+		}
+	}
+
+	private final long defaultRate;
+	private final List<Window> schedule = new ArrayList<Window>();
+	private long rate;
+	private long rateCheckedAt = Long.MIN_VALUE;
+	private double tokens;
+	private long refilledAt;
+	private int urgentWaiting = 0;
+
+	/**
+	 * @param defaultRate bytes per second outside the scheduled windows,
+	 * 		0 for no limit
+	 */
+	public RateLimiter(long defaultRate) {
+		this.defaultRate = defaultRate;
+		this.rate = defaultRate;
+		this.tokens = defaultRate;
+		this.refilledAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Limits the rate between the given minutes of the day (local time)
+	 * @param start first minute, e.g. 480 for 8:00
+	 * @param end first minute after the window, may be less than the start
+	 * @param rate bytes per second, 0 for no limit
+	 */
+	public synchronized void addWindow(int start, int end, long rate) {
+		schedule.add(new Window(start, end, rate));
+		rateCheckedAt = Long.MIN_VALUE;
+	}
+
+	/**
+	 * @return bytes per second at the given time, 0 for no limit
+	 */
+	public synchronized long rate(Calendar time) {
+		final int minute = time.get(Calendar.HOUR_OF_DAY) * 60 + time.get(Calendar.MINUTE);
+		for (Window window : schedule) {
+			if (window.contains(minute)) {
+				return window.rate;
+			}
+		}
+		return defaultRate;
+	}
+
+	/**
+	 * Takes the tokens for the bytes sent, waiting until there are some
+	 * @param urgent whether the transfer goes before the bulk ones
+	 */
+	public synchronized void acquire(int bytes, boolean urgent) throws InterruptedIOException {
+		if (urgent) {
+			urgentWaiting++;
+		}
+		try {
+			while (true) {
+				final long now = System.currentTimeMillis();
+				refill(now);
+				if (rate <= 0) {
+					return;
+				}
+				if (tokens > 0 && (urgent || urgentWaiting == 0)) {
+					tokens -= bytes;
+					return;
+				}
+				final long wait = (tokens > 0) ? SCHEDULE_CHECK_INTERVAL : (long)Math.ceil((1 - tokens) * 1000 / rate);
+				wait(Math.max(1, wait));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the upload bandwidth");
+		} finally {
+			if (urgent) {
+				urgentWaiting--;
+				notifyAll();
+			}
+		}
+	}
+
+	private void refill(long now) {
+		if (now - rateCheckedAt >= SCHEDULE_CHECK_INTERVAL || now < rateCheckedAt) {
+			final Calendar time = Calendar.getInstance();
+			time.setTimeInMillis(now);
+			rate = rate(time);
+			rateCheckedAt = now;
+		}
+		if (now > refilledAt) {
+			tokens = Math.min(rate, tokens + (double)rate * (now - refilledAt) / 1000);
+		}
+		refilledAt = now;
+	}
+}
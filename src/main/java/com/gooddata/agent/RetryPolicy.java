@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import static java.lang.String.format;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.httpclient.HttpStatus;
+
+/**
+ * Decides whether a failed WebDAV request is sent again and when. The
+ * delays grow exponentially and are drawn at random from zero to the
+ * current limit ("full jitter") so that parallel uploads failing at the
+ * same moment do not retry at the same moment. All requests uploading
+ * one file draw on a single {@link Budget} of retries.
+ */
+public class RetryPolicy {
+	public static final Integer[] DEFAULT_RETRYABLE_STATUSES = { HttpStatus.SC_REQUEST_TIMEOUT, 429,
+		HttpStatus.SC_INTERNAL_SERVER_ERROR, HttpStatus.SC_BAD_GATEWAY, HttpStatus.SC_SERVICE_UNAVAILABLE,
+		HttpStatus.SC_GATEWAY_TIMEOUT };
+
+	/**
+	 * A request that can be sent again, e.g. a PUT with the content read
+	 * from a file or a MOVE
+	 */
+	public static abstract class Request {
+		private final String description;
+		private final int[] expected;
+
+		/**
+		 * @param description what the request does, for the messages
+		 * @param expected status codes of a successful request
+		 */
+		public Request(String description, int... expected) {
+			this.description = description;
+			this.expected = expected;
+		}
+
+		/**
+		 * Sends the request
+		 * @return the status code
+		 */
+		protected abstract int execute() throws IOException;
+
+		/**
+		 * @param attempt 1 for the first request, 2 for the first retry etc.
+		 */
+		protected boolean isSuccess(int status, int attempt) {
+			for (int e : expected) {
+				if (e == status) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Retries left for one file
+	 */
+	public static class Budget {
+		private int left;
+
+		private Budget(int left) {
+			this.left = left;
+		}
+
+		private synchronized boolean take() {
+			if (left <= 0) {
+				return false;
+			}
+			left--;
+			return true;
+		}
+	}
+
+	private int maxRetries = 5;
+	private long baseDelay = 1000;
+	private long maxDelay = 60000;
+	private final Set<Integer> retryableStatuses = new HashSet<Integer>(Arrays.asList(DEFAULT_RETRYABLE_STATUSES));
+	private final Random random = new Random();
+
+	/**
+	 * @return retry budget for uploading one file
+	 */
+	public Budget budget() {
+		return new Budget(maxRetries);
+	}
+
+	/**
+	 * Sends the request until it succeeds, fails with a status or an
+	 * exception that is not retryable, or the budget is spent
+	 * @return status code of the successful request
+	 * @throws IOException the last error
+	 */
+	public int execute(Request request, Budget budget, UploadStats stats) throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			int status = 0;
+			IOException error = null;
+			stats.request();
+			try {
+				status = request.execute();
+			} catch (IOException e) {
+				error = e;
+			}
+			if (error == null && request.isSuccess(status, attempt)) {
+				return status;
+			}
+			final String reason;
+			final boolean retryable;
+			if (error == null) {
+				reason = String.valueOf(status);
+				retryable = isRetryable(status);
+				error = new IOException(format("%s failed: %s (status code = %d)",
+						request.description, HttpStatus.getStatusText(status), status));
+			} else {
+				reason = error.getClass().getSimpleName();
+				retryable = isRetryable(error);
+			}
+			if (!retryable || !budget.take()) {
+				stats.failure();
+				throw error;
+			}
+			final long delay = delay(attempt);
+			stats.retry(reason);
+			System.out.println(format("%s failed (%s), retrying in %d ms", request.description, reason, delay));
+			try {
+				sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(request.description + " interrupted");
+			}
+		}
+	}
+
+	public boolean isRetryable(int status) {
+		return retryableStatuses.contains(status);
+	}
+
+	/**
+	 * Connection problems are retryable, a missing local file is not
+	 */
+	public boolean isRetryable(IOException e) {
+		return !(e instanceof FileNotFoundException) && !(e instanceof InterruptedIOException
+				&& Thread.currentThread().isInterrupted());
+	}
+
+	/**
+	 * @param attempt the failed attempt, 1 for the first request
+	 * @return random delay from zero to the base delay doubled with each
+	 * 		failed attempt, at most the maximum delay
+	 */
+	long delay(int attempt) {
+		final long limit = (attempt > 30) ? maxDelay : Math.min(maxDelay, baseDelay << (attempt - 1));
+		return (long)(random.nextDouble() * limit);
+	}
+
+	void sleep(long millis) throws InterruptedException {
+		Thread.sleep(millis);
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * @param maxRetries retries allowed for one file, 0 disables retries
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public long getBaseDelay() {
+		return baseDelay;
+	}
+
+	/**
+	 * @param baseDelay the limit of the delay before the first retry in ms
+	 */
+	public void setBaseDelay(long baseDelay) {
+		this.baseDelay = baseDelay;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	public void setMaxDelay(long maxDelay) {
+		this.maxDelay = maxDelay;
+	}
+
+	public void setRetryableStatuses(Integer... statuses) {
+		retryableStatuses.clear();
+		retryableStatuses.addAll(Arrays.asList(statuses));
+	}
+}
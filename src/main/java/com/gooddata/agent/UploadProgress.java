@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import static java.lang.String.format;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Counts the bytes of the request bodies of an {@link Uploader} as they are
+ * sent. The overall and per-file progress, the throughput and the estimated
+ * time to the end are logged periodically and published over JMX. A file
+ * that makes no progress for the stall timeout is reported and its request
+ * aborted, so that it is retried rather than left hanging.
+ */
+public class UploadProgress implements UploadProgressMBean {
+	public static final String OBJECT_NAME = "com.gooddata.agent:type=UploadProgress";
+
+	private static Logger l = Logger.getLogger(UploadProgress.class);
+
+	/**
+	 * A request body being sent
+	 */
+	class Transfer {
+		private final String name;
+		private final long length;
+		private final HttpMethod method;
+		private final AtomicLong sent = new AtomicLong();
+		private volatile long progressAt = System.currentTimeMillis();
+		private volatile boolean stalled = false;
+		private volatile HttpConnection connection = null;
+
+		private Transfer(String name, long length, HttpMethod method) {
+			this.name = name;
+			this.length = length;
+			this.method = method;
+		}
+
+		/**
+		 * @param connection the connection the request is sent on
+		 */
+		void setConnection(HttpConnection connection) {
+			this.connection = connection;
+		}
+
+		/**
+		 * Fails the request. A request writing to a full socket holds the
+		 * lock of the connection's stream, the output is shut down first to
+		 * release it; it is done in another thread in case it blocks anyway.
+		 * {@link HttpConnection#close()} cannot be used instead, it waits for
+		 * the same lock, hence the deprecated {@link HttpConnection#shutdownOutput()}.
+		 */
+		@SuppressWarnings("deprecation")
+		private void abort() {
+			final Thread abort = new Thread("gdca-upload-abort") {
+				public void run() {
+					final HttpConnection c = connection;
+					if (c != null) {
+						c.shutdownOutput();
+					}
+					method.abort();
+				}
+			};
+			abort.setDaemon(true);
+			abort.start();
+		}
+
+		/**
+		 * @return stream counting the bytes read from the given one
+		 */
+		InputStream count(InputStream in) {
+			return new FilterInputStream(in) {
+				@Override
+				public int read() throws IOException {
+					final int b = super.read();
+					if (b != -1) {
+						sent(1);
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					final int n = super.read(b, off, len);
+					if (n > 0) {
+						sent(n);
+					}
+					return n;
+				}
+			};
+		}
+
+		private void sent(int n) {
+			sent.addAndGet(n);
+			bytesSent.addAndGet(n);
+			progressAt = System.currentTimeMillis();
+			if (stalled) {
+				stalled = false;
+				l.info(name + " is making progress again");
+			}
+		}
+
+		@Override
+		public String toString() {
+			return (length > 0) ? format("%s %d%%", name, 100 * sent.get() / length)
+					: name + " " + FileUtils.byteCountToDisplaySize(sent.get());
+		}
+	}
+
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesDone = new AtomicLong();
+	private final Set<Transfer> transfers = new LinkedHashSet<Transfer>();
+	private volatile long bytesTotal = -1;
+	private volatile long startedAt = System.currentTimeMillis();
+	private volatile long currentThroughput = 0;
+	private long reportedAt = startedAt;
+	private long reportedBytes = 0;
+	private long stallTimeout = 0;
+	private ScheduledExecutorService reporter = null;
+
+	/**
+	 * Starts counting an upload of the given number of bytes
+	 * @param total bytes to upload, -1 if not known
+	 */
+	public synchronized void begin(long total) {
+		bytesTotal = total;
+		bytesSent.set(0);
+		bytesDone.set(0);
+		startedAt = System.currentTimeMillis();
+		reportedAt = startedAt;
+		reportedBytes = 0;
+		currentThroughput = 0;
+	}
+
+	/**
+	 * Starts a request sending a file or its part
+	 * @param length bytes of the request body, -1 if not known
+	 * @param method the request, aborted when it stalls; may be <tt>null</tt>
+	 */
+	Transfer start(String name, long length, HttpMethod method) {
+		final Transfer transfer = new Transfer(name, length, method);
+		synchronized (transfers) {
+			transfers.add(transfer);
+		}
+		return transfer;
+	}
+
+	/**
+	 * Ends the request
+	 * @param success whether the file is uploaded; the bytes of a failed
+	 * 		request are sent again
+	 */
+	void finish(Transfer transfer, boolean success) {
+		synchronized (transfers) {
+			transfers.remove(transfer);
+		}
+		if (success) {
+			bytesDone.addAndGet(transfer.sent.get());
+		}
+	}
+
+	/**
+	 * Counts bytes that need not be sent, e.g. parts uploaded by an
+	 * interrupted upload before
+	 */
+	void skip(long bytes) {
+		bytesDone.addAndGet(bytes);
+	}
+
+	/**
+	 * Logs the progress every given number of seconds and checks for
+	 * stalled transfers, until {@link #stop()}
+	 * @param interval seconds between the progress lines, 0 to only check
+	 * 		for stalls if there is a stall timeout
+	 */
+	public synchronized void start(long interval) {
+		if (reporter != null || (interval <= 0 && stallTimeout <= 0)) {
+			return;
+		}
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "gdca-upload-progress");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// stalls are checked more often than the progress is logged
+		final long check = (stallTimeout <= 0) ? interval
+				: Math.max(1, (interval > 0) ? Math.min(interval, stallTimeout / 2) : stallTimeout / 2);
+		final long every = (interval > 0) ? Math.max(1, interval / check) : 0;
+		reporter.scheduleAtFixedRate(new Runnable() {
+			private long ticks = 0;
+
+			public void run() {
+				checkStalls();
+				if (every > 0 && ++ticks % every == 0) {
+					report();
+				}
+			}
+		}, check, check, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop() {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+	}
+
+	/**
+	 * Publishes the progress as the {@link #OBJECT_NAME} MBean
+	 */
+	public void register() {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (JMException e) {
+			l.warn("Cannot publish the upload progress over JMX: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Logs the overall progress and the files being uploaded
+	 */
+	public void report() {
+		synchronized (this) {
+			final long now = System.currentTimeMillis();
+			final long sent = bytesSent.get();
+			if (now > reportedAt) {
+				currentThroughput = Math.max(0, sent - reportedBytes) * 1000 / (now - reportedAt);
+			}
+			reportedAt = now;
+			reportedBytes = sent;
+		}
+		final String[] inProgress = getTransfers();
+		if (inProgress.length == 0) {
+			return;
+		}
+		final long total = bytesTotal;
+		final long eta = getEtaSeconds();
+		l.info(format("Uploaded %s%s, %s/s now, %s/s on average%s; in progress: %s",
+				FileUtils.byteCountToDisplaySize(getBytesUploaded()),
+				(total >= 0) ? format(" of %s (%d%%)", FileUtils.byteCountToDisplaySize(total),
+						(total > 0) ? 100 * getBytesUploaded() / total : 100) : "",
+				FileUtils.byteCountToDisplaySize(currentThroughput),
+				FileUtils.byteCountToDisplaySize(getAverageThroughput()),
+				(eta >= 0) ? format(", ETA %d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60) : "",
+				join(inProgress)));
+	}
+
+	/**
+	 * Reports the transfers without progress for the stall timeout and aborts
+	 * their requests. Requests waiting for a connection or for the response
+	 * are left to the connection and socket timeouts.
+	 */
+	void checkStalls() {
+		if (stallTimeout <= 0) {
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		for (Transfer t : transfers()) {
+			final long sent = t.sent.get();
+			if (!t.stalled && sent > 0 && (t.length < 0 || sent < t.length)
+					&& now - t.progressAt >= stallTimeout * 1000) {
+				t.stalled = true;
+				if (t.method != null) {
+					l.warn(format("%s made no progress for %d s, aborting the request", t.name, stallTimeout));
+					t.abort();
+				} else {
+					l.warn(format("%s made no progress for %d s", t.name, stallTimeout));
+				}
+			}
+		}
+	}
+
+	private List<Transfer> transfers() {
+		synchronized (transfers) {
+			return new ArrayList<Transfer>(transfers);
+		}
+	}
+
+	private static String join(String[] values) {
+		final StringBuilder result = new StringBuilder();
+		for (String value : values) {
+			result.append((result.length() > 0) ? ", " : "").append(value);
+		}
+		return result.toString();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public long getBytesUploaded() {
+		long result = bytesDone.get();
+		for (Transfer t : transfers()) {
+			result += t.sent.get();
+		}
+		return result;
+	}
+
+	public long getBytesTotal() {
+		return bytesTotal;
+	}
+
+	public long getCurrentThroughput() {
+		return currentThroughput;
+	}
+
+	public long getAverageThroughput() {
+		final long elapsed = System.currentTimeMillis() - startedAt;
+		return (elapsed > 0) ? bytesSent.get() * 1000 / elapsed : 0;
+	}
+
+	public long getEtaSeconds() {
+		final long total = bytesTotal, throughput = getAverageThroughput();
+		if (total < 0 || throughput <= 0) {
+			return -1;
+		}
+		return Math.max(0, total - getBytesUploaded()) / throughput;
+	}
+
+	public String[] getTransfers() {
+		final List<String> result = new ArrayList<String>();
+		for (Transfer t : transfers()) {
+			result.add(t.toString());
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	public boolean isStalled() {
+		for (Transfer t : transfers()) {
+			if (t.stalled) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public long getStallTimeout() {
+		return stallTimeout;
+	}
+
+	/**
+	 * @param stallTimeout seconds without progress after which a request is
+	 * 		aborted, 0 to wait indefinitely
+	 */
+	public void setStallTimeout(long stallTimeout) {
+		this.stallTimeout = stallTimeout;
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+/**
+ * JMX view of the {@link UploadProgress}
+ */
+public interface UploadProgressMBean {
+	/**
+	 * @return bytes sent since the upload started, including the retries
+	 */
+	long getBytesSent();
+
+	/**
+	 * @return bytes of the files uploaded or being uploaded
+	 */
+	long getBytesUploaded();
+
+	/**
+	 * @return bytes to upload, -1 if not known
+	 */
+	long getBytesTotal();
+
+	/**
+	 * @return bytes per second since the last report
+	 */
+	long getCurrentThroughput();
+
+	/**
+	 * @return bytes per second since the upload started
+	 */
+	long getAverageThroughput();
+
+	/**
+	 * @return estimated seconds until the upload ends, -1 if not known
+	 */
+	long getEtaSeconds();
+
+	/**
+	 * @return the files being uploaded with their progress
+	 */
+	String[] getTransfers();
+
+	/**
+	 * @return whether a file has made no progress for the stall timeout
+	 */
+	boolean isStalled();
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts the requests of an {@link Uploader} and their retries by the
+ * reason, i.e. the status code or the exception
+ */
+public class UploadStats {
+	private int requests = 0;
+	private int retries = 0;
+	private int failures = 0;
+	private final Map<String, Integer> reasons = new TreeMap<String, Integer>();
+
+	synchronized void request() {
+		requests++;
+	}
+
+	synchronized void retry(String reason) {
+		retries++;
+		final Integer count = reasons.get(reason);
+		reasons.put(reason, (count == null) ? 1 : count + 1);
+	}
+
+	synchronized void failure() {
+		failures++;
+	}
+
+	public synchronized int getRequests() {
+		return requests;
+	}
+
+	public synchronized int getRetries() {
+		return retries;
+	}
+
+	public synchronized int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return number of retries by the reason
+	 */
+	public synchronized Map<String, Integer> getReasons() {
+		return new TreeMap<String, Integer>(reasons);
+	}
+
+	@Override
+	public synchronized String toString() {
+		final StringBuilder result = new StringBuilder();
+		result.append(requests).append(" request(s), ").append(retries).append(" retried");
+		if (!reasons.isEmpty()) {
+			result.append(' ').append(reasons);
+		}
+		return result.append(", ").append(failures).append(" failed").toString();
+	}
+}
@@ -25,28 +25,91 @@ package com.gooddata.agent;
 
 import static java.lang.String.format;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
 import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
+import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnection;
 import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
 import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
-import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.jackrabbit.webdav.client.methods.MoveMethod;
 import org.apache.jackrabbit.webdav.client.methods.PutMethod;
 
 public class Uploader {
+	/** suffix of the list of parts a large file is uploaded as */
+	public static final String PARTS_SUFFIX = ".parts";
+	/** suffix of the names parts are uploaded to before they are moved to their names */
+	private static final String PART_TEMP_SUFFIX = ".upload";
+	/** length of a request body that is not known in advance */
+	private static final long UNKNOWN_LENGTH = -1;
+	private static final int PIPE_BUFFER_SIZE = 1024 * 1024;
+
 	private final HttpClient client;
 	private final String baseUrl;
+	private int parallelism = 1;
+	private long idleTimeout = 30000;
+	private long partSize = 0;
+	private PartStore partStore = null;
+	private ChecksumManifest checksums = null;
+	private RetryPolicy retry = new RetryPolicy();
+	private final UploadStats stats = new UploadStats();
+	private final UploadProgress progress = new UploadProgress();
+	/** the transfer sent by the current thread, learns the connection it is sent on */
+	private final ThreadLocal<UploadProgress.Transfer> sending = new ThreadLocal<UploadProgress.Transfer>();
+	private RateLimiter rateLimiter = null;
+	private long smallFileSize = 1024 * 1024;
 
 	public Uploader(final String baseUrl, final String username, final String password) {
-		this.client = new HttpClient();
+		this.client = new HttpClient(new MultiThreadedHttpConnectionManager() {
+			@Override
+			public HttpConnection getConnectionWithTimeout(HostConfiguration host, long timeout)
+					throws ConnectionPoolTimeoutException {
+				final HttpConnection connection = super.getConnectionWithTimeout(host, timeout);
+				final UploadProgress.Transfer transfer = sending.get();
+				if (transfer != null) {
+					transfer.setConnection(connection);
+				}
+				return connection;
+			}
+		});
+		// the request bodies are streamed, there is nothing to gain from delaying packets
+		connectionParams().setTcpNoDelay(true);
+		setMaxConnectionsPerHost(parallelism);
 	    Credentials creds = new UsernamePasswordCredentials(username, password);
 	    client.getState().setCredentials(AuthScope.ANY, creds);
 	    final String slash = baseUrl.endsWith("/") ? "" : "/";
@@ -54,40 +117,871 @@ public class Uploader {
     }
 
 	public void upload(final Map<File,String> filesToUpload, final String remoteDir) throws IOException {
-		for (Map.Entry<File, String> e : filesToUpload.entrySet()) {
-			final String uploadedUrl = uploadTemp(e.getKey(), remoteDir, e.getValue());
-			move(remoteDir, uploadedUrl, e.getValue());
+		upload(filesToUpload, remoteDir, null);
+	}
+
+	/**
+	 * Uploads the files in two phases. All files are sent to temporary names
+	 * first, on up to {@link #getParallelism()} connections at once and the
+	 * smallest first. Once all of them are there, they are moved to their
+	 * names concurrently; the main file, e.g. a manifest or an index naming
+	 * the other files, is moved last. If a phase fails, the temporary files
+	 * that were not moved are deleted.
+	 * @param mainFile remote name of the main file, may be <tt>null</tt>
+	 */
+	public void upload(final Map<File,String> filesToUpload, final String remoteDir, final String mainFile) throws IOException {
+		// the server may have dropped them since the last upload
+		client.getHttpConnectionManager().closeIdleConnections(idleTimeout);
+		long total = 0;
+		for (File file : filesToUpload.keySet()) {
+			total += file.length();
+		}
+		progress.begin(total);
+		final List<Map.Entry<File, String>> files = new ArrayList<Map.Entry<File, String>>(filesToUpload.entrySet());
+		Collections.sort(files, new Comparator<Map.Entry<File, String>>() {
+			public int compare(Map.Entry<File, String> e1, Map.Entry<File, String> e2) {
+				final long l1 = e1.getKey().length(), l2 = e2.getKey().length();
+				return (l1 < l2) ? -1 : ((l1 == l2) ? 0 : 1);
+			}
+		});
+		final List<Staged> staged = Collections.synchronizedList(new ArrayList<Staged>());
+		final Staged[] main = new Staged[1];
+		final List<Callable<Void>> uploads = new ArrayList<Callable<Void>>();
+		for (final Map.Entry<File, String> e : files) {
+			// the main file may be named as uploaded, i.e. as its list of parts
+			final boolean isMain = e.getValue().equals(mainFile)
+					|| remoteName(e.getValue(), e.getKey(), partSize).equals(mainFile);
+			final Callable<Void> upload = new Callable<Void>() {
+				public Void call() throws IOException {
+					final Staged s = stage(e.getKey(), remoteDir, e.getValue(), isMain);
+					if (isMain) {
+						main[0] = s;
+					} else {
+						staged.add(s);
+					}
+					return null;
+				}
+			};
+			if (isMain) {
+				uploads.add(0, upload);
+			} else {
+				uploads.add(upload);
+			}
+		}
+		boolean committed = false;
+		try {
+			runAll(uploads);
+			if (checksums != null && mainFile != null && !checksums.isEmpty()) {
+				final String name = mainFile + ChecksumManifest.SUFFIX;
+				final RetryPolicy.Budget budget = retry.budget();
+				staged.add(new Staged(uploadTemp(toBytes(checksums), remoteDir, name, budget), name, budget));
+			}
+			final List<Callable<Void>> moves = new ArrayList<Callable<Void>>();
+			for (final Staged s : staged) {
+				moves.add(new Callable<Void>() {
+					public Void call() throws IOException {
+						commit(remoteDir, s);
+						return null;
+					}
+				});
+			}
+			runAll(moves);
+			if (main[0] != null) {
+				commit(remoteDir, main[0]);
+			}
+			committed = true;
+		} finally {
+			if (!committed) {
+				if (main[0] != null) {
+					staged.add(main[0]);
+				}
+				rollback(staged);
+			}
+		}
+	}
+
+	/**
+	 * @return the name a file is found under once uploaded with the given
+	 * 		part size: its list of parts, NAME.parts, if it is larger than
+	 * 		the part size, otherwise the name itself
+	 */
+	public static String remoteName(String name, File file, long partSize) {
+		return (partSize > 0 && file.length() > partSize) ? name + PARTS_SUFFIX : name;
+	}
+
+	/**
+	 * A file uploaded under a temporary name
+	 */
+	private static class Staged {
+		final String tempUrl;
+		final String name;
+		final RetryPolicy.Budget budget;
+		/** the {@link PartStore} record of a list of parts, <tt>null</tt> for other files */
+		final String partsId;
+		/** the parts of a list, moved before it */
+		final List<Staged> parts;
+		/** the number of a part, 0 for other files */
+		final int part;
+		volatile boolean moved = false;
+
+		Staged(String tempUrl, String name, RetryPolicy.Budget budget) {
+			this(tempUrl, name, budget, null, Collections.<Staged>emptyList(), 0);
+		}
+
+		Staged(String tempUrl, String name, RetryPolicy.Budget budget, String partsId, List<Staged> parts, int part) {
+			this.tempUrl = tempUrl;
+			this.name = name;
+			this.budget = budget;
+			this.partsId = partsId;
+			this.parts = parts;
+			this.part = part;
+		}
+	}
+
+	private Staged stage(final File file, final String remoteDir, final String remoteFileName,
+			final boolean main) throws IOException {
+		final String listName = remoteName(remoteFileName, file, partSize);
+		if (!listName.equals(remoteFileName)) {
+			String partsId = null, prefix = remoteFileName;
+			if (partStore != null) {
+				final String id = PartStore.id(file);
+				final String resumed = partStore.start(id, remoteFileName, partSize);
+				if (resumed != null) {
+					partsId = id;
+					prefix = resumed;
+				}
+			}
+			final RetryPolicy.Budget budget = retry.budget();
+			final List<Staged> parts = new ArrayList<Staged>();
+			Staged staged = null;
+			try {
+				final byte[] list = listParts(file, prefix, partsId, parts);
+				if (checksums != null && !main) {
+					final MessageDigest digest = ChecksumManifest.newDigest();
+					digest.update(list);
+					checksums.add(listName, digest);
+				}
+				staged = new Staged(uploadTemp(list, remoteDir, listName, budget), listName, budget, partsId, parts, 0);
+			} finally {
+				if (staged == null) {
+					rollback(Collections.singletonList(new Staged(null, listName, budget, partsId, parts, 0)));
+				}
+			}
+			return staged;
+		}
+		final MessageDigest digest = (checksums == null || main) ? null : ChecksumManifest.newDigest();
+		final RetryPolicy.Budget budget = retry.budget();
+		final String tempUrl = uploadTemp(file, remoteDir, remoteFileName, digest, budget,
+				main || file.length() <= smallFileSize);
+		if (digest != null) {
+			checksums.add(remoteFileName, digest);
+		}
+		return new Staged(tempUrl, remoteFileName, budget);
+	}
+
+	/**
+	 * Moves a file to its name, the parts of a list before the list
+	 */
+	private void commit(final String remoteDir, final Staged staged) throws IOException {
+		for (Staged part : staged.parts) {
+			if (staged.partsId != null) {
+				// a moved part cannot be continued from its temporary name, it is sent again if need be
+				partStore.removePart(staged.partsId, part.part);
+			}
+			commit(remoteDir, part);
+		}
+		move(remoteDir, staged.tempUrl, staged.name, staged.budget);
+		staged.moved = true;
+		if (staged.partsId != null) {
+			partStore.finish(staged.partsId);
+		}
+	}
+
+	/**
+	 * Deletes the temporary files that were not moved, at once. The parts
+	 * recorded by the {@link PartStore} are kept for the next attempt.
+	 */
+	private void rollback(final List<Staged> staged) {
+		final List<Callable<Void>> deletes = new ArrayList<Callable<Void>>();
+		synchronized (staged) {
+			for (final Staged s : staged) {
+				addDeletes(s, deletes);
+			}
+		}
+		try {
+			runAll(deletes);
+		} catch (IOException e) {
+			System.err.println("Cannot remove the temporary files: " + e.getMessage());
+		}
+	}
+
+	private void addDeletes(final Staged s, final List<Callable<Void>> deletes) {
+		if (s.moved) {
+			return;
+		}
+		if (s.tempUrl != null) {
+			deletes.add(new Callable<Void>() {
+				public Void call() {
+					delete(s.tempUrl);
+					return null;
+				}
+			});
+		}
+		if (s.partsId != null) {
+			partStore.release(s.partsId);
+			return;
+		}
+		for (Staged part : s.parts) {
+			addDeletes(part, deletes);
+		}
+	}
+
+	/**
+	 * Uploads a large file in parts of {@link #getPartSize()} bytes named after
+	 * the file with a <tt>.partNNNN</tt> suffix. The file itself is replaced by
+	 * a list of the parts in order, named after it with the {@link #PARTS_SUFFIX},
+	 * in the <tt>sha256sum</tt> format; concatenating the parts gives the file.
+	 * The parts are uploaded to temporary names and moved to their names with
+	 * the list. Parts sent by an interrupted upload are not sent again if
+	 * their content has not changed.
+	 * @param prefix the name the parts are named after
+	 * @param partsId the {@link PartStore} record of the file, <tt>null</tt> if it is not recorded
+	 * @param parts receives the uploaded parts
+	 * @return the list of the parts
+	 */
+	private byte[] listParts(final File file, final String prefix, final String partsId, final List<Staged> parts)
+			throws IOException {
+		final long length = file.length();
+		final StringBuilder list = new StringBuilder();
+		for (int part = 1; (part - 1) * partSize < length; part++) {
+			final String partName = format("%s.part%04d", prefix, part);
+			final String tempUrl = baseUrl + partName + PART_TEMP_SUFFIX;
+			final long offset = (part - 1) * partSize;
+			final long partLength = Math.min(partSize, length - offset);
+			final String uploaded = (partsId == null) ? null : partStore.getPart(partsId, part);
+			String digest = null;
+			if (uploaded != null) {
+				// read rather than sent, the same content may still give a different file
+				digest = digest(file, offset, partLength);
+			}
+			if (uploaded != null && uploaded.equals(digest)) {
+				System.out.println(partName + " uploaded before, skipping");
+				progress.skip(partLength);
+			} else {
+				digest = uploadPart(file, offset, partLength, partName, tempUrl);
+				if (partsId != null) {
+					partStore.putPart(partsId, part, digest);
+				}
+			}
+			parts.add(new Staged(tempUrl, partName, retry.budget(), null, Collections.<Staged>emptyList(), part));
+			list.append(digest).append("  ").append(partName).append('\n');
+		}
+		return list.toString().getBytes("UTF-8");
+	}
+
+	/**
+	 * Puts a part of a file to its temporary name, a part sent again
+	 * replaces the previous one. Each part has its own retry budget.
+	 * @return hex encoded SHA-256 digest of the part
+	 */
+	private String uploadPart(final File file, final long offset, final long length, final String partName,
+			final String tempUrl) throws IOException {
+		final MessageDigest digest = ChecksumManifest.newDigest();
+		retry.execute(new RetryPolicy.Request("Upload of " + partName,
+				HttpStatus.SC_CREATED, HttpStatus.SC_NO_CONTENT, HttpStatus.SC_OK) {
+			protected int execute() throws IOException {
+				digest.reset();
+				final FileInputStream in = new FileInputStream(file);
+				final PutMethod method = newMethod(new PutMethod(tempUrl));
+				try {
+					in.getChannel().position(offset);
+					return send(method, partName,
+							new DigestInputStream(throttle(limit(in, length), false), digest), length, true);
+				} finally {
+					in.close();
+					method.releaseConnection();
+				}
+			}
+		}, retry.budget(), stats);
+		return ChecksumManifest.hex(digest.digest());
+	}
+
+	/**
+	 * @return hex encoded SHA-256 digest of a part of a file
+	 */
+	private static String digest(final File file, final long offset, final long length) throws IOException {
+		final MessageDigest digest = ChecksumManifest.newDigest();
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			in.getChannel().position(offset);
+			final InputStream part = limit(in, length);
+			final byte[] buf = new byte[64 * 1024];
+			int n;
+			while ((n = part.read(buf)) != -1) {
+				digest.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return ChecksumManifest.hex(digest.digest());
+	}
+
+	/**
+	 * @return stream taking the bytes read from the {@link RateLimiter}
+	 */
+	private InputStream throttle(final InputStream in, final boolean urgent) {
+		if (rateLimiter == null) {
+			return in;
+		}
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				final int b = super.read();
+				if (b != -1) {
+					rateLimiter.acquire(1, urgent);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				final int n = super.read(b, off, len);
+				if (n > 0) {
+					rateLimiter.acquire(n, urgent);
+				}
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * @return stream ending after the given number of bytes
+	 */
+	private static InputStream limit(final InputStream in, final long length) {
+		return new FilterInputStream(in) {
+			private long remaining = length;
+
+			@Override
+			public int read() throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				final int b = super.read();
+				if (b != -1) {
+					remaining--;
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				final int n = super.read(b, off, (int)Math.min(len, remaining));
+				if (n > 0) {
+					remaining -= n;
+				}
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * Runs the tasks on up to {@link #getParallelism()} threads, the first
+	 * failure cancels the tasks not started yet and is thrown once the
+	 * running ones finish
+	 */
+	private void runAll(final List<Callable<Void>> tasks) throws IOException {
+		if (tasks.isEmpty()) {
+			return;
+		}
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "gdca-upload");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		try {
+			final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (Callable<Void> task : tasks) {
+				futures.add(executor.submit(task));
+			}
+			Throwable failure = null;
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (CancellationException e) {
+					// not started after a failure
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+						// the tasks not started yet are skipped, the running ones are
+						// waited for so that their results can be cleaned up
+						for (Future<Void> f : futures) {
+							f.cancel(false);
+						}
+					}
+				}
+			}
+			if (failure instanceof IOException) {
+				throw (IOException)failure;
+			} else if (failure instanceof RuntimeException) {
+				throw (RuntimeException)failure;
+			} else if (failure != null) {
+				throw new IOException("Upload failed: " + failure, failure);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while uploading");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public ChecksumManifest getChecksums() {
+		return checksums;
+	}
+
+	/**
+	 * @param checksums receives the SHA-256 digests of the files uploaded by
+	 * 		{@link #upload(Map, String, String)}, taken while sending them; they
+	 * 		are uploaded before the main file, named after it with the
+	 * 		<tt>.sha256</tt> suffix. May be <tt>null</tt>.
+	 */
+	public void setChecksums(ChecksumManifest checksums) {
+		this.checksums = checksums;
+	}
+
+	public long getPartSize() {
+		return partSize;
+	}
+
+	/**
+	 * @param partSize files larger than this, the main file included, are
+	 * 		uploaded in parts of this size, 0 to upload every file as a whole;
+	 * 		see {@link #remoteName(String, File, long)}
+	 */
+	public void setPartSize(long partSize) {
+		this.partSize = partSize;
+	}
+
+	public PartStore getPartStore() {
+		return partStore;
+	}
+
+	/**
+	 * @param partStore record of the uploaded parts, so that an interrupted
+	 * 		upload continues where it ended; may be <tt>null</tt>
+	 */
+	public void setPartStore(PartStore partStore) {
+		this.partStore = partStore;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retry;
+	}
+
+	public void setRetryPolicy(RetryPolicy retry) {
+		this.retry = retry;
+	}
+
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * @param rateLimiter limits the bandwidth of all uploads together, may
+	 * 		be <tt>null</tt>
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	public long getSmallFileSize() {
+		return smallFileSize;
+	}
+
+	/**
+	 * @param smallFileSize files up to this size and the main file get the
+	 * 		bandwidth before larger files
+	 */
+	public void setSmallFileSize(long smallFileSize) {
+		this.smallFileSize = smallFileSize;
+	}
+
+	/**
+	 * @return bytes sent by the current or the last upload
+	 */
+	public UploadProgress getProgress() {
+		return progress;
+	}
+
+	/**
+	 * @return requests sent so far and their retries
+	 */
+	public UploadStats getStats() {
+		return stats;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism maximum number of files uploaded at the same time;
+	 * 		see also {@link #setMaxConnectionsPerHost(int)}
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return connectionParams().getDefaultMaxConnectionsPerHost();
+	}
+
+	/**
+	 * @param maxConnections maximum number of kept alive connections to the
+	 * 		server; uploads beyond that wait for a connection to be released
+	 */
+	public void setMaxConnectionsPerHost(int maxConnections) {
+		connectionParams().setDefaultMaxConnectionsPerHost(maxConnections);
+		connectionParams().setMaxTotalConnections(maxConnections);
+	}
+
+	/**
+	 * @param timeout milliseconds to wait for a connection to be established,
+	 * 		0 to wait indefinitely
+	 */
+	public void setConnectionTimeout(int timeout) {
+		connectionParams().setConnectionTimeout(timeout);
+	}
+
+	/**
+	 * @param timeout milliseconds to wait for data from the server, 0 to
+	 * 		wait indefinitely
+	 */
+	public void setSocketTimeout(int timeout) {
+		connectionParams().setSoTimeout(timeout);
+	}
+
+	/**
+	 * @param size socket send buffer size; on links with a long round trip
+	 * 		it should be about the bandwidth times the round trip time, 0 to
+	 * 		keep the system default
+	 */
+	public void setSocketBufferSize(int size) {
+		if (size > 0) {
+			connectionParams().setSendBufferSize(size);
+			connectionParams().setReceiveBufferSize(size);
+		}
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @param idleTimeout milliseconds after which an unused connection is
+	 * 		not reused but closed
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	private HttpConnectionManagerParams connectionParams() {
+		return client.getHttpConnectionManager().getParams();
+	}
+
+	/**
+	 * Uploads the content written by the source without storing it locally
+	 * and moves it to its final name, see {@link #uploadTemp(EntrySource, String, String)}
+	 */
+	public void upload(final EntrySource source, final String remoteDir, final String remoteFileName) throws IOException {
+		upload(source, remoteDir, remoteFileName, null, null);
+	}
+
+	/**
+	 * Uploads the content written by the source like {@link #upload(EntrySource, String, String)}
+	 * together with a companion file known only once the content has been
+	 * sent, e.g. its checksums. Neither is moved to its name before both are
+	 * uploaded, the content is moved last; if anything fails, the temporary
+	 * files that were not moved are deleted.
+	 * @param companion may be <tt>null</tt>
+	 */
+	public void upload(final EntrySource source, final String remoteDir, final String remoteFileName,
+			final EntrySource companion, final String companionName) throws IOException {
+		client.getHttpConnectionManager().closeIdleConnections(idleTimeout);
+		progress.begin(-1);
+		final List<Staged> staged = new ArrayList<Staged>();
+		boolean committed = false;
+		try {
+			staged.add(new Staged(uploadTemp(source, remoteDir, remoteFileName), remoteFileName, retry.budget()));
+			if (companion != null) {
+				final RetryPolicy.Budget budget = retry.budget();
+				staged.add(0, new Staged(uploadTemp(toBytes(companion), remoteDir, companionName, budget),
+						companionName, budget));
+			}
+			for (Staged s : staged) {
+				commit(remoteDir, s);
+			}
+			committed = true;
+		} finally {
+			if (!committed) {
+				rollback(staged);
+			}
 		}
 	}
 
 	public String uploadTemp(final File fileToUpload, final String remoteDir, final String remoteFileName) throws IOException {
+		return uploadTemp(fileToUpload, remoteDir, remoteFileName, null, retry.budget(),
+				fileToUpload.length() <= smallFileSize);
+	}
+
+	/**
+	 * A failed upload is sent again to the same temporary file, replacing
+	 * whatever the failed request left there
+	 * @param digest receives the uploaded content, may be <tt>null</tt>
+	 * @param urgent whether the file gets the bandwidth before the bulk
+	 */
+	private String uploadTemp(final File fileToUpload, final String remoteDir, final String remoteFileName,
+			final MessageDigest digest, final RetryPolicy.Budget budget, final boolean urgent) throws IOException {
 		final String tempUrl = toTempPath(baseUrl + remoteFileName);
-	    PutMethod method = new PutMethod(tempUrl);
-	    RequestEntity requestEntity = new InputStreamRequestEntity(new FileInputStream(fileToUpload));
-	    method.setRequestEntity(requestEntity);
-	    client.getParams().setAuthenticationPreemptive(true);
-	    client.executeMethod(method);
-	    if (method.getStatusCode() != HttpStatus.SC_CREATED) {
-	    	throw new RuntimeException(format("Upload failed: %s (status code = %d)",
-	    			method.getStatusText(), method.getStatusCode()));
-	    }
+		retry.execute(new RetryPolicy.Request("Upload of " + remoteFileName, HttpStatus.SC_CREATED) {
+			protected int execute() throws IOException {
+			    PutMethod method = newMethod(new PutMethod(tempUrl));
+			    if (digest != null) {
+			    	digest.reset();
+			    }
+			    // the length must be known, the entity would buffer the whole file otherwise
+			    final InputStream file = throttle(new FileInputStream(fileToUpload), urgent);
+			    final InputStream in = (digest == null) ? file : new DigestInputStream(file, digest);
+			    try {
+				    return send(method, remoteFileName, in, fileToUpload.length(), true);
+			    } finally {
+			    	in.close();
+			    	// returns the connection to the pool
+			    	method.releaseConnection();
+			    }
+			}
+		}, budget, stats);
 	    return tempUrl;
 	}
 	
-	private void move(final String remoteDir, final String tempUrl, String targetName) throws HttpException, IOException {
+	/**
+	 * Uploads a small content held in memory, e.g. a list of parts; unlike
+	 * a streamed content it can be sent again when the request fails
+	 * @return URL of the uploaded temporary file
+	 */
+	private String uploadTemp(final byte[] content, final String remoteDir, final String remoteFileName,
+			final RetryPolicy.Budget budget) throws IOException {
+		final String tempUrl = toTempPath(baseUrl + remoteFileName);
+		retry.execute(new RetryPolicy.Request("Upload of " + remoteFileName, HttpStatus.SC_CREATED) {
+			protected int execute() throws IOException {
+				final PutMethod method = newMethod(new PutMethod(tempUrl));
+				method.setRequestEntity(new ByteArrayRequestEntity(content));
+				client.getParams().setAuthenticationPreemptive(true);
+				try {
+					return client.executeMethod(method);
+				} finally {
+					method.releaseConnection();
+				}
+			}
+		}, budget, stats);
+		return tempUrl;
+	}
+
+	private static byte[] toBytes(EntrySource source) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		source.writeTo(out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Uploads the content while it is being produced. The source runs in its
+	 * own thread writing into a bounded pipe that the request body is read
+	 * from; the body is sent with the chunked transfer encoding. If the
+	 * source fails, the request is aborted and the temporary file removed.
+	 * The content cannot be sent again, the upload is not retried.
+	 * @return URL of the uploaded temporary file
+	 */
+	public String uploadTemp(final EntrySource source, final String remoteDir, final String remoteFileName) throws IOException {
+		final String tempUrl = toTempPath(baseUrl + remoteFileName);
+		final PipedInputStream pipe = new PipedInputStream(PIPE_BUFFER_SIZE);
+		final Producer producer = new Producer(source, new PipedOutputStream(pipe));
+		producer.start();
+		PutMethod method = new PutMethod(tempUrl);
+		// the content cannot be read again
+		method.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, new DefaultHttpMethodRetryHandler(0, false));
+		IOException uploadError = null;
+		try {
+			// a stalled source is reported but the request is not aborted, it cannot be retried
+			send(method, remoteFileName, throttle(producer.checked(pipe), false),
+					UNKNOWN_LENGTH, false);
+		} catch (IOException e) {
+			uploadError = e;
+		} finally {
+			method.releaseConnection();
+			pipe.close(); // stops the producer if the request failed
+			producer.finish();
+		}
+		if (producer.failure != null) {
+			delete(tempUrl);
+			throw new IOException(format("Error creating %s: %s", remoteFileName, producer.failure.getMessage()),
+					producer.failure);
+		}
+		stats.request();
+		if (uploadError != null) {
+			stats.failure();
+			throw uploadError;
+		}
+	    if (method.getStatusCode() != HttpStatus.SC_CREATED) {
+	    	stats.failure();
+	    	throw new IOException(format("Upload of %s failed: %s (status code = %d)",
+	    			remoteFileName, method.getStatusText(), method.getStatusCode()));
+	    }
+		return tempUrl;
+	}
+
+	/**
+	 * Sends the request with the body counted by the {@link UploadProgress}
+	 * @param length of the body or {@link #UNKNOWN_LENGTH} to send it chunked
+	 * @param abortable whether the request is aborted when it stalls
+	 * @return the status code
+	 */
+	private int send(EntityEnclosingMethod method, String name, InputStream body, long length,
+			boolean abortable) throws IOException {
+		final UploadProgress.Transfer transfer = progress.start(name, length, abortable ? method : null);
+		boolean success = false;
+		sending.set(transfer);
+		try {
+			method.setRequestEntity(new InputStreamRequestEntity(transfer.count(body), length));
+			method.setContentChunked(length == UNKNOWN_LENGTH);
+			client.getParams().setAuthenticationPreemptive(true);
+			final int status = client.executeMethod(method);
+			success = status < 300;
+			return status;
+		} finally {
+			sending.remove();
+			progress.finish(transfer, success);
+		}
+	}
+
+	/**
+	 * Removes a remote file, failures are ignored
+	 */
+	private void delete(final String url) {
+		DeleteMethod method = new DeleteMethod(url);
+		try {
+			client.executeMethod(method);
+		} catch (IOException e) {
+			System.err.println("Cannot remove " + url + ": " + e.getMessage());
+		} finally {
+			method.releaseConnection();
+		}
+	}
+
+	private void move(final String remoteDir, final String tempUrl, String targetName, RetryPolicy.Budget budget)
+			throws HttpException, IOException {
 		final String targetUrl = baseUrl + targetName;
 		System.out.println(tempUrl + " -> " + targetUrl);
-		MoveMethod method = new MoveMethod(tempUrl, targetUrl, true);
-		client.getParams().setAuthenticationPreemptive(true);
-		client.executeMethod(method);
-		final int sc = method.getStatusCode();
-	    if (sc != HttpStatus.SC_CREATED && sc != HttpStatus.SC_NO_CONTENT) {
-	    	throw new RuntimeException(format("Move failed: %s (status code = %d); file uploaded to " + tempUrl,
-	    			method.getStatusText(), method.getStatusCode()));
-	    }
+		retry.execute(new RetryPolicy.Request("Move of " + tempUrl, HttpStatus.SC_CREATED, HttpStatus.SC_NO_CONTENT) {
+			protected int execute() throws IOException {
+				MoveMethod method = newMethod(new MoveMethod(tempUrl, targetUrl, true));
+				client.getParams().setAuthenticationPreemptive(true);
+				try {
+					return client.executeMethod(method);
+				} finally {
+					method.releaseConnection();
+				}
+			}
+
+			protected boolean isSuccess(int status, int attempt) {
+				// the previous attempt moved the file but its response was lost
+				return super.isSuccess(status, attempt) || (attempt > 1 && status == HttpStatus.SC_NOT_FOUND);
+			}
+		}, budget, stats);
+	}
+
+	/**
+	 * The requests are retried by the {@link RetryPolicy} only
+	 */
+	private static <T extends HttpMethodBase> T newMethod(T method) {
+		method.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, new DefaultHttpMethodRetryHandler(0, false));
+		return method;
 	}
 	
 	private String toTempPath(final String path) {
 		return path + "." + System.currentTimeMillis();
 	}
+
+	/**
+	 * Writes the content of an {@link EntrySource} into a pipe
+	 */
+	private static class Producer extends Thread {
+		private final EntrySource source;
+		private final OutputStream out;
+		volatile Exception failure = null;
+
+		Producer(EntrySource source, OutputStream out) {
+			super("gdca-upload-producer");
+			setDaemon(true);
+			this.source = source;
+			this.out = out;
+		}
+
+		@Override
+		public void run() {
+			try {
+				source.writeTo(out);
+			} catch (Exception e) {
+				failure = e;
+			} finally {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// the reading end is closed already
+				}
+			}
+		}
+
+		/**
+		 * Waits until the producer ends
+		 */
+		void finish() throws IOException {
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the upload to be produced");
+			}
+		}
+
+		/**
+		 * @return stream failing at its end if the producer failed, so
+		 * 		that a truncated content is never uploaded completely
+		 */
+		InputStream checked(InputStream in) {
+			return new FilterInputStream(in) {
+				@Override
+				public int read() throws IOException {
+					return check(super.read());
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return check(super.read(b, off, len));
+				}
+
+				private int check(int result) throws IOException {
+					if (result == -1 && failure != null) {
+						throw new IOException("Upload aborted: " + failure.getMessage());
+					}
+					return result;
+				}
+			};
+		}
+	}
 }
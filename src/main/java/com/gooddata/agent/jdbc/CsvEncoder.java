@@ -0,0 +1,537 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent.jdbc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+/**
+ * Writes JDBC result sets as UTF-8 encoded CSV.
+ *
+ * Each column gets a formatter chosen by its SQL type so that numbers and
+ * dates are written without going through intermediate strings. Rows are
+ * encoded into a reused byte buffer that is flushed to the underlying stream
+ * in large blocks. Values are quoted only if they contain a delimiter,
+ * a quote or a line break.
+ */
+public class CsvEncoder {
+	private static final int FLUSH_THRESHOLD = 64 * 1024;
+	private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+
+	private OutputStream out;
+	private long written = 0;
+	private byte[] buf = new byte[FLUSH_THRESHOLD * 2];
+	private int pos = 0;
+	private int rowStart = 0;
+	private Column[] columns = null;
+	private final Calendar calendar = new GregorianCalendar();
+	private String datePattern = null,
+	               timestampPattern = null;
+
+	public CsvEncoder(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * @param datePattern a {@link SimpleDateFormat} pattern for DATE columns;
+	 * 		<tt>null</tt> (default) means <tt>yyyy-MM-dd</tt>
+	 */
+	public void setDatePattern(String datePattern) {
+		this.datePattern = datePattern;
+	}
+
+	/**
+	 * @param timestampPattern a {@link SimpleDateFormat} pattern for TIMESTAMP columns;
+	 * 		<tt>null</tt> (default) means <tt>yyyy-MM-dd HH:mm:ss</tt> followed
+	 * 		by fractional seconds if there are any
+	 */
+	public void setTimestampPattern(String timestampPattern) {
+		this.timestampPattern = timestampPattern;
+	}
+
+	/**
+	 * Sets up the column formatters for the given result set. Must be called
+	 * before the first row is written.
+	 */
+	public void init(ResultSetMetaData metadata) throws SQLException {
+		columns = new Column[metadata.getColumnCount()];
+		for (int i = 0; i < columns.length; i++) {
+			final int type = metadata.getColumnType(i + 1);
+			// BIGINT UNSIGNED (MySQL) does not fit into a long
+			columns[i] = (type == Types.BIGINT && !metadata.isSigned(i + 1)) ? new DecimalColumn() : column(type);
+		}
+	}
+
+	/**
+	 * Sets up the column formatters and writes the header line with column labels
+	 */
+	public void writeHeader(ResultSetMetaData metadata) throws SQLException, IOException {
+		init(metadata);
+		for (int i = 1; i <= columns.length; i++) {
+			if (i > 1) {
+				writeByte(',');
+			}
+			writeString(metadata.getColumnLabel(i));
+		}
+		writeByte('\n');
+		commitRow();
+	}
+
+	/**
+	 * Writes the current row of the result set
+	 */
+	public void writeRow(ResultSet rs) throws SQLException, IOException {
+		encodeRow(rs);
+		commitRow();
+	}
+
+	/**
+	 * Encodes the current row of the result set into the buffer. The row
+	 * is written by {@link #commitRow()} or dropped by {@link #discardRow()}.
+	 */
+	public void encodeRow(ResultSet rs) throws SQLException {
+		rowStart = pos;
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0) {
+				writeByte(',');
+			}
+			columns[i].write(rs, i + 1);
+		}
+		writeByte('\n');
+	}
+
+	/**
+	 * @return a non-zero 64-bit hash of the encoded row (MurmurHash64A)
+	 */
+	public long rowHash() {
+		final long m = 0xc6a4a7935bd1e995L;
+		final int length = pos - rowStart;
+		long h = 0x1e2f3a4b5c6d7e8fL ^ (length * m);
+		int p = rowStart;
+		for (final int end = rowStart + (length & ~7); p < end; p += 8) {
+			long k = (buf[p] & 0xffL) | (buf[p + 1] & 0xffL) << 8 | (buf[p + 2] & 0xffL) << 16
+					| (buf[p + 3] & 0xffL) << 24 | (buf[p + 4] & 0xffL) << 32 | (buf[p + 5] & 0xffL) << 40
+					| (buf[p + 6] & 0xffL) << 48 | (buf[p + 7] & 0xffL) << 56;
+			k *= m;
+			k ^= k >>> 47;
+			k *= m;
+			h ^= k;
+			h *= m;
+		}
+		if (p < pos) {
+			for (int shift = 0; p < pos; p++, shift += 8) {
+				h ^= (buf[p] & 0xffL) << shift;
+			}
+			h *= m;
+		}
+		h ^= h >>> 47;
+		h *= m;
+		h ^= h >>> 47;
+		return (h == 0) ? 1 : h;
+	}
+
+	/**
+	 * Drops the row encoded by {@link #encodeRow(ResultSet)}
+	 */
+	public void discardRow() {
+		pos = rowStart;
+	}
+
+	/**
+	 * Removes the row encoded by {@link #encodeRow(ResultSet)} from the buffer,
+	 * e.g. to write it into another stream with {@link #writeRaw(byte[])}
+	 * @return the encoded row
+	 */
+	public byte[] takeRow() {
+		final byte[] row = Arrays.copyOfRange(buf, rowStart, pos);
+		pos = rowStart;
+		return row;
+	}
+
+	/**
+	 * Writes bytes encoded before, e.g. a row removed by {@link #takeRow()}
+	 */
+	public void writeRaw(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buf, pos, bytes.length);
+		pos += bytes.length;
+	}
+
+	/**
+	 * Keeps the row encoded by {@link #encodeRow(ResultSet)}
+	 */
+	public void commitRow() throws IOException {
+		if (pos >= FLUSH_THRESHOLD) {
+			out.write(buf, 0, pos);
+			written += pos;
+			pos = 0;
+		}
+	}
+
+	/**
+	 * Writes all remaining rows of the result set
+	 * @return number of rows written
+	 */
+	public long writeAll(ResultSet rs) throws SQLException, IOException {
+		long rows = 0;
+		while (rs.next()) {
+			writeRow(rs);
+			rows++;
+		}
+		return rows;
+	}
+
+	public void flush() throws IOException {
+		out.write(buf, 0, pos);
+		written += pos;
+		pos = 0;
+		out.flush();
+	}
+
+	/**
+	 * Flushes the rows written so far and continues writing into another
+	 * stream. The previous stream is not closed.
+	 */
+	public void setOutput(OutputStream out) throws IOException {
+		flush();
+		this.out = out;
+	}
+
+	/**
+	 * @return number of bytes of the committed rows, including those not
+	 * 		flushed yet
+	 */
+	public long getBytesWritten() {
+		return written + pos;
+	}
+
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	private Column column(int sqlType) {
+		switch (sqlType) {
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+		case Types.BIGINT:
+			return new LongColumn();
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+			return new DecimalColumn();
+		case Types.REAL:
+			return new FloatColumn();
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return new DoubleColumn();
+		case Types.BOOLEAN:
+			return new BooleanColumn();
+		case Types.DATE:
+			return (datePattern == null) ? new DateColumn() : new PatternColumn(datePattern);
+		case Types.TIMESTAMP:
+			return (timestampPattern == null) ? new TimestampColumn() : new PatternColumn(timestampPattern);
+		default:
+			return new StringColumn();
+		}
+	}
+
+	// ==== Low level encoding =====
+
+	private void ensure(int bytes) {
+		if (pos + bytes > buf.length) {
+			byte[] bigger = new byte[Math.max(buf.length * 2, pos + bytes)];
+			System.arraycopy(buf, 0, bigger, 0, pos);
+			buf = bigger;
+		}
+	}
+
+	void writeByte(char c) {
+		ensure(1);
+		buf[pos++] = (byte)c;
+	}
+
+	private void writeBytes(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buf, pos, bytes.length);
+		pos += bytes.length;
+	}
+
+	/**
+	 * Writes a text value, quoted if it contains a comma, a quote or a line break
+	 */
+	void writeString(CharSequence s) {
+		final int length = s.length();
+		boolean quote = false;
+		for (int i = 0; i < length && !quote; i++) {
+			final char c = s.charAt(i);
+			quote = (c == ',' || c == '"' || c == '\n' || c == '\r');
+		}
+		// a UTF-16 char takes up to 3 bytes, doubled quotes take 2
+		ensure(length * 3 + 2);
+		if (quote) {
+			buf[pos++] = '"';
+		}
+		for (int i = 0; i < length; i++) {
+			final char c = s.charAt(i);
+			if (c < 0x80) {
+				if (c == '"') {
+					buf[pos++] = '"';
+				}
+				buf[pos++] = (byte)c;
+			} else if (c < 0x800) {
+				buf[pos++] = (byte)(0xc0 | (c >> 6));
+				buf[pos++] = (byte)(0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+				final int cp = Character.toCodePoint(c, s.charAt(++i));
+				buf[pos++] = (byte)(0xf0 | (cp >> 18));
+				buf[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+				buf[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+				buf[pos++] = (byte)(0x80 | (cp & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				buf[pos++] = '?'; // unpaired surrogate, not representable in UTF-8
+			} else {
+				buf[pos++] = (byte)(0xe0 | (c >> 12));
+				buf[pos++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+				buf[pos++] = (byte)(0x80 | (c & 0x3f));
+			}
+		}
+		if (quote) {
+			buf[pos++] = '"';
+		}
+	}
+
+	/**
+	 * Writes the decimal representation of a long without creating a string
+	 */
+	void writeLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			writeString("-9223372036854775808");
+			return;
+		}
+		ensure(20);
+		if (value < 0) {
+			buf[pos++] = '-';
+			value = -value;
+		}
+		final int digits = digits(value);
+		int p = pos + digits;
+		do {
+			buf[--p] = (byte)('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		pos += digits;
+	}
+
+	private static int digits(long value) {
+		int digits = 1;
+		for (long limit = 10; digits < 19 && value >= limit; limit *= 10) {
+			digits++;
+		}
+		return digits;
+	}
+
+	/**
+	 * Writes a floating point number in the plain notation, integral values
+	 * without the fraction
+	 * @param single whether the value was read as a float, it is written
+	 * 		with the shortest representation of the float then
+	 */
+	void writeFloating(double value, boolean single) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			writeLong((long)value);
+		} else if (Double.isNaN(value) || Double.isInfinite(value)) {
+			writeString(Double.toString(value));
+		} else {
+			final String s = single ? Float.toString((float)value) : Double.toString(value);
+			// avoid the scientific notation
+			writeString((s.indexOf('E') < 0) ? s : new BigDecimal(s).toPlainString());
+		}
+	}
+
+	/**
+	 * Writes a zero padded number of the given width; negative numbers are
+	 * prefixed with a minus sign, numbers wider than that are written whole
+	 */
+	private void writePadded(int value, int width) {
+		if (value < 0) {
+			writeByte('-');
+			value = -value;
+		}
+		if (digits(value) > width) {
+			writeLong(value);
+			return;
+		}
+		ensure(width);
+		for (int p = pos + width - 1; p >= pos; p--) {
+			buf[p] = (byte)('0' + (value % 10));
+			value /= 10;
+		}
+		pos += width;
+	}
+
+	void writeDate(Date date) {
+		calendar.setTime(date);
+		final int year = calendar.get(Calendar.YEAR);
+		// years before Christ as in ISO 8601: 1 BC is 0000, 2 BC is -0001
+		writePadded((calendar.get(Calendar.ERA) == GregorianCalendar.BC) ? 1 - year : year, 4);
+		writeByte('-');
+		writePadded(calendar.get(Calendar.MONTH) + 1, 2);
+		writeByte('-');
+		writePadded(calendar.get(Calendar.DAY_OF_MONTH), 2);
+	}
+
+	void writeTimestamp(Timestamp ts) {
+		writeDate(ts);
+		writeByte(' ');
+		writePadded(calendar.get(Calendar.HOUR_OF_DAY), 2);
+		writeByte(':');
+		writePadded(calendar.get(Calendar.MINUTE), 2);
+		writeByte(':');
+		writePadded(calendar.get(Calendar.SECOND), 2);
+		int nanos = ts.getNanos();
+		if (nanos != 0) {
+			int width = 9;
+			while (nanos % 10 == 0) {
+				nanos /= 10;
+				width--;
+			}
+			writeByte('.');
+			writePadded(nanos, width);
+		}
+	}
+
+	// ==== Column formatters =====
+
+	private abstract class Column {
+		abstract void write(ResultSet rs, int index) throws SQLException;
+	}
+
+	private class LongColumn extends Column {
+		void write(ResultSet rs, int index) throws SQLException {
+			final long value = rs.getLong(index);
+			if (!rs.wasNull()) {
+				writeLong(value);
+			}
+		}
+	}
+
+	private class DecimalColumn extends Column {
+		void write(ResultSet rs, int index) throws SQLException {
+			final BigDecimal value = rs.getBigDecimal(index);
+			if (value != null) {
+				writeString(value.toPlainString());
+			}
+		}
+	}
+
+	private class DoubleColumn extends Column {
+		void write(ResultSet rs, int index) throws SQLException {
+			final double value = rs.getDouble(index);
+			if (!rs.wasNull()) {
+				writeFloating(value, false);
+			}
+		}
+	}
+
+	/**
+	 * Single precision REAL, read as a float so that 0.1 is not written
+	 * as 0.10000000149011612
+	 */
+	private class FloatColumn extends Column {
+		void write(ResultSet rs, int index) throws SQLException {
+			final float value = rs.getFloat(index);
+			if (!rs.wasNull()) {
+				writeFloating(value, true);
+			}
+		}
+	}
+
+	private class BooleanColumn extends Column {
+		void write(ResultSet rs, int index) throws SQLException {
+			final boolean value = rs.getBoolean(index);
+			if (!rs.wasNull()) {
+				writeBytes(value ? TRUE : FALSE);
+			}
+		}
+	}
+
+	private class DateColumn extends Column {
+		void write(ResultSet rs, int index) throws SQLException {
+			final Date value = rs.getDate(index);
+			if (value != null) {
+				writeDate(value);
+			}
+		}
+	}
+
+	private class TimestampColumn extends Column {
+		void write(ResultSet rs, int index) throws SQLException {
+			final Timestamp value = rs.getTimestamp(index);
+			if (value != null) {
+				writeTimestamp(value);
+			}
+		}
+	}
+
+	private class PatternColumn extends Column {
+		private final DateFormat format;
+
+		PatternColumn(String pattern) {
+			this.format = new SimpleDateFormat(pattern);
+		}
+
+		void write(ResultSet rs, int index) throws SQLException {
+			final Timestamp value = rs.getTimestamp(index);
+			if (value != null) {
+				writeString(format.format(value));
+			}
+		}
+	}
+
+	private class StringColumn extends Column {
+		void write(ResultSet rs, int index) throws SQLException {
+			final String value = rs.getString(index);
+			if (value != null) {
+				writeString(value);
+			}
+		}
+	}
+}
@@ -26,32 +26,234 @@ package com.gooddata.agent.jdbc;
 import static java.lang.String.format;
 
 import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Semaphore;
 
+/**
+ * Opens connections to the source database.
+ *
+ * Driver classes are loaded once per JVM and connections are kept in a small
+ * bounded pool: {@link Connection#close()} on a connection returned by
+ * {@link #connect()} gives it back to the pool. Pooled connections are
+ * validated before they are handed out again and closed once they have
+ * been idle for longer than the idle timeout.
+ */
 public class JdbcConnector {
+	/**
+	 * Drivers loaded so far, keyed by the driver jar and class name
+	 */
+	private static final Map<String, Driver> DRIVERS = new HashMap<String, Driver>();
+
 	private String jdbcUrl    = null,
 				   driverPath = null,
 				   driver     = null, // the JDBC driver class
 				   username   = null,
 				   password   = null;
 	private URL driverUrl = null;
+	private int maxPoolSize = 1;
+	private long idleTimeout = 300000;  // ms
+	private int validationTimeout = 5;  // s
+
+	private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+	private Semaphore permits = null;
+	private boolean closed = false;
 
+	/**
+	 * Borrows a connection from the pool or opens a new one. Blocks if
+	 * the maximum number of connections is in use.
+	 * @return connection to be closed (i.e. returned to the pool) by the caller
+	 */
 	public Connection connect() throws SQLException {
+		final Semaphore permits = permits();
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection", e);
+		}
+		try {
+			Connection conn = borrowIdle();
+			if (conn == null) {
+				conn = open();
+			}
+			return pooled(conn);
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes all idle connections. Connections currently in use are closed
+	 * when they are returned.
+	 */
+	public void close() {
+		synchronized (idle) {
+			for (PooledConnection p : idle) {
+				closeQuietly(p.conn);
+			}
+			idle.clear();
+			closed = true;
+		}
+	}
+
+	private synchronized Semaphore permits() {
+		if (permits == null) {
+			permits = new Semaphore(maxPoolSize, true);
+		}
+		return permits;
+	}
+
+	private Connection open() throws SQLException {
 		Driver driver = loadDriver();
 		Properties props = new Properties();
 		props.setProperty("user", username);
 		props.setProperty("password", password);
 		Connection conn = driver.connect(jdbcUrl, props);
+		if (conn == null) {
+			throw new SQLException(format("Driver %s does not accept the URL %s", this.driver, jdbcUrl));
+		}
 		return conn;
 	}
 
+	/**
+	 * @return a valid idle connection or <tt>null</tt> if there is none
+	 */
+	private Connection borrowIdle() {
+		final long now = System.currentTimeMillis();
+		while (true) {
+			final PooledConnection p;
+			synchronized (idle) {
+				p = idle.pollLast(); // the most recently used one is the least likely to be stale
+			}
+			if (p == null) {
+				return null;
+			}
+			if (now - p.since > idleTimeout || !isValid(p.conn)) {
+				closeQuietly(p.conn);
+				continue;
+			}
+			return p.conn;
+		}
+	}
+
+	private boolean isValid(Connection conn) {
+		try {
+			return conn.isValid(validationTimeout);
+		} catch (SQLException e) {
+			return false;
+		} catch (AbstractMethodError e) {
+			// pre-JDBC 4 driver, the connection will have to prove itself
+			return true;
+		}
+	}
+
+	private void release(Connection conn) {
+		try {
+			boolean reusable = false;
+			try {
+				if (!conn.isClosed()) {
+					if (!conn.getAutoCommit()) {
+						conn.rollback();
+						conn.setAutoCommit(true);
+					}
+					reusable = true;
+				}
+			} catch (SQLException e) {
+				// broken connection, do not reuse it
+			}
+			synchronized (idle) {
+				if (reusable && !closed) {
+					final long now = System.currentTimeMillis();
+					idle.add(new PooledConnection(conn, now));
+					// close the connections nobody has asked for for too long
+					while (!idle.isEmpty() && now - idle.getFirst().since > idleTimeout) {
+						closeQuietly(idle.removeFirst().conn);
+					}
+					return;
+				}
+			}
+			closeQuietly(conn);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Wraps the connection so that closing it returns it to the pool
+	 */
+	private Connection pooled(final Connection conn) {
+		return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+			new InvocationHandler() {
+				private boolean closed = false;
+
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					final String name = method.getName();
+					if ("close".equals(name) && method.getParameterTypes().length == 0) {
+						if (!closed) {
+							closed = true;
+							release(conn);
+						}
+						return null;
+					}
+					if ("isClosed".equals(name) && closed) {
+						return Boolean.TRUE;
+					}
+					if ("equals".equals(name)) {
+						return proxy == args[0];
+					}
+					if ("hashCode".equals(name)) {
+						return System.identityHashCode(proxy);
+					}
+					if (closed) {
+						throw new SQLException("The connection has been returned to the pool");
+					}
+					try {
+						return method.invoke(conn, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				}
+			});
+	}
+
+	private static void closeQuietly(Connection conn) {
+		try {
+			conn.close();
+		} catch (SQLException e) {
+			// nothing to do about it
+		}
+	}
+
 	private Driver loadDriver() {
+		final String key = ((driverUrl == null) ? "" : driverUrl.toString()) + "!" + driver;
+		synchronized (DRIVERS) {
+			Driver result = DRIVERS.get(key);
+			if (result == null) {
+				result = newDriver();
+				DRIVERS.put(key, result);
+			}
+			return result;
+		}
+	}
+
+	private Driver newDriver() {
 		final Class driverClass;
 		if (driverUrl != null) {
 			if (driverPath == null) { throw new AssertionError("driverUrl set but driverPath not"); }
@@ -79,6 +281,54 @@ public class JdbcConnector {
 		}
 	}
 
+	public int getMaxPoolSize() {
+		return maxPoolSize;
+	}
+
+	/**
+	 * @param maxPoolSize maximum number of connections open at the same time;
+	 * 		must be set before the first connection is opened
+	 */
+	public synchronized void setMaxPoolSize(int maxPoolSize) {
+		if (permits != null) {
+			throw new IllegalStateException("The pool is already in use");
+		}
+		this.maxPoolSize = maxPoolSize;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @param idleTimeout milliseconds after which an unused connection is closed
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public int getValidationTimeout() {
+		return validationTimeout;
+	}
+
+	/**
+	 * @param validationTimeout seconds to wait for a pooled connection to
+	 * 		prove it is still alive before it is reused
+	 */
+	public void setValidationTimeout(int validationTimeout) {
+		this.validationTimeout = validationTimeout;
+	}
+
+	private static class PooledConnection {
+		final Connection conn;
+		final long since;
+
+		PooledConnection(Connection conn, long since) {
+			this.conn = conn;
+			this.since = since;
+		}
+	}
+
 	public String getJdbcUrl() {
 		return jdbcUrl;
 	}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent.jdbc;
+
+/**
+ * A data set extracted from a database: the query and the per data set
+ * settings read from the <tt>data.&lt;name&gt;.*</tt> properties.
+ */
+public class JdbcDataset {
+	private final String name;
+	private final String sql;
+	private String incrementSql = null;
+	private String watermarkColumn = null;
+	private String changeKey = null;
+	private boolean changeDeletes = false;
+	private String partitionColumn = null;
+	private int partitions = 1;
+	private boolean mergePartitions = true;
+	private long maxRowsPerFile = 0;
+	private long maxBytesPerFile = 0;
+
+	public JdbcDataset(String name, String sql) {
+		this.name = name;
+		this.sql = sql;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the query extracting the whole data set; in the incremental
+	 * 		mode, it is used only for the initial extract
+	 */
+	public String getSql() {
+		return sql;
+	}
+
+	public String getIncrementSql() {
+		return incrementSql;
+	}
+
+	/**
+	 * @param incrementSql query extracting rows changed since the previous
+	 * 		extract; its only parameter (<tt>?</tt>) is bound to the watermark
+	 */
+	public void setIncrementSql(String incrementSql) {
+		this.incrementSql = incrementSql;
+	}
+
+	public String getWatermarkColumn() {
+		return watermarkColumn;
+	}
+
+	/**
+	 * @param watermarkColumn column of the query result whose highest value
+	 * 		is remembered as the watermark for the next increment
+	 */
+	public void setWatermarkColumn(String watermarkColumn) {
+		this.watermarkColumn = watermarkColumn;
+	}
+
+	public boolean isIncremental() {
+		return incrementSql != null && watermarkColumn != null;
+	}
+
+	public String getChangeKey() {
+		return changeKey;
+	}
+
+	/**
+	 * @param changeKey an integral column of the query result identifying
+	 * 		rows; if set, only rows that are new or changed since the previous
+	 * 		extract are written
+	 */
+	public void setChangeKey(String changeKey) {
+		this.changeKey = changeKey;
+	}
+
+	public boolean isChangeDetected() {
+		return changeKey != null;
+	}
+
+	public boolean isChangeDeletes() {
+		return changeDeletes;
+	}
+
+	/**
+	 * @param changeDeletes <tt>true</tt> to list the keys of rows that
+	 * 		disappeared since the previous extract in <tt>&lt;name&gt;.deleted.csv</tt>
+	 */
+	public void setChangeDeletes(boolean changeDeletes) {
+		this.changeDeletes = changeDeletes;
+	}
+
+	public String getPartitionColumn() {
+		return partitionColumn;
+	}
+
+	/**
+	 * @param partitionColumn an integral column of the query result used
+	 * 		to split the extract into key ranges
+	 */
+	public void setPartitionColumn(String partitionColumn) {
+		this.partitionColumn = partitionColumn;
+	}
+
+	public int getPartitions() {
+		return partitions;
+	}
+
+	public void setPartitions(int partitions) {
+		this.partitions = partitions;
+	}
+
+	public boolean isPartitioned() {
+		return partitionColumn != null && partitions > 1;
+	}
+
+	public boolean isMergePartitions() {
+		return mergePartitions;
+	}
+
+	/**
+	 * @param mergePartitions <tt>true</tt> to concatenate the key ranges into
+	 * 		a single CSV file, <tt>false</tt> to keep them as numbered part files
+	 */
+	public void setMergePartitions(boolean mergePartitions) {
+		this.mergePartitions = mergePartitions;
+	}
+
+	public long getMaxRowsPerFile() {
+		return maxRowsPerFile;
+	}
+
+	/**
+	 * @param maxRowsPerFile maximum number of data rows in a single part
+	 * 		file, 0 for no limit
+	 */
+	public void setMaxRowsPerFile(long maxRowsPerFile) {
+		this.maxRowsPerFile = maxRowsPerFile;
+	}
+
+	public long getMaxBytesPerFile() {
+		return maxBytesPerFile;
+	}
+
+	/**
+	 * @param maxBytesPerFile size of a part file after which the next one is
+	 * 		started, 0 for no limit; a file may exceed it by the last row
+	 */
+	public void setMaxBytesPerFile(long maxBytesPerFile) {
+		this.maxBytesPerFile = maxBytesPerFile;
+	}
+
+	/**
+	 * @return <tt>true</tt> if the extract is split into part files of
+	 * 		a bounded size, each of them with its own header
+	 */
+	public boolean isSizeBounded() {
+		return maxRowsPerFile > 0 || maxBytesPerFile > 0;
+	}
+}
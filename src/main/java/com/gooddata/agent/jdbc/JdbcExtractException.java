@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent.jdbc;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Thrown when one or more data sets could not be extracted. The extracts
+ * that finished successfully are kept in {@link #getExtractsDir()}.
+ */
+public class JdbcExtractException extends Exception {
+	private static final long serialVersionUID = -6431790145112305729L;
+
+	private final Map<String, Exception> errors;
+	private final File extractsDir;
+
+	public JdbcExtractException(Map<String, Exception> errors, File extractsDir) {
+		super(errors.size() + " data set(s) failed to extract: " + errors.keySet());
+		this.errors = errors;
+		this.extractsDir = extractsDir;
+	}
+
+	/**
+	 * @return map of data set names to the errors that broke their extraction
+	 */
+	public Map<String, Exception> getErrors() {
+		return errors;
+	}
+
+	public File getExtractsDir() {
+		return extractsDir;
+	}
+}
@@ -23,67 +23,592 @@
 
 package com.gooddata.agent.jdbc;
 
+import static java.lang.String.format;
+
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
 
-import au.com.bytecode.opencsv.CSVWriter;
+import com.gooddata.agent.CsvSplitter;
 
 public class JdbcExtractor {
+	private static Logger l = Logger.getLogger(JdbcExtractor.class);
+
+	/**
+	 * The fetch size used in the streaming mode unless set explicitly
+	 */
+	public static final int DEFAULT_STREAMING_FETCH_SIZE = 1000;
+
 	private final JdbcConnector connector;
+	private int parallelism = 1;
+	private boolean streaming = false;
+	private int fetchSize = 0;
+	private String datePattern = null,
+	               timestampPattern = null;
+	private WatermarkStore watermarks = null;
+	private boolean resetWatermarks = false;
+	private File hashIndexDir = null;
+	private final Map<String, ChangeSet> changeSets = new HashMap<String, ChangeSet>();
 
 	public JdbcExtractor(JdbcConnector connector) {
 		this.connector = connector;
 	}
 
 	/**
-	 * Creates a temp directory and extracts data into CSV files within
+	 * Extracts the given queries, see {@link #extract(List)}
 	 * @param datasets maps data set names (used to derive file names) to SQL queries
+	 */
+	public File extract(Map<String,String> datasets) throws JdbcExtractException {
+		List<JdbcDataset> list = new ArrayList<JdbcDataset>();
+		for (Map.Entry<String, String> entry : datasets.entrySet()) {
+			list.add(new JdbcDataset(entry.getKey(), entry.getValue()));
+		}
+		return extract(list);
+	}
+
+	/**
+	 * Creates a temp directory and extracts data into CSV files within.
+	 * Up to {@link #getParallelism()} queries run at the same time, each of
+	 * them using its own database connection. Partitioned data sets are split
+	 * into key ranges that are extracted as separate queries. A failing data
+	 * set does not stop the others.
+	 * @param datasets data sets to be extracted
 	 * @return temp folder where the extracted files are stored or <tt>null</tt>
 	 * 		if nothing was extracted
-	 * @throws SQLException
-	 * @throws IOException
+	 * @throws JdbcExtractException if any of the data sets failed; the
+	 * 		extracts that succeeded are kept in the temp folder
+	 */
+	public File extract(List<JdbcDataset> datasets) throws JdbcExtractException {
+		if (datasets.isEmpty()) {
+			return null;
+		}
+		final File tmpdir = createTempDir();
+		final Map<String, Exception> errors = new TreeMap<String, Exception>();
+		final Map<JdbcDataset, List<Slice>> plan = plan(datasets, tmpdir, errors);
+		int sliceCount = 0;
+		for (List<Slice> slices : plan.values()) {
+			sliceCount += slices.size();
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, sliceCount)));
+		final Map<Slice, Future<Void>> futures = new LinkedHashMap<Slice, Future<Void>>();
+		try {
+			for (List<Slice> slices : plan.values()) {
+				for (final Slice slice : slices) {
+					futures.put(slice, executor.submit(new Callable<Void>() {
+						public Void call() throws Exception {
+							extractSlice(slice);
+							return null;
+						}
+					}));
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		for (Map.Entry<Slice, Future<Void>> f : futures.entrySet()) {
+			final String name = f.getKey().dataset.getName();
+			try {
+				f.getValue().get();
+			} catch (ExecutionException e) {
+				if (!errors.containsKey(name)) {
+					errors.put(name, asException(e.getCause()));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				executor.shutdownNow();
+				errors.put(name, e);
+			}
+		}
+
+		for (Map.Entry<JdbcDataset, List<Slice>> p : plan.entrySet()) {
+			final JdbcDataset dataset = p.getKey();
+			if (errors.containsKey(dataset.getName())) {
+				// do not let a partial extract get picked up by a collector
+				for (Slice slice : p.getValue()) {
+					for (File file : slice.files) {
+						file.delete();
+					}
+				}
+				discardChangeSet(dataset);
+				continue;
+			}
+			if (dataset.isPartitioned() && dataset.isMergePartitions() && !dataset.isSizeBounded()) {
+				final File merged = new File(tmpdir, dataset.getName() + ".csv");
+				try {
+					merge(p.getValue(), merged);
+				} catch (IOException e) {
+					errors.put(dataset.getName(), e);
+					// neither the partial merge nor the slices left may get picked up
+					merged.delete();
+					for (Slice slice : p.getValue()) {
+						slice.file.delete();
+					}
+					discardChangeSet(dataset);
+					continue;
+				}
+			}
+			if (dataset.isChangeDetected() && dataset.isChangeDeletes()) {
+				try {
+					OutputStream out = new FileOutputStream(new File(tmpdir, deletesFileName(dataset.getName())));
+					try {
+						writeDeletes(dataset, out);
+					} finally {
+						out.close();
+					}
+				} catch (IOException e) {
+					errors.put(dataset.getName(), e);
+					discardChangeSet(dataset);
+					continue;
+				}
+			}
+			updateWatermark(dataset, p.getValue());
+		}
+		if (!errors.isEmpty()) {
+			throw new JdbcExtractException(errors, tmpdir);
+		}
+		return tmpdir;
+	}
+
+	/**
+	 * Splits each data set into the slices to be extracted. Key ranges of
+	 * partitioned data sets are computed here.
+	 */
+	private Map<JdbcDataset, List<Slice>> plan(List<JdbcDataset> datasets, File tmpdir, Map<String, Exception> errors) {
+		final Map<JdbcDataset, List<Slice>> plan = new LinkedHashMap<JdbcDataset, List<Slice>>();
+		for (final JdbcDataset dataset : datasets) {
+			try {
+				plan.put(dataset, slices(dataset, tmpdir));
+			} catch (SQLException e) {
+				errors.put(dataset.getName(), e);
+			} catch (IOException e) {
+				errors.put(dataset.getName(), e);
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * Splits a data set into the slices to be extracted
+	 * @param dir directory for the slice files or <tt>null</tt> if the
+	 * 		slices are to be written into a single stream
+	 */
+	private List<Slice> slices(JdbcDataset dataset, File dir) throws SQLException, IOException {
+		final List<Slice> slices = new ArrayList<Slice>();
+		final Watermark since = lastWatermark(dataset);
+		final String query = (since == null) ? dataset.getSql() : dataset.getIncrementSql();
+		final ChangeSet changes = dataset.isChangeDetected() ? openChangeSet(dataset) : null;
+		// size bounded data sets are written into numbered part files shared by all slices
+		final PartFiles parts = (dir != null && dataset.isSizeBounded()) ? new PartFiles(dir, dataset) : null;
+		if (!dataset.isPartitioned()) {
+			final File file = (dir == null || parts != null) ? null : new File(dir, dataset.getName() + ".csv");
+			slices.add(new Slice(dataset, query, since, changes, null, file, parts, true));
+		} else {
+			// slices of merged data sets are removed from the directory before it is handed over
+			final boolean merged = (dir == null) || (dataset.isMergePartitions() && parts == null);
+			final long[][] ranges = keyRanges(dataset, query, since);
+			final String sql = format("SELECT * FROM (%s) gdca_slice WHERE %s BETWEEN ? AND ?",
+					query, dataset.getPartitionColumn());
+			for (int i = 0; i < ranges.length; i++) {
+				// rows with a NULL key go to the first slice
+				final String sliceSql = (i == 0) ? sql + format(" OR %s IS NULL", dataset.getPartitionColumn()) : sql;
+				final File file = (dir == null || parts != null) ? null : new File(dir, CsvSplitter.partFileName(dataset.getName(), i + 1));
+				slices.add(new Slice(dataset, sliceSql, since, changes, ranges[i], file, parts, !merged || i == 0));
+			}
+		}
+		return slices;
+	}
+
+	/**
+	 * Extracts a single data set into the given stream without using any
+	 * temporary files. Key ranges of a partitioned data set are extracted
+	 * one after another in the key order.
+	 * @param dataset data set to be extracted
+	 * @param out stream receiving the CSV data; it is not closed
+	 */
+	public void extract(JdbcDataset dataset, OutputStream out) throws SQLException, IOException {
+		final List<Slice> slices = slices(dataset, null);
+		boolean done = false;
+		try {
+			for (Slice slice : slices) {
+				extractSlice(slice, out);
+			}
+			done = true;
+		} finally {
+			if (!done) {
+				discardChangeSet(dataset);
+			}
+		}
+		updateWatermark(dataset, slices);
+	}
+
+	/**
+	 * Writes keys of the rows of a change detected data set that were present
+	 * in the previous extract but not in the last one. Must be called after
+	 * the data set has been extracted.
+	 * @param out stream receiving the CSV data; it is not closed
+	 */
+	public void writeDeletes(JdbcDataset dataset, OutputStream out) throws IOException {
+		final ChangeSet changes = changeSets.get(dataset.getName());
+		if (changes == null) {
+			throw new IllegalStateException("Data set " + dataset.getName() + " has not been extracted yet");
+		}
+		final CsvEncoder csv = new CsvEncoder(out);
+		csv.writeString(dataset.getChangeKey());
+		csv.writeByte('\n');
+		changes.previous.forEach(new RowHashIndex.Visitor() {
+			public void visit(long key, long hash) throws IOException {
+				if (changes.current.get(key) == 0) {
+					csv.writeLong(key);
+					csv.writeByte('\n');
+					csv.commitRow();
+				}
+			}
+		});
+		csv.flush();
+	}
+
+	/**
+	 * @return name of the file listing keys of deleted rows of a data set
+	 */
+	public static String deletesFileName(String dataset) {
+		return dataset + ".deleted.csv";
+	}
+
+	/**
+	 * Opens the row hashes of the previous extract and starts a new index
+	 * for the current one
 	 */
-	public File extract(Map<String,String> datasets) throws SQLException, IOException {
-		File tmpdir = createTempDir();
-		int extracts = 0;
+	private ChangeSet openChangeSet(JdbcDataset dataset) throws IOException {
+		if (hashIndexDir == null) {
+			throw new IllegalStateException("Change detection requires the hash index directory");
+		}
+		if (!hashIndexDir.isDirectory() && !hashIndexDir.mkdirs()) {
+			throw new IOException("Cannot create directory " + hashIndexDir);
+		}
+		final File file = new File(hashIndexDir, dataset.getName() + ".hashes");
+		final RowHashIndex previous = resetWatermarks ? RowHashIndex.empty() : RowHashIndex.open(file);
+		final File newFile = new File(hashIndexDir, dataset.getName() + ".hashes.new");
+		final ChangeSet changes = new ChangeSet(dataset.getChangeKey(), file, newFile,
+				previous, RowHashIndex.create(newFile, previous.size()));
+		synchronized (changeSets) {
+			discardChangeSet(dataset);
+			changeSets.put(dataset.getName(), changes);
+		}
+		return changes;
+	}
+
+	private void discardChangeSet(JdbcDataset dataset) {
+		synchronized (changeSets) {
+			final ChangeSet changes = changeSets.remove(dataset.getName());
+			if (changes != null) {
+				changes.close();
+				changes.newFile.delete();
+			}
+		}
+	}
+
+	private void updateWatermark(JdbcDataset dataset, List<Slice> slices) {
+		if (dataset.isIncremental() && watermarks != null) {
+			Watermark max = null;
+			for (Slice slice : slices) {
+				max = Watermark.max(max, slice.watermark);
+			}
+			if (max != null) { // keep the previous watermark if there were no new rows
+				watermarks.update(dataset.getName(), max);
+			}
+		}
+	}
+
+	/**
+	 * @return the watermark of the previous extract if the data set is to be
+	 * 		extracted incrementally, <tt>null</tt> for a full extract
+	 */
+	private Watermark lastWatermark(JdbcDataset dataset) {
+		if (!dataset.isIncremental() || watermarks == null || resetWatermarks) {
+			return null;
+		}
+		return watermarks.get(dataset.getName());
+	}
+
+	/**
+	 * Looks up the minimum and maximum value of the partition column and
+	 * splits that interval into up to {@link JdbcDataset#getPartitions()}
+	 * ranges of equal width.
+	 * @return array of inclusive <tt>{ low, high }</tt> bounds
+	 */
+	private long[][] keyRanges(JdbcDataset dataset, String query, Watermark since) throws SQLException {
+		final long min, max;
 		Connection conn = connector.connect();
 		try {
-			for (Map.Entry<String, String> entry : datasets.entrySet()) {
-				writeResultSet(conn, entry.getValue(), tmpdir, entry.getKey() + ".csv");
-				extracts++;
+			PreparedStatement stmt = conn.prepareStatement(format("SELECT MIN(%1$s), MAX(%1$s) FROM (%2$s) gdca_bounds",
+					dataset.getPartitionColumn(), query));
+			try {
+				bind(stmt, since, null);
+				ResultSet rs = stmt.executeQuery();
+				try {
+					rs.next();
+					min = rs.getLong(1);
+					max = rs.getLong(2);
+				} finally {
+					rs.close();
+				}
+			} finally {
+				stmt.close();
 			}
 		} finally {
 			conn.close();
 		}
-		return (extracts == 0) ? null : tmpdir;
+		return splitRange(min, max, dataset.getPartitions());
+	}
+
+	/**
+	 * Splits the <tt>[min, max]</tt> interval into up to <tt>partitions</tt>
+	 * adjacent ranges. Narrow intervals may yield fewer ranges.
+	 */
+	static long[][] splitRange(long min, long max, int partitions) {
+		final double width = ((double)max - (double)min + 1) / partitions;
+		final List<long[]> ranges = new ArrayList<long[]>();
+		long low = min;
+		for (int i = 1; i <= partitions && low <= max; i++) {
+			long high = (i == partitions) ? max : Math.min(max, min + (long)Math.ceil(width * i) - 1);
+			if (high < low) {
+				continue;
+			}
+			ranges.add(new long[] { low, high });
+			if (high == max) {
+				break;
+			}
+			low = high + 1;
+		}
+		return ranges.toArray(new long[ranges.size()][]);
 	}
 
-	private void writeResultSet(Connection conn, String sql, File tmpdir, String filename) throws SQLException, IOException {
-		Statement stmt = conn.createStatement();
+	private void extractSlice(Slice slice) throws SQLException, IOException {
+		if (slice.parts != null) {
+			// the part files are opened as the rows are written
+			extractSlice(slice, null);
+			return;
+		}
+		slice.files.add(slice.file);
+		OutputStream out = new FileOutputStream(slice.file);
 		try {
-			ResultSet rs = stmt.executeQuery(sql);
-			try {
-				Writer writer = new FileWriter(tmpdir.getAbsolutePath() + File.separator + filename);
-				CSVWriter csv = new CSVWriter(writer, ',', '"', '"', "\n");
+			extractSlice(slice, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void extractSlice(Slice slice, OutputStream out) throws SQLException, IOException {
+		Connection conn = connector.connect();
+		try {
+			if (streaming && isPostgres()) {
+				// PostgreSQL only uses a server side cursor within a transaction
+				conn.setAutoCommit(false);
 				try {
-					csv.writeAll(rs, true);
+					writeResultSet(conn, slice, out);
 				} finally {
-					csv.close();
+					endTransaction(conn);
+				}
+			} else {
+				writeResultSet(conn, slice, out);
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Rolls back the read-only transaction of a PostgreSQL cursor. A failure
+	 * is only logged so that it does not hide the error of the extract.
+	 */
+	private static void endTransaction(Connection conn) {
+		try {
+			conn.rollback();
+			conn.setAutoCommit(true);
+		} catch (SQLException e) {
+			l.warn("Error ending the transaction of a streamed extract: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * In the streaming mode, the statement is forward-only and read-only and
+	 * fetches the rows in batches rather than materializing the whole result
+	 * set in the driver.
+	 */
+	private PreparedStatement prepareStatement(Connection conn, String sql) throws SQLException {
+		if (!streaming) {
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			if (fetchSize > 0) {
+				stmt.setFetchSize(fetchSize);
+			}
+			return stmt;
+		}
+		PreparedStatement stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		if (isMySql()) {
+			// MySQL Connector/J streams row by row only with this magic value
+			stmt.setFetchSize(Integer.MIN_VALUE);
+		} else {
+			stmt.setFetchSize((fetchSize > 0) ? fetchSize : DEFAULT_STREAMING_FETCH_SIZE);
+		}
+		return stmt;
+	}
+
+	private boolean isMySql() {
+		final String url = connector.getJdbcUrl();
+		return url != null && (url.startsWith("jdbc:mysql:") || url.startsWith("jdbc:mariadb:"));
+	}
+
+	private boolean isPostgres() {
+		final String url = connector.getJdbcUrl();
+		return url != null && url.startsWith("jdbc:postgresql:");
+	}
+
+	private void writeResultSet(Connection conn, Slice slice, OutputStream out) throws SQLException, IOException {
+		PreparedStatement stmt = prepareStatement(conn, slice.sql);
+		try {
+			bind(stmt, slice.since, slice.range);
+			ResultSet rs = stmt.executeQuery();
+			final PartOutput parts = (slice.parts == null) ? null : new PartOutput(slice);
+			try {
+				CsvEncoder csv = new CsvEncoder((parts == null) ? out : parts.next(0));
+				csv.setDatePattern(datePattern);
+				csv.setTimestampPattern(timestampPattern);
+				if (slice.header) {
+					csv.writeHeader(rs.getMetaData());
+				} else {
+					csv.init(rs.getMetaData());
+				}
+				final JdbcDataset dataset = slice.dataset;
+				if (dataset.isIncremental() || slice.changes != null || parts != null) {
+					final Watermark.Tracker tracker = dataset.isIncremental()
+							? new Watermark.Tracker(rs, dataset.getWatermarkColumn()) : null;
+					final int key = (slice.changes == null) ? 0 : slice.changes.keyIndex(rs);
+					while (rs.next()) {
+						final boolean full = parts != null && parts.isFull(csv);
+						csv.encodeRow(rs);
+						if (slice.changes != null && !slice.changes.changed(rs, key, csv.rowHash())) {
+							csv.discardRow();
+							continue;
+						}
+						if (full) {
+							// roll over only once there is another row to write so that no part is empty
+							final byte[] row = csv.takeRow();
+							csv.flush();
+							csv.setOutput(parts.next(csv.getBytesWritten()));
+							csv.writeHeader(rs.getMetaData());
+							csv.writeRaw(row);
+						}
+						csv.commitRow();
+						if (parts != null) {
+							parts.rows++;
+						}
+						if (tracker != null) {
+							tracker.observe(rs);
+						}
+					}
+					if (tracker != null) {
+						slice.watermark = tracker.getMax();
+					}
+				} else {
+					csv.writeAll(rs);
 				}
+				csv.flush();
 			} finally {
+				if (parts != null) {
+					parts.close();
+				}
 				rs.close();
 			}
 		} finally {
 			stmt.close();
 		}
-		
+	}
+
+	/**
+	 * Binds the watermark (if any) followed by the key range bounds (if any)
+	 */
+	private static void bind(PreparedStatement stmt, Watermark since, long[] range) throws SQLException {
+		int index = 1;
+		if (since != null) {
+			since.bind(stmt, index++);
+		}
+		if (range != null) {
+			stmt.setLong(index++, range[0]);
+			stmt.setLong(index++, range[1]);
+		}
+	}
+
+	/**
+	 * Concatenates the slice files in their key order and removes them.
+	 * Only the first slice carries the header.
+	 */
+	private void merge(List<Slice> slices, File target) throws IOException {
+		FileChannel out = new FileOutputStream(target).getChannel();
+		try {
+			for (Slice slice : slices) {
+				FileChannel in = new FileInputStream(slice.file).getChannel();
+				try {
+					long position = 0, size = in.size();
+					while (position < size) {
+						position += in.transferTo(position, size - position, out);
+					}
+				} finally {
+					in.close();
+				}
+				slice.file.delete();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Saves the watermarks of incrementally extracted data sets. To be called
+	 * once the extracted data has been delivered.
+	 */
+	public void commit() throws IOException {
+		if (watermarks != null) {
+			watermarks.commit();
+		}
+		synchronized (changeSets) {
+			for (ChangeSet changes : changeSets.values()) {
+				changes.close();
+				if (!changes.newFile.renameTo(changes.file)) {
+					changes.file.delete();
+					if (!changes.newFile.renameTo(changes.file)) {
+						throw new IOException("Cannot replace " + changes.file);
+					}
+				}
+			}
+			changeSets.clear();
+		}
+	}
+
+	private static Exception asException(Throwable t) {
+		return (t instanceof Exception) ? (Exception)t : new RuntimeException(t);
 	}
 
 	private File createTempDir() {
@@ -96,4 +621,253 @@ public class JdbcExtractor {
 			throw new RuntimeException("Error creating a temp directory", e);
 		}
 	}
+
+	public JdbcConnector getConnector() {
+		return connector;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism maximum number of queries running at the same time
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be a positive number");
+		}
+		this.parallelism = parallelism;
+	}
+
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * @param streaming <tt>true</tt> to fetch rows through forward-only,
+	 * 		read-only cursors so that memory use does not grow with the size
+	 * 		of the result set
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * @param fetchSize number of rows fetched from the database at once,
+	 * 		0 leaves the driver's default (or {@link #DEFAULT_STREAMING_FETCH_SIZE}
+	 * 		in the streaming mode)
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	public String getDatePattern() {
+		return datePattern;
+	}
+
+	/**
+	 * @see CsvEncoder#setDatePattern(String)
+	 */
+	public void setDatePattern(String datePattern) {
+		this.datePattern = datePattern;
+	}
+
+	public String getTimestampPattern() {
+		return timestampPattern;
+	}
+
+	/**
+	 * @see CsvEncoder#setTimestampPattern(String)
+	 */
+	public void setTimestampPattern(String timestampPattern) {
+		this.timestampPattern = timestampPattern;
+	}
+
+	public WatermarkStore getWatermarks() {
+		return watermarks;
+	}
+
+	/**
+	 * @param watermarks store of watermarks of incremental data sets; without
+	 * 		it, incremental data sets are always extracted in full
+	 */
+	public void setWatermarks(WatermarkStore watermarks) {
+		this.watermarks = watermarks;
+	}
+
+	public boolean isResetWatermarks() {
+		return resetWatermarks;
+	}
+
+	/**
+	 * @param resetWatermarks <tt>true</tt> to ignore the stored watermarks
+	 * 		and run the initial queries of incremental data sets again;
+	 * 		all rows of change detected data sets are extracted too
+	 */
+	public void setResetWatermarks(boolean resetWatermarks) {
+		this.resetWatermarks = resetWatermarks;
+	}
+
+	public File getHashIndexDir() {
+		return hashIndexDir;
+	}
+
+	/**
+	 * @param hashIndexDir directory keeping the row hashes of change detected
+	 * 		data sets between runs
+	 */
+	public void setHashIndexDir(File hashIndexDir) {
+		this.hashIndexDir = hashIndexDir;
+	}
+
+	/**
+	 * Row hashes of the previous and the current extract of a change detected data set
+	 */
+	private static class ChangeSet {
+		final String keyColumn;
+		final File file, newFile;
+		final RowHashIndex previous, current;
+
+		ChangeSet(String keyColumn, File file, File newFile, RowHashIndex previous, RowHashIndex current) {
+			this.keyColumn = keyColumn;
+			this.file = file;
+			this.newFile = newFile;
+			this.previous = previous;
+			this.current = current;
+		}
+
+		int keyIndex(ResultSet rs) throws SQLException {
+			final int index = rs.findColumn(keyColumn);
+			switch (rs.getMetaData().getColumnType(index)) {
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+				return index;
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+				if (rs.getMetaData().getScale(index) == 0) {
+					return index;
+				}
+			}
+			throw new SQLException(format("The change key %s must be an integral column", keyColumn));
+		}
+
+		/**
+		 * Records the row hash and compares it with the previous extract
+		 * @return <tt>true</tt> if the row is new or changed
+		 */
+		boolean changed(ResultSet rs, int keyIndex, long hash) throws SQLException {
+			final long key = rs.getLong(keyIndex);
+			if (rs.wasNull()) {
+				return true; // rows without a key cannot be tracked
+			}
+			try {
+				current.put(key, hash);
+			} catch (IOException e) {
+				throw new SQLException("Error updating the row hash index", e);
+			}
+			return previous.get(key) != hash;
+		}
+
+		void close() {
+			try {
+				previous.close();
+				current.close();
+			} catch (IOException e) {
+				// the files are not used any more
+			}
+		}
+	}
+
+	/**
+	 * Numbers the part files of a size bounded data set across its slices
+	 */
+	private static class PartFiles {
+		final File dir;
+		final JdbcDataset dataset;
+		final AtomicInteger count = new AtomicInteger();
+
+		PartFiles(File dir, JdbcDataset dataset) {
+			this.dir = dir;
+			this.dataset = dataset;
+		}
+
+		File next() {
+			return new File(dir, CsvSplitter.partFileName(dataset.getName(), count.incrementAndGet()));
+		}
+	}
+
+	/**
+	 * The part file a slice of a size bounded data set is currently written into
+	 */
+	private static class PartOutput {
+		final Slice slice;
+		OutputStream out = null;
+		long rows = 0, start = 0;
+
+		PartOutput(Slice slice) {
+			this.slice = slice;
+		}
+
+		/**
+		 * Closes the current part file and opens the next one
+		 * @param position number of bytes written into the previous parts
+		 */
+		OutputStream next(long position) throws IOException {
+			close();
+			final File file = slice.parts.next();
+			slice.files.add(file);
+			out = new FileOutputStream(file);
+			rows = 0;
+			start = position;
+			return out;
+		}
+
+		boolean isFull(CsvEncoder csv) {
+			final JdbcDataset dataset = slice.dataset;
+			return (dataset.getMaxRowsPerFile() > 0 && rows >= dataset.getMaxRowsPerFile())
+					|| (dataset.getMaxBytesPerFile() > 0 && csv.getBytesWritten() - start >= dataset.getMaxBytesPerFile());
+		}
+
+		void close() throws IOException {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		}
+	}
+
+	/**
+	 * A single query of a data set, i.e. the whole data set or one of its key ranges
+	 */
+	private static class Slice {
+		final JdbcDataset dataset;
+		final String sql;
+		final Watermark since;
+		final ChangeSet changes;
+		final long[] range;
+		final File file;
+		final PartFiles parts;
+		final boolean header;
+		final List<File> files = new ArrayList<File>(); // the files written so far
+		Watermark watermark = null; // the highest watermark value extracted
+
+		Slice(JdbcDataset dataset, String sql, Watermark since, ChangeSet changes, long[] range, File file,
+				PartFiles parts, boolean header) {
+			this.dataset = dataset;
+			this.sql = sql;
+			this.since = since;
+			this.changes = changes;
+			this.range = range;
+			this.file = file;
+			this.parts = parts;
+			this.header = header;
+		}
+	}
 }
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent.jdbc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A memory-mapped, open addressing hash table mapping integral row keys to
+ * 64-bit row hashes. The table lives in a file so that it survives between
+ * runs and does not need to fit in the heap.
+ *
+ * The file starts with a small header followed by 16 byte slots (key, hash).
+ * A zero hash marks an empty slot, so row hashes must never be zero.
+ * Reads are thread safe, writes are serialized.
+ */
+class RowHashIndex {
+	private static final long MAGIC = 0x4744434148494458L; // "GDCAHIDX"
+	private static final int HEADER = 64;
+	private static final int SLOT = 16;
+	private static final int SEGMENT_BITS = 30; // 1 GB per mapped segment
+	private static final long MIN_CAPACITY = 1 << 16;
+	private static final double MAX_LOAD = 0.7;
+
+	private final File file;
+	private final boolean writable;
+	private RandomAccessFile raf;
+	private MappedByteBuffer[] segments;
+	private long capacity;
+	private long size;
+
+	private RowHashIndex(File file, boolean writable) {
+		this.file = file;
+		this.writable = writable;
+	}
+
+	/**
+	 * Opens an existing index read-only
+	 * @return the index or an empty one if the file does not exist
+	 */
+	static RowHashIndex open(File file) throws IOException {
+		if (!file.exists()) {
+			return empty();
+		}
+		RowHashIndex index = new RowHashIndex(file, false);
+		index.raf = new RandomAccessFile(file, "r");
+		index.map(index.raf.length());
+		final MappedByteBuffer header = index.segments[0];
+		if (header.getLong(0) != MAGIC) {
+			index.close();
+			throw new IOException(file + " is not a row hash index");
+		}
+		index.capacity = header.getLong(8);
+		index.size = header.getLong(16);
+		return index;
+	}
+
+	/**
+	 * @return an empty read-only index not backed by any file
+	 */
+	static RowHashIndex empty() {
+		RowHashIndex index = new RowHashIndex(null, false);
+		index.capacity = 0;
+		index.segments = new MappedByteBuffer[0];
+		return index;
+	}
+
+	/**
+	 * Creates a new, empty index, overwriting the file if it exists
+	 * @param expected expected number of keys
+	 */
+	static RowHashIndex create(File file, long expected) throws IOException {
+		RowHashIndex index = new RowHashIndex(file, true);
+		index.allocate(capacityFor(expected));
+		return index;
+	}
+
+	private static long capacityFor(long entries) {
+		long capacity = MIN_CAPACITY;
+		while (capacity * MAX_LOAD < entries) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private void allocate(long capacity) throws IOException {
+		file.delete();
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(HEADER + capacity * SLOT); // the new space reads as zeros, i.e. empty slots
+		map(HEADER + capacity * SLOT);
+		this.capacity = capacity;
+		this.size = 0;
+		segments[0].putLong(0, MAGIC);
+		segments[0].putLong(8, capacity);
+	}
+
+	private void map(long length) throws IOException {
+		final FileChannel channel = raf.getChannel();
+		final long segmentSize = 1L << SEGMENT_BITS;
+		segments = new MappedByteBuffer[(int)((length + segmentSize - 1) >>> SEGMENT_BITS)];
+		for (int i = 0; i < segments.length; i++) {
+			final long position = (long)i << SEGMENT_BITS;
+			segments[i] = channel.map(writable ? MapMode.READ_WRITE : MapMode.READ_ONLY,
+					position, Math.min(segmentSize, length - position));
+		}
+	}
+
+	long size() {
+		return size;
+	}
+
+	/**
+	 * @return the hash stored for the key or 0 if there is none
+	 */
+	long get(long key) {
+		if (capacity == 0) {
+			return 0;
+		}
+		final long mask = capacity - 1;
+		for (long slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+			final long offset = HEADER + slot * SLOT;
+			final MappedByteBuffer segment = segments[(int)(offset >>> SEGMENT_BITS)];
+			final int position = (int)(offset & ((1L << SEGMENT_BITS) - 1));
+			final long hash = segment.getLong(position + 8);
+			if (hash == 0) {
+				return 0;
+			}
+			if (segment.getLong(position) == key) {
+				return hash;
+			}
+		}
+	}
+
+	/**
+	 * Stores the hash of a row, replacing the previous one for the same key
+	 */
+	synchronized void put(long key, long hash) throws IOException {
+		if (!writable) {
+			throw new IllegalStateException("The index is read-only");
+		}
+		if (hash == 0) {
+			throw new IllegalArgumentException("Zero hash marks an empty slot");
+		}
+		if (size + 1 > capacity * MAX_LOAD) {
+			grow();
+		}
+		final long mask = capacity - 1;
+		for (long slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+			final long offset = HEADER + slot * SLOT;
+			final MappedByteBuffer segment = segments[(int)(offset >>> SEGMENT_BITS)];
+			final int position = (int)(offset & ((1L << SEGMENT_BITS) - 1));
+			final long existing = segment.getLong(position + 8);
+			if (existing == 0) {
+				segment.putLong(position, key);
+				segment.putLong(position + 8, hash);
+				size++;
+				return;
+			}
+			if (segment.getLong(position) == key) {
+				segment.putLong(position + 8, hash);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Doubles the capacity by rehashing into a new file that replaces the current one
+	 */
+	private void grow() throws IOException {
+		final File tmp = new File(file.getPath() + ".grow");
+		final RowHashIndex bigger = RowHashIndex.create(tmp, (long)(capacity * 2 * MAX_LOAD));
+		forEach(new Visitor() {
+			public void visit(long key, long hash) throws IOException {
+				bigger.put(key, hash);
+			}
+		});
+		bigger.flush();
+		release();
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Cannot replace " + file);
+		}
+		raf = new RandomAccessFile(file, "rw");
+		map(HEADER + bigger.capacity * SLOT);
+		capacity = bigger.capacity;
+		size = bigger.size;
+		bigger.release();
+	}
+
+	/**
+	 * Calls the visitor for every key stored in the index
+	 */
+	void forEach(Visitor visitor) throws IOException {
+		for (long slot = 0; slot < capacity; slot++) {
+			final long offset = HEADER + slot * SLOT;
+			final MappedByteBuffer segment = segments[(int)(offset >>> SEGMENT_BITS)];
+			final int position = (int)(offset & ((1L << SEGMENT_BITS) - 1));
+			final long hash = segment.getLong(position + 8);
+			if (hash != 0) {
+				visitor.visit(segment.getLong(position), hash);
+			}
+		}
+	}
+
+	/**
+	 * Writes the header and forces the content to the disk
+	 */
+	synchronized void flush() {
+		if (writable) {
+			segments[0].putLong(16, size);
+			for (MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+		}
+	}
+
+	synchronized void close() throws IOException {
+		flush();
+		release();
+	}
+
+	private void release() throws IOException {
+		segments = new MappedByteBuffer[0];
+		if (raf != null) {
+			raf.close();
+			raf = null;
+		}
+	}
+
+	/**
+	 * Spreads sequential keys over the table (the MurmurHash3 finalizer)
+	 */
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	interface Visitor {
+		void visit(long key, long hash) throws IOException;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent.jdbc;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * The highest value of a data set's watermark column seen in an extract.
+ * Bound into the increment query to fetch only rows newer than the
+ * previous extract.
+ */
+public class Watermark {
+	public enum Kind { NUMBER, TIMESTAMP, STRING }
+
+	private final Kind kind;
+	private final Object value;
+
+	private Watermark(Kind kind, Object value) {
+		this.kind = kind;
+		this.value = value;
+	}
+
+	/**
+	 * Restores a watermark from its {@link #toString() string form}
+	 */
+	public static Watermark parse(Kind kind, String value) {
+		switch (kind) {
+		case NUMBER:
+			return new Watermark(kind, new BigDecimal(value));
+		case TIMESTAMP:
+			return new Watermark(kind, Timestamp.valueOf(value));
+		default:
+			return new Watermark(kind, value);
+		}
+	}
+
+	static Kind kindOf(int sqlType) {
+		switch (sqlType) {
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+		case Types.BIGINT:
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return Kind.NUMBER;
+		case Types.DATE:
+		case Types.TIMESTAMP:
+			return Kind.TIMESTAMP;
+		default:
+			return Kind.STRING;
+		}
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return the higher of the two watermarks, either of them may be <tt>null</tt>
+	 */
+	static Watermark max(Watermark a, Watermark b) {
+		if (a == null) {
+			return b;
+		}
+		if (b == null) {
+			return a;
+		}
+		return (compare(a.value, b.value) >= 0) ? a : b;
+	}
+
+	/**
+	 * Values of one {@link Kind} are always of the same class (BigDecimal,
+	 * Timestamp or String), so the unchecked cast is safe
+	 */
+	@SuppressWarnings("unchecked")
+	private static int compare(Object a, Object b) {
+		return ((Comparable<Object>)a).compareTo(b);
+	}
+
+	void bind(PreparedStatement stmt, int index) throws SQLException {
+		switch (kind) {
+		case NUMBER:
+			stmt.setBigDecimal(index, (BigDecimal)value);
+			break;
+		case TIMESTAMP:
+			stmt.setTimestamp(index, (Timestamp)value);
+			break;
+		default:
+			stmt.setString(index, (String)value);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return (kind == Kind.NUMBER) ? ((BigDecimal)value).toPlainString() : value.toString();
+	}
+
+	/**
+	 * Keeps track of the highest value of the watermark column while
+	 * a result set is being read
+	 */
+	static class Tracker {
+		private final int index;
+		private final Kind kind;
+		private Watermark max = null;
+
+		/**
+		 * @throws SQLException if the result set has no such column
+		 */
+		Tracker(ResultSet rs, String column) throws SQLException {
+			this.index = rs.findColumn(column);
+			this.kind = kindOf(rs.getMetaData().getColumnType(index));
+		}
+
+		void observe(ResultSet rs) throws SQLException {
+			final Object value;
+			switch (kind) {
+			case NUMBER:
+				value = rs.getBigDecimal(index);
+				break;
+			case TIMESTAMP:
+				value = rs.getTimestamp(index);
+				break;
+			default:
+				value = rs.getString(index);
+			}
+			if (value != null) {
+				if (max == null || compare(max.value, value) < 0) {
+					max = new Watermark(kind, value);
+				}
+			}
+		}
+
+		Watermark getMax() {
+			return max;
+		}
+	}
+}
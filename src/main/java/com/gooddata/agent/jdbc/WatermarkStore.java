@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent.jdbc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import com.gooddata.agent.StateFile;
+
+/**
+ * Persists the watermarks of incrementally extracted data sets in a local
+ * properties file. New watermarks are kept aside until {@link #commit()} is
+ * called, i.e. until the extracted data is safely uploaded.
+ */
+public class WatermarkStore {
+	private final StateFile state;
+	private final Properties props;
+	private final Map<String, Watermark> pending = new HashMap<String, Watermark>();
+
+	public WatermarkStore(File file) throws IOException {
+		this.state = new StateFile(file, "GoodData agent watermarks");
+		this.props = state.load();
+	}
+
+	/**
+	 * @return the committed watermark of the data set or <tt>null</tt> if
+	 * 		the data set has not been extracted yet
+	 */
+	public synchronized Watermark get(String dataset) {
+		final String kind = props.getProperty(dataset + ".kind"),
+		             value = props.getProperty(dataset + ".value");
+		if (kind == null || value == null) {
+			return null;
+		}
+		return Watermark.parse(Watermark.Kind.valueOf(kind), value);
+	}
+
+	/**
+	 * Remembers a new watermark to be saved by {@link #commit()}
+	 */
+	public synchronized void update(String dataset, Watermark watermark) {
+		pending.put(dataset, watermark);
+	}
+
+	/**
+	 * Saves the watermarks of the last extract
+	 */
+	public synchronized void commit() throws IOException {
+		if (pending.isEmpty()) {
+			return;
+		}
+		for (Map.Entry<String, Watermark> e : pending.entrySet()) {
+			props.setProperty(e.getKey() + ".kind", e.getValue().getKind().name());
+			props.setProperty(e.getKey() + ".value", e.getValue().toString());
+		}
+		state.save(props);
+		pending.clear();
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class ArchiveCollectorTest extends TestCase {
+	private static final int FILE_SIZE = 100000;
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("gdca-test-", "");
+		dir.delete();
+		dir.mkdir();
+		// random data does not compress, each file keeps its size in the archive
+		final Random random = new Random(42);
+		for (int i = 1; i <= 5; i++) {
+			final byte[] data = new byte[FILE_SIZE];
+			random.nextBytes(data);
+			FileUtils.writeByteArrayToFile(new File(dir, "f" + i + ".csv"), data);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	public void testIndexListsVolumesInOrder() throws IOException {
+		final ArchiveCollector collector = collector();
+		collector.setVolumeSize(2 * FILE_SIZE);
+		try {
+			final Map<File, String> collected = collector.collect();
+			assertEquals("data.txt", collector.getMainFile());
+			final List<String> index = index(collector, collected);
+			assertEquals(Arrays.asList("data.001.zip", "data.002.zip", "data.003.zip"), index);
+			assertEquals(index.size() + 1, collected.size());
+
+			final List<String> entries = new ArrayList<String>();
+			for (Map.Entry<File, String> e : collected.entrySet()) {
+				if (index.contains(e.getValue())) {
+					entries.addAll(entries(e.getKey()));
+				}
+			}
+			Collections.sort(entries);
+			assertEquals(Arrays.asList("f1.csv", "f2.csv", "f3.csv", "f4.csv", "f5.csv"), entries);
+		} finally {
+			collector.cleanup();
+		}
+	}
+
+	public void testIndexListsLargeVolumesAsParts() throws IOException {
+		final ArchiveCollector collector = collector();
+		collector.setVolumeSize(3 * FILE_SIZE);
+		// three files in the first volume, two in the second one
+		collector.setPartSize(5 * FILE_SIZE / 2);
+		try {
+			final Map<File, String> collected = collector.collect();
+			assertEquals(Arrays.asList("data.001.zip.parts", "data.002.zip"), index(collector, collected));
+			assertTrue(collected.values().contains("data.001.zip"));
+		} finally {
+			collector.cleanup();
+		}
+	}
+
+	public void testChecksumsAreNamedAfterIndex() throws IOException {
+		final ArchiveCollector collector = collector();
+		collector.setVolumeSize(2 * FILE_SIZE);
+		collector.setChecksums(true);
+		try {
+			final Map<File, String> collected = collector.collect();
+			assertEquals("data.txt.sha256", collector.getChecksumFile());
+			for (Map.Entry<File, String> e : collected.entrySet()) {
+				if (e.getValue().equals("data.txt.sha256")) {
+					// the digests of the entries, not of the volumes
+					assertEquals(5, FileUtils.readLines(e.getKey()).size());
+					return;
+				}
+			}
+			fail("No checksum file collected");
+		} finally {
+			collector.cleanup();
+		}
+	}
+
+	public void testCleanupDeletesVolumesAndIndex() throws IOException {
+		final ArchiveCollector collector = collector();
+		collector.setVolumeSize(2 * FILE_SIZE);
+		final Map<File, String> collected = collector.collect();
+		collector.cleanup();
+		for (File file : collected.keySet()) {
+			assertFalse(file + " must be deleted", file.exists());
+		}
+	}
+
+	private ArchiveCollector collector() throws IOException {
+		final ArchiveCollector collector = new ArchiveCollector("data.zip", new Date());
+		collector.setZipThreads(1);
+		collector.setZipBlocksInFlight(2);
+		collector.add(dir, "*.csv");
+		return collector;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> index(ArchiveCollector collector, Map<File, String> collected) throws IOException {
+		for (Map.Entry<File, String> e : collected.entrySet()) {
+			if (e.getValue().equals("data.txt")) {
+				return FileUtils.readLines(e.getKey(), "UTF-8");
+			}
+		}
+		throw new AssertionError("No index collected");
+	}
+
+	private static List<String> entries(File volume) throws IOException {
+		final List<String> names = new ArrayList<String>();
+		final ZipFile zip = new ZipFile(volume);
+		try {
+			for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+				names.add(e.nextElement().getName());
+			}
+		} finally {
+			zip.close();
+		}
+		return names;
+	}
+}
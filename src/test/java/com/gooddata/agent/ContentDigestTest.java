@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.agent;
+
+import junit.framework.TestCase;
+
+public class ContentDigestTest extends TestCase {
+	private static final byte[] FOX = "The quick brown fox jumps over the lazy dog".getBytes();
+
+	public void testKnownValue() {
+		final ContentDigest md = new ContentDigest();
+		md.update(FOX);
+		assertEquals("6c1b07bc7bbc4be347939ac4a93c437a", ChecksumManifest.hex(md.digest()));
+	}
+
+	public void testChunksGiveSameValue() {
+		final ContentDigest md = new ContentDigest();
+		md.update(FOX);
+		final byte[] whole = md.digest();
+		for (int chunk = 1; chunk <= 20; chunk++) {
+			for (int i = 0; i < FOX.length; i += chunk) {
+				md.update(FOX, i, Math.min(chunk, FOX.length - i));
+			}
+			assertEquals("chunk " + chunk, ChecksumManifest.hex(whole), ChecksumManifest.hex(md.digest()));
+		}
+	}
+}
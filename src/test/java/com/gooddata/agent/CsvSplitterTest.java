@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class CsvSplitterTest extends TestCase {
+	private List<ByteArrayOutputStream> parts = new ArrayList<ByteArrayOutputStream>();
+
+	private CsvSplitter.Parts sink = new CsvSplitter.Parts() {
+		public OutputStream next(int part) throws IOException {
+			assertEquals(parts.size() + 1, part);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			parts.add(out);
+			return out;
+		}
+	};
+
+	public void testSplitByRows() throws IOException {
+		String csv = "id,name\n1,a\n2,\"b\nc\"\n3,d\n";
+		assertEquals(2, new CsvSplitter(2, 0).split(new ByteArrayInputStream(csv.getBytes("UTF-8")), sink));
+		assertEquals("id,name\n1,a\n2,\"b\nc\"\n", parts.get(0).toString("UTF-8"));
+		assertEquals("id,name\n3,d\n", parts.get(1).toString("UTF-8"));
+	}
+
+	public void testSplitByBytes() throws IOException {
+		String csv = "id\n100\n200\n300";
+		assertEquals(2, new CsvSplitter(0, 10).split(new ByteArrayInputStream(csv.getBytes("UTF-8")), sink));
+		assertEquals("id\n100\n200\n", parts.get(0).toString("UTF-8"));
+		assertEquals("id\n300", parts.get(1).toString("UTF-8"));
+	}
+
+	public void testNoEmptyTrailingPart() throws IOException {
+		String csv = "id\n1\n2\n";
+		assertEquals(1, new CsvSplitter(2, 0).split(new ByteArrayInputStream(csv.getBytes("UTF-8")), sink));
+	}
+
+	public void testOnlyCsvFilesAreSplit() throws IOException {
+		File file = File.createTempFile("gdca-test-", ".csv");
+		try {
+			FileUtils.writeStringToFile(file, "id\n1\n2\n3\n");
+			assertTrue(new CsvSplitter(2, 0).isSplit("orders.csv", file));
+			assertFalse(new CsvSplitter(2, 0).isSplit("orders.csv.gz", file));
+			assertFalse(new CsvSplitter(0, 4).isSplit("orders.parquet", file));
+			// too small to have more rows than the limit
+			assertFalse(new CsvSplitter(100, 0).isSplit("orders.csv", file));
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testPartName() {
+		assertEquals("orders.part0002.csv", CsvSplitter.partName("orders.csv", 2));
+		assertEquals("orders.txt.part0001.csv", CsvSplitter.partName("orders.txt", 1));
+		assertEquals("orders.part0007.csv", CsvSplitter.partFileName("orders", 7));
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A WebDAV server keeping the files in memory, just enough for the
+ * {@link Uploader}: PUT, MOVE and DELETE. Requests can be made to fail.
+ */
+class DavServer {
+	private final HttpServer server;
+	/** stored files by path */
+	final Map<String, byte[]> files = new TreeMap<String, byte[]>();
+	/** requests received, e.g. <tt>PUT /data.zip.123</tt> */
+	final List<String> requests = new ArrayList<String>();
+	/** requests whose method and path start with this fail */
+	volatile String failing = null;
+
+	DavServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					exchange.sendResponseHeaders(respond(exchange), -1);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+	}
+
+	private synchronized int respond(HttpExchange exchange) throws IOException {
+		final String method = exchange.getRequestMethod();
+		final String path = exchange.getRequestURI().getPath();
+		final byte[] body = read(exchange.getRequestBody());
+		requests.add(method + " " + path);
+		if (failing != null && (method + " " + path).startsWith(failing)) {
+			return 500;
+		}
+		if ("PUT".equals(method)) {
+			files.put(path, body);
+			return 201;
+		} else if ("MOVE".equals(method)) {
+			final byte[] content = files.remove(path);
+			if (content == null) {
+				return 404;
+			}
+			files.put(URI.create(exchange.getRequestHeaders().getFirst("Destination")).getPath(), content);
+			return 201;
+		} else if ("DELETE".equals(method)) {
+			return (files.remove(path) == null) ? 404 : 204;
+		}
+		return 405;
+	}
+
+	String getUrl() {
+		return "http://localhost:" + server.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * @return the requests received so far with the given method
+	 */
+	synchronized List<String> requests(String method) {
+		final List<String> result = new ArrayList<String>();
+		for (String request : requests) {
+			if (request.startsWith(method + " ")) {
+				result.add(request.substring(method.length() + 1));
+			}
+		}
+		return result;
+	}
+
+	synchronized byte[] get(String path) {
+		return files.get(path);
+	}
+
+	void stop() {
+		server.stop(0);
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+}
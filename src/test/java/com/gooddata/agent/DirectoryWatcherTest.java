@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class DirectoryWatcherTest extends TestCase {
+	private File dir, state;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("gdca-test-", "");
+		dir.delete();
+		dir.mkdir();
+		state = File.createTempFile("gdca-test-", ".properties");
+		state.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+		state.delete();
+	}
+
+	public void testBatchFileLimit() throws Exception {
+		for (int i = 1; i <= 5; i++) {
+			write("f" + i + ".csv", "data");
+		}
+		final DirectoryWatcher watcher = watcher();
+		watcher.setBatchFiles(2);
+		final Recorder recorder = new Recorder(watcher, 5);
+		run(watcher, recorder);
+		assertEquals(Arrays.asList(2, 2, 1), recorder.sizes());
+		assertEquals(Arrays.asList("f1.csv", "f2.csv", "f3.csv", "f4.csv", "f5.csv"), recorder.files());
+	}
+
+	public void testBatchSizeLimit() throws Exception {
+		write("f1.csv", "1234");
+		write("f2.csv", "1234");
+		write("f3.csv", "1234");
+		final DirectoryWatcher watcher = watcher();
+		watcher.setBatchBytes(8);
+		final Recorder recorder = new Recorder(watcher, 3);
+		run(watcher, recorder);
+		assertEquals(Arrays.asList(2, 1), recorder.sizes());
+	}
+
+	public void testFailedBatchIsRetried() throws Exception {
+		write("f1.csv", "data");
+		final DirectoryWatcher watcher = watcher();
+		final Recorder recorder = new Recorder(watcher, 1);
+		recorder.failures = 2;
+		run(watcher, recorder);
+		assertEquals(3, recorder.calls);
+		assertEquals(Arrays.asList("f1.csv"), recorder.files());
+	}
+
+	public void testProcessedFilesAreRememberedAcrossRestarts() throws Exception {
+		write("f1.csv", "data");
+		write("f2.csv", "data");
+		DirectoryWatcher watcher = watcher();
+		run(watcher, new Recorder(watcher, 2));
+
+		// only the changed file is processed after a restart
+		write("f2.csv", "changed data");
+		watcher = watcher();
+		final Recorder recorder = new Recorder(watcher, 1);
+		run(watcher, recorder);
+		assertEquals(Arrays.asList("f2.csv"), recorder.files());
+	}
+
+	public void testArrivingFileIsPickedUp() throws Exception {
+		final DirectoryWatcher watcher = watcher();
+		final Recorder recorder = new Recorder(watcher, 1);
+		final Thread thread = start(watcher, recorder);
+		Thread.sleep(300);
+		assertEquals(0, recorder.calls);
+		FileUtils.writeStringToFile(new File(dir, "new.csv"), "data");
+		finish(thread);
+		assertEquals(Arrays.asList("new.csv"), recorder.files());
+	}
+
+	private DirectoryWatcher watcher() {
+		final FileScanner scanner = new FileScanner(dir);
+		scanner.setPattern("*.csv");
+		final DirectoryWatcher watcher = new DirectoryWatcher(scanner);
+		watcher.setQuietPeriod(100);
+		watcher.setBatchWindow(200);
+		watcher.setStateFile(state);
+		return watcher;
+	}
+
+	/**
+	 * Writes a file that has not changed for a while, so it is picked up at once
+	 */
+	private void write(String name, String content) throws IOException {
+		final File file = new File(dir, name);
+		FileUtils.writeStringToFile(file, content);
+		file.setLastModified(System.currentTimeMillis() - 60000);
+	}
+
+	private static void run(DirectoryWatcher watcher, Recorder recorder) throws Exception {
+		finish(start(watcher, recorder));
+	}
+
+	private static Thread start(final DirectoryWatcher watcher, final Recorder recorder) {
+		final Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					watcher.run(recorder);
+				} catch (Exception e) {
+					recorder.error = e;
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+
+	private static void finish(Thread thread) throws InterruptedException {
+		thread.join(10000);
+		assertFalse("The watcher has not processed the expected files", thread.isAlive());
+	}
+
+	/**
+	 * Records the batches and stops the watcher once the expected number
+	 * of files has been processed
+	 */
+	private static class Recorder implements DirectoryWatcher.Handler {
+		final DirectoryWatcher watcher;
+		final int expected;
+		final List<List<String>> batches = new ArrayList<List<String>>();
+		volatile int calls = 0, failures = 0;
+		volatile Exception error = null;
+		private int processed = 0;
+
+		Recorder(DirectoryWatcher watcher, int expected) {
+			this.watcher = watcher;
+			this.expected = expected;
+		}
+
+		public synchronized void process(Map<String, File> files) throws IOException {
+			calls++;
+			if (failures > 0) {
+				failures--;
+				throw new IOException("Failing on purpose");
+			}
+			batches.add(new ArrayList<String>(files.keySet()));
+			processed += files.size();
+			if (processed >= expected) {
+				watcher.stop();
+			}
+		}
+
+		synchronized List<Integer> sizes() {
+			assertNull(error);
+			final List<Integer> sizes = new ArrayList<Integer>();
+			for (List<String> batch : batches) {
+				sizes.add(batch.size());
+			}
+			return sizes;
+		}
+
+		synchronized List<String> files() {
+			assertNull(error);
+			final List<String> files = new ArrayList<String>();
+			for (List<String> batch : batches) {
+				files.addAll(batch);
+			}
+			Collections.sort(files);
+			return files;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.agent;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class FileScannerTest extends TestCase {
+	private static final long HOUR = 3600 * 1000;
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("gdca-test-", "");
+		dir.delete();
+		write("a.csv", "1234567890");
+		write("b.txt", "1");
+		write("sub/c.csv", "12345");
+		write("sub/deep/d.csv", "1");
+		write("2014-01/e.csv", "12");
+		new File(dir, "a.csv").setLastModified(System.currentTimeMillis() - 2 * HOUR);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	public void testInputDirectoryOnlyByDefault() throws IOException {
+		final FileScanner scanner = new FileScanner(dir);
+		assertEquals(Arrays.asList("a.csv", "b.txt"), scan(scanner));
+	}
+
+	public void testDepth() throws IOException {
+		final FileScanner scanner = new FileScanner(dir);
+		scanner.setPattern("*.csv");
+		scanner.setMaxDepth(2);
+		assertEquals(Arrays.asList("2014-01/e.csv", "a.csv", "sub/c.csv"), scan(scanner));
+		scanner.setMaxDepth(3);
+		assertEquals(Arrays.asList("2014-01/e.csv", "a.csv", "sub/c.csv", "sub/deep/d.csv"), scan(scanner));
+	}
+
+	public void testPatternWithSlashMatchesPaths() throws IOException {
+		final FileScanner scanner = new FileScanner(dir);
+		scanner.setMaxDepth(3);
+		scanner.setPattern("sub/**.csv");
+		assertEquals(Arrays.asList("sub/c.csv", "sub/deep/d.csv"), scan(scanner));
+		scanner.setPattern("2014-*/*.csv");
+		assertEquals(Arrays.asList("2014-01/e.csv"), scan(scanner));
+	}
+
+	public void testSize() throws IOException {
+		final FileScanner scanner = new FileScanner(dir);
+		scanner.setMaxDepth(3);
+		scanner.setMinSize(2);
+		scanner.setMaxSize(5);
+		assertEquals(Arrays.asList("2014-01/e.csv", "sub/c.csv"), scan(scanner));
+	}
+
+	public void testAge() throws IOException {
+		final FileScanner scanner = new FileScanner(dir);
+		scanner.setMinAge(HOUR);
+		assertEquals(Arrays.asList("a.csv"), scan(scanner));
+		scanner.setMinAge(0);
+		scanner.setMaxAge(HOUR);
+		assertEquals(Arrays.asList("b.txt"), scan(scanner));
+	}
+
+	public void testSeveralRoots() throws IOException {
+		final FileScanner scanner = new FileScanner(dir, new File(dir, "sub"));
+		scanner.setPattern("*.csv");
+		assertEquals(Arrays.asList("a.csv", "c.csv"), scan(scanner));
+	}
+
+	public void testMissingRoot() throws IOException {
+		final FileScanner scanner = new FileScanner(new File(dir, "missing"));
+		try {
+			scan(scanner);
+			fail("A missing input directory must be reported");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+	}
+
+	private List<String> scan(FileScanner scanner) throws IOException {
+		final List<String> paths = new ArrayList<String>();
+		final int found = scanner.scan(new FileScanner.Visitor() {
+			public void visit(String path, File file) {
+				assertTrue(file.isFile());
+				paths.add(path);
+			}
+		});
+		assertEquals(paths.size(), found);
+		Collections.sort(paths);
+		return paths;
+	}
+
+	private void write(String path, String content) throws IOException {
+		FileUtils.writeStringToFile(new File(dir, path), content);
+	}
+}
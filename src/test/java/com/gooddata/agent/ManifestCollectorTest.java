@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class ManifestCollectorTest extends TestCase {
+	private File dir, data, state;
+	private long time = 1000000;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("gdca-test-", "");
+		dir.delete();
+		dir.mkdir();
+		data = new File(dir, "orders.csv");
+		state = new File(dir, "state/digests.properties");
+		FileUtils.writeStringToFile(data, "id,amount\n1,10\n2,20\n3,30\n");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	public void testUnchangedFileIsNotUploadedAgain() throws IOException {
+		final ManifestCollector first = collector();
+		final Map<File, String> uploaded = first.collect();
+		assertEquals(2, uploaded.size());
+		assertEquals("orders.csv." + time + ".csv", uploaded.get(data));
+		first.commit();
+		first.cleanup();
+
+		final ManifestCollector second = collector();
+		final Map<File, String> again = second.collect();
+		assertEquals("Only the manifest is uploaded", 1, again.size());
+		assertEquals(Arrays.asList("orders.csv." + (time - 1) + ".csv"), manifest(second, again));
+		second.cleanup();
+	}
+
+	public void testChangedFileIsUploaded() throws IOException {
+		final ManifestCollector first = collector();
+		first.collect();
+		first.commit();
+		first.cleanup();
+
+		FileUtils.writeStringToFile(data, "id,amount\n1,10\n2,20\n3,31\n");
+		final ManifestCollector second = collector();
+		final Map<File, String> again = second.collect();
+		assertEquals(2, again.size());
+		assertEquals(Arrays.asList("orders.csv." + time + ".csv"), manifest(second, again));
+		second.cleanup();
+	}
+
+	public void testDigestsAreSavedOnCommitOnly() throws IOException {
+		// e.g. the upload failed
+		collector().collect();
+
+		final ManifestCollector second = collector();
+		assertEquals(2, second.collect().size());
+		second.cleanup();
+	}
+
+	public void testUnchangedSplitFileRefersToUploadedParts() throws IOException {
+		final ManifestCollector first = collector();
+		first.setMaxRowsPerFile(2);
+		final Map<File, String> uploaded = first.collect();
+		assertEquals("Two parts and the manifest", 3, uploaded.size());
+		final List<String> parts = manifest(first, uploaded);
+		first.commit();
+		first.cleanup();
+
+		final ManifestCollector second = collector();
+		second.setMaxRowsPerFile(2);
+		final Map<File, String> again = second.collect();
+		assertEquals(1, again.size());
+		assertEquals(parts, manifest(second, again));
+		second.cleanup();
+	}
+
+	/**
+	 * @return a collector of the data file as run a millisecond later than the previous one
+	 */
+	private ManifestCollector collector() throws IOException {
+		final ManifestCollector collector = new ManifestCollector("manifest.txt", new Date(++time));
+		collector.setDigests(new DigestStore(state));
+		collector.add("orders.csv", data);
+		return collector;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> manifest(ManifestCollector collector, Map<File, String> collected)
+			throws IOException {
+		for (Map.Entry<File, String> e : collected.entrySet()) {
+			if (e.getValue().equals(collector.getMainFile())) {
+				return FileUtils.readLines(e.getKey());
+			}
+		}
+		throw new AssertionError("No manifest collected");
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+public class ParallelZipOutputStreamTest extends TestCase {
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	private File file;
+	private byte[][] contents;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("gdca-test-", ".zip");
+		final Random random = new Random(42);
+		final byte[] text = new byte[5 * BLOCK_SIZE + 123];
+		for (int i = 0; i < text.length; i++) {
+			text[i] = (byte)("0123456789,abc\n".charAt(random.nextInt(15)));
+		}
+		final byte[] noise = new byte[2 * BLOCK_SIZE];
+		random.nextBytes(noise);
+		contents = new byte[][] { text, new byte[0], "id,name\n1,a\n".getBytes("UTF-8"), noise };
+
+		final ParallelZipOutputStream out = new ParallelZipOutputStream(new FileOutputStream(file), 3, 2, 6, BLOCK_SIZE);
+		for (int i = 0; i < contents.length; i++) {
+			if (isStored(i)) {
+				out.putNextStoredEntry("entry" + i + ".csv", System.currentTimeMillis(), contents[i].length, crc(contents[i]));
+			} else {
+				out.putNextEntry("entry" + i + ".csv");
+			}
+			// uneven writes crossing the block boundaries
+			for (int off = 0; off < contents[i].length; off += 10000) {
+				out.write(contents[i], off, Math.min(10000, contents[i].length - off));
+			}
+		}
+		out.close();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	public void testZipFile() throws IOException {
+		final ZipFile zip = new ZipFile(file);
+		try {
+			assertEquals(contents.length, zip.size());
+			for (int i = 0; i < contents.length; i++) {
+				final ZipEntry entry = zip.getEntry("entry" + i + ".csv");
+				assertEquals(contents[i].length, entry.getSize());
+				assertEquals(isStored(i) ? ZipEntry.STORED : ZipEntry.DEFLATED, entry.getMethod());
+				assertTrue(Arrays.equals(contents[i], read(zip.getInputStream(entry))));
+			}
+		} finally {
+			zip.close();
+		}
+	}
+
+	public void testZipInputStream() throws IOException {
+		final ZipInputStream in = new ZipInputStream(new FileInputStream(file));
+		try {
+			for (int i = 0; i < contents.length; i++) {
+				final ZipEntry entry = in.getNextEntry();
+				assertEquals("entry" + i + ".csv", entry.getName());
+				assertTrue(Arrays.equals(contents[i], read(in)));
+			}
+			assertNull(in.getNextEntry());
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testStoredEntryMismatch() throws IOException {
+		final ParallelZipOutputStream out = new ParallelZipOutputStream(new ByteArrayOutputStream(), 1, 1);
+		out.putNextStoredEntry("entry.csv", System.currentTimeMillis(), 3, crc("abc".getBytes("UTF-8")));
+		out.write("abd".getBytes("UTF-8"));
+		try {
+			out.closeEntry();
+			fail("A checksum mismatch must be reported");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testStoredEntryWithDataDescriptor() throws IOException {
+		final ParallelZipOutputStream out = new ParallelZipOutputStream(new FileOutputStream(file), 1, 1, 6, BLOCK_SIZE);
+		out.putNextStoredEntry("noise.bin", System.currentTimeMillis(), contents[3].length);
+		out.write(contents[3]);
+		out.putNextEntry("text.csv");
+		out.write(contents[0]);
+		out.close();
+		final ZipFile zip = new ZipFile(file);
+		try {
+			final ZipEntry entry = zip.getEntry("noise.bin");
+			assertEquals(ZipEntry.STORED, entry.getMethod());
+			assertEquals(crc(contents[3]), entry.getCrc());
+			assertTrue(Arrays.equals(contents[3], read(zip.getInputStream(entry))));
+			assertTrue(Arrays.equals(contents[0], read(zip.getInputStream(zip.getEntry("text.csv")))));
+		} finally {
+			zip.close();
+		}
+	}
+
+	public void testStoredEntrySizeMismatch() throws IOException {
+		final ParallelZipOutputStream out = new ParallelZipOutputStream(new ByteArrayOutputStream(), 1, 1);
+		out.putNextStoredEntry("entry.csv", System.currentTimeMillis(), 3);
+		out.write("abcd".getBytes("UTF-8"));
+		try {
+			out.closeEntry();
+			fail("A size mismatch must be reported");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testZip64HeaderForEntriesOfUnknownSize() throws IOException {
+		final ParallelZipOutputStream out = new ParallelZipOutputStream(new FileOutputStream(file), 1, 1);
+		out.putNextEntry("unknown.csv", System.currentTimeMillis(), 6, -1);
+		out.write(contents[0]);
+		out.putNextEntry("known.csv", System.currentTimeMillis(), 6, contents[0].length);
+		out.write(contents[0]);
+		out.close();
+		final ZipInputStream in = new ZipInputStream(new FileInputStream(file));
+		try {
+			assertNotNull("ZIP64 local extra field expected", in.getNextEntry().getExtra());
+		} finally {
+			in.close();
+		}
+		final ZipFile zip = new ZipFile(file);
+		try {
+			for (String name : new String[] { "unknown.csv", "known.csv" }) {
+				assertTrue(Arrays.equals(contents[0], read(zip.getInputStream(zip.getEntry(name)))));
+			}
+		} finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * The incompressible entry is stored
+	 */
+	private boolean isStored(int i) {
+		return i == contents.length - 1;
+	}
+
+	private static long crc(byte[] data) {
+		final CRC32 crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+}
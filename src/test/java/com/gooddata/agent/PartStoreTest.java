@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class PartStoreTest extends TestCase {
+	private static final String ID = "2500-abc";
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("gdca-test-", ".properties");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	public void testInterruptedUploadContinues() throws IOException {
+		final PartStore store = new PartStore(file);
+		assertEquals("data-1.zip", store.start(ID, "data-1.zip", 1000));
+		store.putPart(ID, 1, "d1");
+		store.putPart(ID, 2, "d2");
+		store.release(ID);
+
+		// the next run names the same content differently
+		final PartStore reloaded = new PartStore(file);
+		assertEquals("data-1.zip", reloaded.start(ID, "data-2.zip", 1000));
+		assertEquals("d1", reloaded.getPart(ID, 1));
+		assertEquals("d2", reloaded.getPart(ID, 2));
+		assertNull(reloaded.getPart(ID, 3));
+	}
+
+	public void testOtherPartSizeStartsOver() throws IOException {
+		final PartStore store = new PartStore(file);
+		store.start(ID, "data-1.zip", 1000);
+		store.putPart(ID, 1, "d1");
+		store.release(ID);
+
+		final PartStore reloaded = new PartStore(file);
+		assertEquals("data-2.zip", reloaded.start(ID, "data-2.zip", 2000));
+		assertNull(reloaded.getPart(ID, 1));
+	}
+
+	public void testFinishedUploadIsForgotten() throws IOException {
+		final PartStore store = new PartStore(file);
+		store.start(ID, "data-1.zip", 1000);
+		store.putPart(ID, 1, "d1");
+		store.finish(ID);
+
+		final PartStore reloaded = new PartStore(file);
+		assertEquals("data-2.zip", reloaded.start(ID, "data-2.zip", 1000));
+		assertNull(reloaded.getPart(ID, 1));
+	}
+
+	public void testRemovedPartIsForgotten() throws IOException {
+		final PartStore store = new PartStore(file);
+		store.start(ID, "data-1.zip", 1000);
+		store.putPart(ID, 1, "d1");
+		store.putPart(ID, 2, "d2");
+		store.removePart(ID, 1);
+		store.release(ID);
+
+		final PartStore reloaded = new PartStore(file);
+		reloaded.start(ID, "data-1.zip", 1000);
+		assertNull(reloaded.getPart(ID, 1));
+		assertEquals("d2", reloaded.getPart(ID, 2));
+	}
+
+	public void testSameFileIsRecordedOnceAtATime() throws IOException {
+		final PartStore store = new PartStore(file);
+		assertEquals("a.csv", store.start(ID, "a.csv", 1000));
+		assertNull(store.start(ID, "b.csv", 1000));
+		store.release(ID);
+		assertEquals("a.csv", store.start(ID, "b.csv", 1000));
+	}
+
+	public void testOldRecordsAreDropped() throws IOException {
+		final Properties props = new Properties();
+		final long old = System.currentTimeMillis() - PartStore.MAX_AGE - 1000;
+		props.setProperty("old.prefix", "data-1.zip");
+		props.setProperty("old.part_size", "1000");
+		props.setProperty("old.started", String.valueOf(old));
+		props.setProperty("old.1", "d1");
+		new StateFile(file, "test").save(props);
+
+		final PartStore store = new PartStore(file);
+		assertNull(store.getPart("old", 1));
+		assertEquals("data-2.zip", store.start("old", "data-2.zip", 1000));
+		assertFalse(FileUtils.readFileToString(file).contains("old.1="));
+	}
+
+	public void testIdDependsOnContentOnly() throws IOException {
+		final File a = File.createTempFile("gdca-test-", ".csv"),
+		           b = File.createTempFile("gdca-test-", ".csv");
+		try {
+			FileUtils.writeStringToFile(a, "id,name\n1,a\n");
+			FileUtils.writeStringToFile(b, "id,name\n1,a\n");
+			b.setLastModified(a.lastModified() - 60000);
+			assertEquals(PartStore.id(a), PartStore.id(b));
+			FileUtils.writeStringToFile(b, "id,name\n1,b\n");
+			assertFalse(PartStore.id(a).equals(PartStore.id(b)));
+			FileUtils.writeStringToFile(b, "id,name\n1,a\n2,b\n");
+			assertFalse(PartStore.id(a).equals(PartStore.id(b)));
+		} finally {
+			a.delete();
+			b.delete();
+		}
+	}
+}
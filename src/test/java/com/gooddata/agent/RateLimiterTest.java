@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import java.io.IOException;
+import java.util.Calendar;
+
+import junit.framework.TestCase;
+
+public class RateLimiterTest extends TestCase {
+	private static Calendar at(int hour, int minute) {
+		Calendar c = Calendar.getInstance();
+		c.set(2014, 0, 15, hour, minute, 0);
+		return c;
+	}
+
+	public void testSchedule() {
+		RateLimiter limiter = new RateLimiter(1000);
+		limiter.addWindow(8 * 60, 18 * 60, 100);
+		limiter.addWindow(22 * 60, 6 * 60, 0);
+		assertEquals(1000, limiter.rate(at(7, 59)));
+		assertEquals(100, limiter.rate(at(8, 0)));
+		assertEquals(1000, limiter.rate(at(18, 0)));
+		assertEquals(0, limiter.rate(at(23, 30)));
+		assertEquals(0, limiter.rate(at(5, 59)));
+		assertEquals(1000, limiter.rate(at(6, 0)));
+	}
+
+	public void testRate() throws IOException {
+		RateLimiter limiter = new RateLimiter(1024 * 1024);
+		final long start = System.currentTimeMillis();
+		// one second worth of bytes is available at once, the rest is paced
+		for (int i = 0; i < 96; i++) {
+			limiter.acquire(16 * 1024, false);
+		}
+		final long elapsed = System.currentTimeMillis() - start;
+		assertTrue("elapsed " + elapsed, elapsed >= 400 && elapsed < 2000);
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class RetryPolicyTest extends TestCase {
+	private final List<Long> delays = new ArrayList<Long>();
+	private final RetryPolicy retry = new RetryPolicy() {
+		void sleep(long millis) {
+			delays.add(millis);
+		}
+	};
+	private final UploadStats stats = new UploadStats();
+
+	/**
+	 * Answers with the given status codes, <tt>null</tt> for a connection error
+	 */
+	private static RetryPolicy.Request request(Integer... statuses) {
+		final LinkedList<Integer> responses = new LinkedList<Integer>(Arrays.asList(statuses));
+		return new RetryPolicy.Request("PUT", 201) {
+			protected int execute() throws IOException {
+				final Integer status = responses.removeFirst();
+				if (status == null) {
+					throw new SocketException("Connection reset");
+				}
+				return status;
+			}
+		};
+	}
+
+	public void testRetriesTransientFailures() throws IOException {
+		assertEquals(201, retry.execute(request(502, null, 503, 201), retry.budget(), stats));
+		assertEquals(3, delays.size());
+		assertEquals(4, stats.getRequests());
+		assertEquals(3, stats.getRetries());
+		assertEquals(0, stats.getFailures());
+		assertEquals(Integer.valueOf(1), stats.getReasons().get("SocketException"));
+	}
+
+	public void testDoesNotRetryClientErrors() {
+		try {
+			retry.execute(request(403, 201), retry.budget(), stats);
+			fail("403 retried");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("403"));
+		}
+		assertTrue(delays.isEmpty());
+		assertEquals(1, stats.getFailures());
+	}
+
+	public void testBudgetIsSharedByRequestsOfFile() throws IOException {
+		retry.setMaxRetries(2);
+		final RetryPolicy.Budget budget = retry.budget();
+		retry.execute(request(500, 201), budget, stats);
+		try {
+			retry.execute(request(500, 500, 201), budget, stats);
+			fail("budget exceeded");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(2, stats.getRetries());
+	}
+
+	public void testDelayGrowsUpToMaximum() {
+		retry.setBaseDelay(100);
+		retry.setMaxDelay(1000);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(retry.delay(1) < 100);
+			assertTrue(retry.delay(3) < 400);
+			assertTrue(retry.delay(40) < 1000);
+			assertTrue(retry.delay(1) >= 0);
+		}
+	}
+}
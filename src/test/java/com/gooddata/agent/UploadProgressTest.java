@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.methods.PutMethod;
+
+public class UploadProgressTest extends TestCase {
+	private UploadProgress progress;
+
+	@Override
+	protected void setUp() {
+		progress = new UploadProgress();
+		progress.setStallTimeout(1);
+		progress.begin(100);
+	}
+
+	public void testStalledRequestIsAborted() throws Exception {
+		final PutMethod method = new PutMethod("http://localhost/data.zip");
+		final InputStream in = progress.start("data.zip", 100, method).count(body());
+		in.read(new byte[10]);
+		progress.checkStalls();
+		assertFalse("Stalled too early", progress.isStalled());
+
+		Thread.sleep(1100);
+		progress.checkStalls();
+		assertTrue(progress.isStalled());
+		// aborted in another thread
+		for (int i = 0; i < 50 && !method.isAborted(); i++) {
+			Thread.sleep(20);
+		}
+		assertTrue(method.isAborted());
+	}
+
+	public void testProgressEndsTheStall() throws Exception {
+		final InputStream in = progress.start("data.zip", 100, null).count(body());
+		in.read(new byte[10]);
+		Thread.sleep(1100);
+		progress.checkStalls();
+		assertTrue(progress.isStalled());
+		in.read();
+		assertFalse(progress.isStalled());
+	}
+
+	public void testWaitingRequestIsNotStalled() throws Exception {
+		final PutMethod method = new PutMethod("http://localhost/data.zip");
+		// nothing sent yet, e.g. waiting for a connection
+		progress.start("waiting.zip", 100, method);
+		// everything sent, waiting for the response
+		final InputStream in = progress.start("sent.zip", 100, null).count(body());
+		in.read(new byte[100]);
+		Thread.sleep(1100);
+		progress.checkStalls();
+		assertFalse(progress.isStalled());
+		assertFalse(method.isAborted());
+	}
+
+	public void testNoStallTimeout() throws Exception {
+		progress.setStallTimeout(0);
+		final InputStream in = progress.start("data.zip", 100, null).count(body());
+		in.read(new byte[10]);
+		Thread.sleep(1100);
+		progress.checkStalls();
+		assertFalse(progress.isStalled());
+	}
+
+	public void testFailedRequestIsSentAgain() throws IOException {
+		UploadProgress.Transfer transfer = progress.start("data.zip", 60, null);
+		transfer.count(body()).read(new byte[60]);
+		assertEquals(60, progress.getBytesUploaded());
+		progress.finish(transfer, false);
+		assertEquals(0, progress.getBytesUploaded());
+
+		transfer = progress.start("data.zip", 60, null);
+		transfer.count(body()).read(new byte[60]);
+		progress.finish(transfer, true);
+		progress.skip(40);
+		assertEquals(100, progress.getBytesUploaded());
+		assertEquals(120, progress.getBytesSent());
+		assertEquals(0, progress.getTransfers().length);
+	}
+
+	private static InputStream body() {
+		return new ByteArrayInputStream(new byte[100]);
+	}
+}
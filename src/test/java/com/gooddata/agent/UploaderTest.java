@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class UploaderTest extends TestCase {
+	private static final int PART_SIZE = 512 * 1024;
+
+	private DavServer server;
+	private File dir, parts;
+	private byte[] content;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new DavServer();
+		dir = File.createTempFile("gdca-test-", "");
+		dir.delete();
+		dir.mkdir();
+		parts = new File(dir, "parts.properties");
+		// larger than the head the part records are identified by
+		content = new byte[5 * PART_SIZE + 100];
+		new Random(42).nextBytes(content);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	public void testInterruptedUploadContinues() throws IOException {
+		final File first = write("first.zip", content);
+		server.failing = "PUT /data-1.zip.part0003";
+		try {
+			upload(first, "data-1.zip");
+			fail("The upload must fail");
+		} catch (IOException e) {
+			// expected
+		}
+		assertNotNull("Parts are kept for the next run", server.get("/data-1.zip.part0001.upload"));
+		assertNull("Parts are not moved before the list", server.get("/data-1.zip.part0001"));
+
+		// the next run creates the same content in another file and names it differently
+		server.failing = null;
+		server.requests.clear();
+		upload(write("second.zip", content), "data-2.zip");
+		assertEquals(Arrays.asList("/data-1.zip.part0003.upload", "/data-1.zip.part0004.upload",
+				"/data-1.zip.part0005.upload", "/data-1.zip.part0006.upload"), server.requests("PUT").subList(0, 4));
+		assertEquals(5, server.requests("PUT").size());
+		assertList("data-2.zip.parts", "data-1.zip", 6);
+	}
+
+	public void testChangedPartIsSentAgain() throws IOException {
+		server.failing = "PUT /data-1.zip.part0004";
+		try {
+			upload(write("first.zip", content), "data-1.zip");
+			fail("The upload must fail");
+		} catch (IOException e) {
+			// expected
+		}
+
+		server.failing = null;
+		server.requests.clear();
+		// a change after the head, the file is still recognized
+		content[2 * PART_SIZE + 10]++;
+		upload(write("second.zip", content), "data-2.zip");
+		assertEquals("/data-1.zip.part0003.upload", server.requests("PUT").get(0));
+		assertFalse(server.requests("PUT").contains("/data-1.zip.part0001.upload"));
+		assertFalse(server.requests("PUT").contains("/data-1.zip.part0002.upload"));
+		assertList("data-2.zip.parts", "data-1.zip", 6);
+	}
+
+	public void testFinishedUploadIsNotContinued() throws IOException {
+		upload(write("first.zip", content), "data-1.zip");
+		server.requests.clear();
+		upload(write("second.zip", content), "data-2.zip");
+		assertEquals(7, server.requests("PUT").size());
+		assertList("data-2.zip.parts", "data-2.zip", 6);
+	}
+
+	public void testMainFileIsMovedLast() throws IOException {
+		final Map<File, String> files = new LinkedHashMap<File, String>();
+		files.put(write("info.json", "{}".getBytes("UTF-8")), "upload_info.json");
+		files.put(write("data.zip", content), "data.zip");
+		files.put(write("a.csv", "a\n".getBytes("UTF-8")), "a.csv");
+		final Uploader uploader = uploader();
+		uploader.setParallelism(1);
+		uploader.upload(files, "", "upload_info.json");
+
+		final List<String> requests = new ArrayList<String>(server.requests);
+		final int firstMove = requests.indexOf("MOVE " + server.requests("MOVE").get(0));
+		assertEquals("Everything is sent before it is moved", server.requests("PUT").size(), firstMove);
+		final List<String> moves = server.requests("MOVE");
+		assertTrue(moves.get(moves.size() - 1).startsWith("/upload_info.json."));
+		assertTrue("Parts are moved before their list",
+				moves.indexOf("/data.zip.part0006.upload") < indexOf(moves, "/data.zip.parts."));
+		assertTrue(Arrays.equals("{}".getBytes("UTF-8"), server.get("/upload_info.json")));
+		assertList("data.zip.parts", "data.zip", 6);
+		assertEquals(9, server.files.size());
+	}
+
+	public void testFailedUploadRemovesTemporaryFiles() throws IOException {
+		final Map<File, String> files = new LinkedHashMap<File, String>();
+		files.put(write("info.json", "{}".getBytes("UTF-8")), "upload_info.json");
+		files.put(write("data.zip", content), "data.zip");
+		files.put(write("a.csv", "a\n".getBytes("UTF-8")), "a.csv");
+		server.failing = "PUT /data.zip.part0004";
+		final Uploader uploader = uploader();
+		uploader.setParallelism(1);
+		try {
+			uploader.upload(files, "", "upload_info.json");
+			fail("The upload must fail");
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue(server.requests("MOVE").isEmpty());
+		assertTrue("Left behind: " + server.files.keySet(), server.files.isEmpty());
+	}
+
+	public void testFailedMoveKeepsTheMainFileAway() throws IOException {
+		final Map<File, String> files = new LinkedHashMap<File, String>();
+		files.put(write("info.json", "{}".getBytes("UTF-8")), "upload_info.json");
+		files.put(write("a.csv", "a\n".getBytes("UTF-8")), "a.csv");
+		files.put(write("b.csv", "b\n".getBytes("UTF-8")), "b.csv");
+		server.failing = "MOVE /b.csv";
+		final Uploader uploader = uploader();
+		uploader.setParallelism(1);
+		try {
+			uploader.upload(files, "", "upload_info.json");
+			fail("The upload must fail");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(2, server.requests("DELETE").size());
+		assertTrue(indexOf(server.requests("DELETE"), "/upload_info.json.") >= 0);
+		assertEquals("Only the files moved before stay", Collections.singleton("/a.csv"), server.files.keySet());
+	}
+
+	/**
+	 * Uploads a file in parts as a new run would
+	 */
+	private void upload(File file, String name) throws IOException {
+		final Uploader uploader = uploader();
+		uploader.setPartStore(new PartStore(parts));
+		uploader.upload(Collections.singletonMap(file, name), "", null);
+	}
+
+	private Uploader uploader() {
+		final Uploader uploader = new Uploader(server.getUrl(), "user", "secret");
+		final RetryPolicy retry = new RetryPolicy();
+		retry.setMaxRetries(0);
+		uploader.setRetryPolicy(retry);
+		uploader.setPartSize(PART_SIZE);
+		return uploader;
+	}
+
+	/**
+	 * Checks that the list names the parts, that nothing is left under a
+	 * temporary name and that the parts give the content
+	 */
+	private void assertList(String list, String prefix, int count) throws IOException {
+		final ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		final String[] lines = new String(server.get("/" + list), "UTF-8").split("\n");
+		assertEquals(count, lines.length);
+		for (int i = 0; i < count; i++) {
+			final String name = String.format("%s.part%04d", prefix, i + 1);
+			assertTrue(lines[i].endsWith("  " + name));
+			joined.write(server.get("/" + name));
+		}
+		assertTrue(Arrays.equals(content, joined.toByteArray()));
+		for (String path : server.files.keySet()) {
+			assertFalse(path + " left behind", path.endsWith(".upload"));
+		}
+	}
+
+	private static int indexOf(List<String> paths, String prefix) {
+		for (int i = 0; i < paths.size(); i++) {
+			if (paths.get(i).startsWith(prefix)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private File write(String name, byte[] data) throws IOException {
+		final File file = new File(dir, name);
+		FileUtils.writeByteArrayToFile(file, data);
+		return file;
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent.jdbc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import junit.framework.TestCase;
+
+public class CsvEncoderTest extends TestCase {
+	private ByteArrayOutputStream out;
+	private CsvEncoder encoder;
+
+	@Override
+	protected void setUp() {
+		out = new ByteArrayOutputStream();
+		encoder = new CsvEncoder(out);
+	}
+
+	public void testPlainStringIsNotQuoted() throws IOException {
+		encoder.writeString("hello world");
+		assertEncoded("hello world");
+	}
+
+	public void testQuoting() throws IOException {
+		encoder.writeString("a,b");
+		encoder.writeString("say \"hi\"");
+		encoder.writeString("two\nlines");
+		assertEncoded("\"a,b\"\"say \"\"hi\"\"\"\"two\nlines\"");
+	}
+
+	public void testUtf8() throws IOException {
+		final String s = "P\u0159\u00edli\u0161 \u20ac \ud83d\ude00";
+		encoder.writeString(s);
+		encoder.flush();
+		assertEquals(s, new String(out.toByteArray(), "UTF-8"));
+		assertEquals(s.getBytes("UTF-8").length, out.size());
+	}
+
+	public void testLongs() throws IOException {
+		encoder.writeLong(0);
+		encoder.writeString(" ");
+		encoder.writeLong(-42);
+		encoder.writeString(" ");
+		encoder.writeLong(Long.MAX_VALUE);
+		encoder.writeString(" ");
+		encoder.writeLong(Long.MIN_VALUE);
+		assertEncoded("0 -42 9223372036854775807 -9223372036854775808");
+	}
+
+	public void testTimestamp() throws IOException {
+		Calendar c = Calendar.getInstance();
+		c.set(2013, 0, 31, 3, 14, 5);
+		Timestamp ts = new Timestamp(c.getTimeInMillis());
+		ts.setNanos(0);
+		encoder.writeTimestamp(ts);
+		encoder.writeString(" ");
+		ts.setNanos(120000000);
+		encoder.writeTimestamp(ts);
+		assertEncoded("2013-01-31 03:14:05 2013-01-31 03:14:05.12");
+	}
+
+	public void testFloats() throws IOException {
+		encoder.writeFloating(0.1f, true);
+		encoder.writeString(" ");
+		encoder.writeFloating(0.1, false);
+		encoder.writeString(" ");
+		encoder.writeFloating(-3.0, false);
+		encoder.writeString(" ");
+		encoder.writeFloating(1.5e-7f, true);
+		assertEncoded("0.1 0.1 -3 0.00000015");
+	}
+
+	public void testDatesOutsideFourDigitYears() throws IOException {
+		GregorianCalendar c = new GregorianCalendar(12345, 5, 7);
+		encoder.writeDate(c.getTime());
+		encoder.writeString(" ");
+		c = new GregorianCalendar(44, 2, 15);
+		c.set(Calendar.ERA, GregorianCalendar.BC);
+		encoder.writeDate(c.getTime());
+		assertEncoded("12345-06-07 -0043-03-15");
+	}
+
+	public void testUnsignedBigint() throws Exception {
+		final BigDecimal max = new BigDecimal("18446744073709551615");
+		final ResultSetMetaData metadata = (ResultSetMetaData)Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { ResultSetMetaData.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if ("getColumnCount".equals(method.getName())) {
+							return 1;
+						} else if ("getColumnType".equals(method.getName())) {
+							return Types.BIGINT;
+						} else if ("isSigned".equals(method.getName())) {
+							return false;
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+		final ResultSet rs = (ResultSet)Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if ("getBigDecimal".equals(method.getName())) {
+							return max;
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+		encoder.init(metadata);
+		encoder.writeRow(rs);
+		assertEncoded("18446744073709551615\n");
+	}
+
+	private void assertEncoded(String expected) throws IOException {
+		encoder.flush();
+		assertEquals(expected, new String(out.toByteArray(), "UTF-8"));
+	}
+}
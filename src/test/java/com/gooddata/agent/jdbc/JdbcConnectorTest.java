@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.agent.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+public class JdbcConnectorTest extends TestCase {
+	/** the connections opened by the driver */
+	private static final List<FakeConnection> opened = new ArrayList<FakeConnection>();
+
+	private JdbcConnector connector;
+
+	@Override
+	protected void setUp() throws Exception {
+		synchronized (opened) {
+			opened.clear();
+		}
+		connector = new JdbcConnector();
+		connector.setDriver(FakeDriver.class.getName());
+		connector.setJdbcUrl("jdbc:fake:test");
+		connector.setUsername("user");
+		connector.setPassword("secret");
+	}
+
+	public void testReturnedConnectionIsReused() throws SQLException {
+		connector.connect().close();
+		connector.connect().close();
+		assertEquals(1, opened.size());
+		assertFalse(opened.get(0).closed);
+	}
+
+	public void testReturnedConnectionCannotBeUsed() throws SQLException {
+		final Connection conn = connector.connect();
+		conn.close();
+		assertTrue(conn.isClosed());
+		try {
+			conn.createStatement();
+			fail("A returned connection must not be usable");
+		} catch (SQLException e) {
+			// expected
+		}
+	}
+
+	public void testPoolIsBounded() throws Exception {
+		connector.setMaxPoolSize(2);
+		final Connection first = connector.connect();
+		connector.connect();
+		final Connection[] third = new Connection[1];
+		final Thread waiting = new Thread() {
+			@Override
+			public void run() {
+				try {
+					third[0] = connector.connect();
+				} catch (SQLException e) {
+					// leaves the connection null
+				}
+			}
+		};
+		waiting.start();
+		waiting.join(300);
+		assertTrue("The third connection must wait for a returned one", waiting.isAlive());
+		assertEquals(2, opened.size());
+		first.close();
+		waiting.join(5000);
+		assertNotNull(third[0]);
+		assertEquals("The returned connection is handed out again", 2, opened.size());
+	}
+
+	public void testPoolSizeIsFixedOnceUsed() throws SQLException {
+		connector.connect().close();
+		try {
+			connector.setMaxPoolSize(4);
+			fail("The pool size cannot change once connections are open");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testReleaseRollsBackOpenTransaction() throws SQLException {
+		final Connection conn = connector.connect();
+		conn.setAutoCommit(false);
+		conn.close();
+		final FakeConnection fake = opened.get(0);
+		assertEquals(1, fake.rollbacks);
+		assertTrue(fake.autoCommit);
+		assertFalse(fake.closed);
+	}
+
+	public void testInvalidConnectionIsReplaced() throws SQLException {
+		connector.connect().close();
+		opened.get(0).valid = false;
+		connector.connect().close();
+		assertEquals(2, opened.size());
+		assertTrue(opened.get(0).closed);
+		assertFalse(opened.get(1).closed);
+	}
+
+	public void testStaleConnectionIsReplaced() throws Exception {
+		connector.setIdleTimeout(50);
+		connector.connect().close();
+		Thread.sleep(100);
+		connector.connect().close();
+		assertEquals(2, opened.size());
+		assertTrue(opened.get(0).closed);
+	}
+
+	public void testCloseClosesIdleAndReturnedConnections() throws SQLException {
+		connector.setMaxPoolSize(2);
+		final Connection inUse = connector.connect();
+		connector.connect().close();
+		connector.close();
+		assertTrue(opened.get(1).closed);
+		assertFalse(opened.get(0).closed);
+		inUse.close();
+		assertTrue(opened.get(0).closed);
+	}
+
+	/**
+	 * State of a connection opened by the {@link FakeDriver}
+	 */
+	private static class FakeConnection implements InvocationHandler {
+		volatile boolean closed = false, autoCommit = true, valid = true;
+		volatile int rollbacks = 0;
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			final String name = method.getName();
+			if ("close".equals(name)) {
+				closed = true;
+			} else if ("isClosed".equals(name)) {
+				return closed;
+			} else if ("isValid".equals(name)) {
+				return valid && !closed;
+			} else if ("getAutoCommit".equals(name)) {
+				return autoCommit;
+			} else if ("setAutoCommit".equals(name)) {
+				autoCommit = (Boolean)args[0];
+			} else if ("rollback".equals(name)) {
+				rollbacks++;
+			} else if ("createStatement".equals(name)) {
+				throw new SQLException("Not supported by the fake driver");
+			}
+			return null;
+		}
+	}
+
+	public static class FakeDriver implements Driver {
+		public Connection connect(String url, Properties info) throws SQLException {
+			if (!acceptsURL(url)) {
+				return null;
+			}
+			final FakeConnection conn = new FakeConnection();
+			synchronized (opened) {
+				opened.add(conn);
+			}
+			return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, conn);
+		}
+
+		public boolean acceptsURL(String url) {
+			return url.startsWith("jdbc:fake:");
+		}
+
+		public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+			return new DriverPropertyInfo[0];
+		}
+
+		public int getMajorVersion() {
+			return 1;
+		}
+
+		public int getMinorVersion() {
+			return 0;
+		}
+
+		public boolean jdbcCompliant() {
+			return false;
+		}
+
+		public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+			throw new SQLFeatureNotSupportedException();
+		}
+	}
+}
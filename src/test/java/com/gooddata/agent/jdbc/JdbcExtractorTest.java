@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.agent.jdbc;
+
+import junit.framework.TestCase;
+
+public class JdbcExtractorTest extends TestCase {
+	public void testSplitRange() {
+		long[][] ranges = JdbcExtractor.splitRange(1, 100, 4);
+		assertEquals(4, ranges.length);
+		assertRange(1, 25, ranges[0]);
+		assertRange(26, 50, ranges[1]);
+		assertRange(51, 75, ranges[2]);
+		assertRange(76, 100, ranges[3]);
+	}
+
+	public void testSplitRangeUneven() {
+		long[][] ranges = JdbcExtractor.splitRange(0, 9, 3);
+		assertEquals(3, ranges.length);
+		assertRange(0, 3, ranges[0]);
+		assertRange(4, 6, ranges[1]);
+		assertRange(7, 9, ranges[2]);
+	}
+
+	public void testSplitRangeNarrowerThanPartitions() {
+		long[][] ranges = JdbcExtractor.splitRange(5, 6, 8);
+		assertEquals(2, ranges.length);
+		assertRange(5, 5, ranges[0]);
+		assertRange(6, 6, ranges[1]);
+	}
+
+	public void testSplitRangeSingleValue() {
+		long[][] ranges = JdbcExtractor.splitRange(42, 42, 4);
+		assertEquals(1, ranges.length);
+		assertRange(42, 42, ranges[0]);
+	}
+
+	private static void assertRange(long low, long high, long[] range) {
+		assertEquals(low, range[0]);
+		assertEquals(high, range[1]);
+	}
+}
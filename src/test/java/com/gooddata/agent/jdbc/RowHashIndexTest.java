@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.agent.jdbc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import junit.framework.TestCase;
+
+public class RowHashIndexTest extends TestCase {
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("gdca-test-", ".idx");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		new File(file.getPath() + ".grow").delete();
+	}
+
+	public void testPutAndGet() throws IOException {
+		final RowHashIndex index = RowHashIndex.create(file, 10);
+		try {
+			index.put(1, 100);
+			index.put(-5, 200);
+			index.put(Long.MAX_VALUE, -1);
+			assertEquals(100, index.get(1));
+			assertEquals(200, index.get(-5));
+			assertEquals(-1, index.get(Long.MAX_VALUE));
+			assertEquals(0, index.get(2));
+			assertEquals(3, index.size());
+		} finally {
+			index.close();
+		}
+	}
+
+	public void testPutReplacesHash() throws IOException {
+		final RowHashIndex index = RowHashIndex.create(file, 10);
+		try {
+			index.put(7, 1);
+			index.put(7, 2);
+			assertEquals(2, index.get(7));
+			assertEquals(1, index.size());
+		} finally {
+			index.close();
+		}
+	}
+
+	public void testZeroHashIsRejected() throws IOException {
+		final RowHashIndex index = RowHashIndex.create(file, 10);
+		try {
+			index.put(1, 0);
+			fail("A zero hash marks an empty slot");
+		} catch (IllegalArgumentException e) {
+			// expected
+		} finally {
+			index.close();
+		}
+	}
+
+	public void testReload() throws IOException {
+		final RowHashIndex index = RowHashIndex.create(file, 1000);
+		for (long key = 0; key < 1000; key++) {
+			index.put(key, hash(key));
+		}
+		index.close();
+
+		final RowHashIndex reloaded = RowHashIndex.open(file);
+		try {
+			assertEquals(1000, reloaded.size());
+			for (long key = 0; key < 1000; key++) {
+				assertEquals(hash(key), reloaded.get(key));
+			}
+			assertEquals(0, reloaded.get(1000));
+		} finally {
+			reloaded.close();
+		}
+	}
+
+	public void testReloadAfterGrowing() throws IOException {
+		// more keys than the initial capacity holds
+		final int count = 100000;
+		final RowHashIndex index = RowHashIndex.create(file, 10);
+		for (long key = 0; key < count; key++) {
+			index.put(key * 31, hash(key));
+		}
+		index.close();
+		assertFalse(new File(file.getPath() + ".grow").exists());
+
+		final RowHashIndex reloaded = RowHashIndex.open(file);
+		try {
+			assertEquals(count, reloaded.size());
+			for (long key = 0; key < count; key++) {
+				assertEquals(hash(key), reloaded.get(key * 31));
+			}
+		} finally {
+			reloaded.close();
+		}
+	}
+
+	public void testReopenedIndexIsReadOnly() throws IOException {
+		RowHashIndex.create(file, 10).close();
+		final RowHashIndex index = RowHashIndex.open(file);
+		try {
+			index.put(1, 1);
+			fail("An opened index is read-only");
+		} catch (IllegalStateException e) {
+			// expected
+		} finally {
+			index.close();
+		}
+	}
+
+	public void testMissingFileGivesEmptyIndex() throws IOException {
+		final RowHashIndex index = RowHashIndex.open(file);
+		assertEquals(0, index.size());
+		assertEquals(0, index.get(1));
+		index.close();
+	}
+
+	public void testOtherFileIsRejected() throws IOException {
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[128]);
+		} finally {
+			out.close();
+		}
+		try {
+			RowHashIndex.open(file);
+			fail("A file without the index header must be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static long hash(long key) {
+		return key * 0x9E3779B97F4A7C15L + 1;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2014, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.agent.jdbc;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class WatermarkStoreTest extends TestCase {
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("gdca-test-", ".properties");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	public void testUnknownDataset() throws IOException {
+		assertNull(new WatermarkStore(file).get("orders"));
+	}
+
+	public void testUpdateIsKeptAsideUntilCommit() throws IOException {
+		final WatermarkStore store = new WatermarkStore(file);
+		store.update("orders", Watermark.parse(Watermark.Kind.NUMBER, "42"));
+		assertNull(store.get("orders"));
+		assertFalse(file.exists());
+		assertNull(new WatermarkStore(file).get("orders"));
+	}
+
+	public void testCommitAndReload() throws IOException {
+		final WatermarkStore store = new WatermarkStore(file);
+		store.update("orders", Watermark.parse(Watermark.Kind.NUMBER, "12345678901234567890.5"));
+		store.update("events", Watermark.parse(Watermark.Kind.TIMESTAMP, "2014-12-30 10:15:16.123"));
+		store.update("users", Watermark.parse(Watermark.Kind.STRING, "smith"));
+		store.commit();
+
+		final WatermarkStore reloaded = new WatermarkStore(file);
+		assertWatermark(Watermark.Kind.NUMBER, "12345678901234567890.5", reloaded.get("orders"));
+		assertWatermark(Watermark.Kind.TIMESTAMP, "2014-12-30 10:15:16.123", reloaded.get("events"));
+		assertWatermark(Watermark.Kind.STRING, "smith", reloaded.get("users"));
+	}
+
+	public void testLaterCommitKeepsOtherDatasets() throws IOException {
+		WatermarkStore store = new WatermarkStore(file);
+		store.update("orders", Watermark.parse(Watermark.Kind.NUMBER, "1"));
+		store.update("users", Watermark.parse(Watermark.Kind.STRING, "a"));
+		store.commit();
+
+		store = new WatermarkStore(file);
+		store.update("orders", Watermark.parse(Watermark.Kind.NUMBER, "2"));
+		store.commit();
+
+		final WatermarkStore reloaded = new WatermarkStore(file);
+		assertWatermark(Watermark.Kind.NUMBER, "2", reloaded.get("orders"));
+		assertWatermark(Watermark.Kind.STRING, "a", reloaded.get("users"));
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	private static void assertWatermark(Watermark.Kind kind, String value, Watermark watermark) {
+		assertNotNull(watermark);
+		assertEquals(kind, watermark.getKind());
+		assertEquals(value, watermark.toString());
+	}
+}